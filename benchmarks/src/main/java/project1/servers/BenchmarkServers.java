@@ -0,0 +1,74 @@
+package project1.servers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import project1.Options;
+
+/**
+ * Class with what the benchmarks share to set up servers that can be measured: options that
+ * keep logging, the log and background snapshots out of the numbers, a free port, and the
+ * files a server writes its snapshots to.
+ */
+final class BenchmarkServers {
+  private BenchmarkServers() {
+  }
+
+  /**
+   * Returns the options of a server that only does what is being measured, with any other
+   * options given as name and value pairs on top.
+   *
+   * @param pairs names and values of options, eg: "store", "offheap".
+   * @return the options.
+   */
+  static Options quiet(String... pairs) {
+    Options options = new Options()
+            .set("log-level", "off")
+            .set("wal", "off")
+            .set("snapshot-interval", "0");
+    for (int i = 0; i + 1 < pairs.length; i += 2) {
+      options.set(pairs[i], pairs[i + 1]);
+    }
+    return options;
+  }
+
+  /**
+   * Returns a port that is free for both TCP and UDP at the moment.
+   *
+   * @return the port.
+   */
+  static int freePort() {
+    try (ServerSocket tcp = new ServerSocket(0)) {
+      // binding fails if the port is taken for UDP.
+      new DatagramSocket(tcp.getLocalPort()).close();
+      return tcp.getLocalPort();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Deletes the snapshots and log that servers write next to their classes, so that a
+   * benchmark neither loads data left behind by another one nor leaves any behind itself.
+   */
+  static void deleteSnapshots() {
+    try {
+      Path dir = Paths.get(TCPServer.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getParent();
+      for (SnapshotFormat format : SnapshotFormat.values()) {
+        Files.deleteIfExists(dir.resolve(format.getFileName()));
+        Files.deleteIfExists(dir.resolve(format.getFileName() + ".tmp"));
+      }
+      Files.deleteIfExists(dir.resolve("contents.wal"));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (URISyntaxException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package project1.servers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import project1.BinaryCodec;
+import project1.Request;
+
+/**
+ * Benchmark of what happens to a request between the transport and the store: splitting it into
+ * words in each protocol, validating and handling it, and encoding its response.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class RequestBenchmark {
+  private static final String PUT = "PUT\tsome key\t" + "some value ".repeat(10);
+  private static final String GET = "GET\tsome key";
+
+  private TCPServer server;
+  private ByteBuffer text;
+  private ByteBuffer binary;
+  private ByteBuffer response;
+  private Request put;
+  private Request get;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    BenchmarkServers.deleteSnapshots();
+    server = new TCPServer(0, BenchmarkServers.quiet());
+    text = ByteBuffer.allocateDirect(1024);
+    text.put(PUT.getBytes(StandardCharsets.UTF_8)).flip();
+    binary = BinaryCodec.encodeRequest(1, Request.parse(PUT));
+    response = ByteBuffer.allocateDirect(1024);
+    put = Request.parse(PUT);
+    get = Request.parse(GET);
+    server.handleRequest(put);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    server.close();
+  }
+
+  @Benchmark
+  public Request parseText() {
+    return Request.parse(PUT);
+  }
+
+  @Benchmark
+  public Request parseDatagram() {
+    return Request.parse(text);
+  }
+
+  @Benchmark
+  public Request decodeBinary() throws IOException {
+    ByteBuffer frame = binary.duplicate();
+    BinaryCodec.readVarint(frame);
+    BinaryCodec.readVarint(frame);
+    return BinaryCodec.decodeRequest(frame);
+  }
+
+  @Benchmark
+  public ByteBuffer encodeBinary() {
+    return BinaryCodec.encodeRequest(1, put);
+  }
+
+  @Benchmark
+  public Response handleGet() throws IOException {
+    server.isValidRequest(get);
+    return server.handleRequest(get);
+  }
+
+  @Benchmark
+  public Response handlePut() throws IOException {
+    server.isValidRequest(put);
+    return server.handleRequest(put);
+  }
+
+  @Benchmark
+  public boolean encodeResponse() {
+    response.clear();
+    return Utf8.encode(PUT, response);
+  }
+}
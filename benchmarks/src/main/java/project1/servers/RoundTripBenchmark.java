@@ -0,0 +1,111 @@
+package project1.servers;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import project1.Options;
+import project1.clients.Client;
+import project1.clients.TCPClient;
+import project1.clients.UDPClient;
+
+/**
+ * Benchmark of a request sent by a client to a server on the loopback interface and its response
+ * coming back, for each transport and engine. Every benchmark thread has its own client. Requests
+ * are plain GETs and PUTs, sent with serveRequestsAsync since serveRequests prints the response,
+ * which over the text protocol adds a hand-off to the thread of the client that sends them.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class RoundTripBenchmark {
+  private static final Map<String, String> PAIR = Collections.singletonMap("some key", "some value");
+  private static final String GET = "GET\tsome key";
+  private static final String PUT = "PUT\tsome key\tsome value";
+
+  @Param({"tcp", "udp"})
+  public String transport;
+
+  @Param({"blocking", "nio"})
+  public String engine;
+
+  private AbstractServer server;
+  private int port;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    BenchmarkServers.deleteSnapshots();
+    port = BenchmarkServers.freePort();
+    Options options = BenchmarkServers.quiet("engine", engine);
+    server = transport.equals("tcp") ? new TCPServer(port, options) : new UDPServer(port, options);
+    Thread listener = new Thread(server::start, "benchmark-server");
+    listener.setDaemon(true);
+    listener.start();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    server.close();
+  }
+
+  /**
+   * The client of a single benchmark thread.
+   */
+  @State(Scope.Thread)
+  public static class Connection {
+    private Client client;
+
+    @Setup(Level.Trial)
+    public void connect(RoundTripBenchmark benchmark) throws IOException, InterruptedException {
+      Options options = new Options();
+      client = benchmark.transport.equals("tcp") ? new TCPClient("localhost", benchmark.port, 1000, options)
+              : new UDPClient("localhost", benchmark.port, 1000, options);
+      // the server may still be opening its sockets, so the first request may go unanswered.
+      for (int attempt = 1; ; attempt++) {
+        try {
+          client.putAll(PAIR);
+          return;
+        } catch (IOException e) {
+          if (attempt == 10) {
+            throw e;
+          }
+          Thread.sleep(100);
+        }
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+      client.close();
+    }
+  }
+
+  @Benchmark
+  public String get(Connection connection) throws InterruptedException, ExecutionException {
+    return connection.client.serveRequestsAsync(GET).get();
+  }
+
+  @Benchmark
+  public String put(Connection connection) throws InterruptedException, ExecutionException {
+    return connection.client.serveRequestsAsync(PUT).get();
+  }
+}
@@ -0,0 +1,118 @@
+package project1.servers;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of saving the store with writeToFile and loading it back with readFromFile, timing
+ * every save or load on its own since each takes long enough to measure. Pairs are a short key
+ * and a 100 character value.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms8g", "-Xmx8g"})
+public class SnapshotBenchmark {
+  private static final String VALUE = "v".repeat(100);
+
+  /**
+   * The size and format of the snapshot, shared by both benchmarks.
+   */
+  @State(Scope.Benchmark)
+  public static class Data {
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int entries;
+
+    @Param({"json"})
+    public String format;
+
+    TCPServer newServer() throws IOException {
+      return new TCPServer(0, BenchmarkServers.quiet("snapshot-format", format));
+    }
+
+    TCPServer filledServer() throws IOException {
+      TCPServer server = newServer();
+      for (int i = 0; i < entries; i++) {
+        server.store.put("key" + i, VALUE);
+      }
+      return server;
+    }
+  }
+
+  /**
+   * A server holding every pair, which is saved again on every iteration.
+   */
+  @State(Scope.Benchmark)
+  public static class Filled {
+    TCPServer server;
+
+    @Setup(Level.Trial)
+    public void setUp(Data data) throws IOException {
+      BenchmarkServers.deleteSnapshots();
+      server = data.filledServer();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      server.close();
+      BenchmarkServers.deleteSnapshots();
+    }
+  }
+
+  /**
+   * A snapshot of every pair on disk, and an empty server to load it into on every iteration.
+   */
+  @State(Scope.Benchmark)
+  public static class Saved {
+    TCPServer server;
+
+    @Setup(Level.Trial)
+    public void save(Data data) throws IOException {
+      BenchmarkServers.deleteSnapshots();
+      TCPServer filled = data.filledServer();
+      filled.writeToFile();
+      filled.close();
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp(Data data) throws IOException {
+      server = data.newServer();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+      server.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+      BenchmarkServers.deleteSnapshots();
+    }
+  }
+
+  @Benchmark
+  public void writeToFile(Filled filled) throws IOException {
+    filled.server.writeToFile();
+  }
+
+  @Benchmark
+  public int readFromFile(Saved saved) {
+    saved.server.readFromFile();
+    return saved.server.store.size();
+  }
+}
@@ -0,0 +1,86 @@
+package project1.servers;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of gets and puts on each kind of store, for a number of keys and a share of reads.
+ * Keys are picked uniformly at random, and every key exists before the benchmark starts, so a
+ * get only misses if a bounded store evicted its key.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g", "-XX:MaxDirectMemorySize=2g"})
+@Threads(4)
+@State(Scope.Benchmark)
+public class StoreBenchmark {
+  private static final String VALUE = "v".repeat(100);
+
+  @Param({"concurrent", "bounded", "offheap"})
+  public String store;
+
+  @Param({"10000", "1000000"})
+  public int keys;
+
+  @Param({"50", "95", "100"})
+  public int readPercent;
+
+  private TCPServer server;
+  private String[] names;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    BenchmarkServers.deleteSnapshots();
+    server = new TCPServer(0, BenchmarkServers.quiet("store", store, "max-entries", Integer.toString(keys)));
+    names = new String[keys];
+    for (int i = 0; i < keys; i++) {
+      names[i] = "key" + i;
+      server.store.put(names[i], VALUE);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    server.close();
+  }
+
+  /**
+   * The random numbers of a single benchmark thread, seeded the same way on every run.
+   */
+  @State(Scope.Thread)
+  public static class Picker {
+    private SplittableRandom random;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      random = new SplittableRandom(Thread.currentThread().getId());
+    }
+  }
+
+  @Benchmark
+  public String mixed(Picker picker) {
+    String key = names[picker.random.nextInt(names.length)];
+    if (picker.random.nextInt(100) < readPercent) {
+      return server.store.get(key);
+    }
+    return server.store.put(key, VALUE);
+  }
+}
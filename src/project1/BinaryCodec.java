@@ -0,0 +1,252 @@
+package project1;
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Class that encodes and decodes the frames of the binary protocol (see Protocol.BINARY).
+ * Every frame starts with its length as a varint, i.e., 7 bits per byte with the high bit set on
+ * all but the last byte, followed by the id of the request as a varint, so that many requests
+ * can be in flight at once exactly like in the pipelined protocol.
+ * A request then holds the opcode of the command (see Command) as a single byte and each key
+ * or value as a varint length followed by its UTF-8 bytes.
+ * A response holds a status byte, OK or ERROR, and the UTF-8 bytes of the message up to the end
+ * of the frame.
+ * Unlike writeUTF frames, which hold at most 65535 bytes, a frame may be up to MAX_FRAME_SIZE
+ * bytes long.
+ */
+public final class BinaryCodec {
+  /**
+   * Largest frame accepted, excluding its length, so that a corrupt length cannot make the
+   * reader allocate an arbitrary amount of memory.
+   */
+  public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * Status of a response to a request that succeeded.
+   */
+  public static final byte OK = 0;
+
+  /**
+   * Status of a response to a request that failed.
+   */
+  public static final byte ERROR = 1;
+
+  private BinaryCodec() {
+  }
+
+  /**
+   * Encodes a request into a frame.
+   *
+   * @param id      the id of the request.
+   * @param request the request to encode. Requests with an unknown command are sent with
+   *                opcode 0, which the server refuses.
+   * @return the frame, including its length.
+   */
+  public static ByteBuffer encodeRequest(long id, Request request) {
+    Command command = request.getCommand();
+    byte[][] words = new byte[request.size() - 1][];
+    int size = varintSize(id) + 1;
+    for (int i = 0; i < words.length; i++) {
+      words[i] = request.get(i + 1).getBytes(StandardCharsets.UTF_8);
+      size += varintSize(words[i].length) + words[i].length;
+    }
+
+    ByteBuffer frame = ByteBuffer.allocate(varintSize(size) + size);
+    putVarint(frame, size);
+    putVarint(frame, id);
+    frame.put(command == null ? 0 : command.getOpcode());
+    for (byte[] word : words) {
+      putVarint(frame, word.length);
+      frame.put(word);
+    }
+    frame.flip();
+    return frame;
+  }
+
+  /**
+   * Decodes the request in a frame whose length and id have already been read.
+   *
+   * @param frame the frame, positioned at the opcode and limited to the end of the frame.
+   * @return the decoded request.
+   * @throws IOException if the frame is malformed.
+   */
+  public static Request decodeRequest(ByteBuffer frame) throws IOException {
+    if (!frame.hasRemaining()) {
+      throw new EOFException("Missing opcode in binary frame");
+    }
+    int opcode = frame.get() & 0xFF;
+    Command command = Command.fromOpcode(opcode);
+
+    // count the words first so that they can be decoded straight into an array of the right size.
+    int start = frame.position();
+    int count = 1;
+    while (frame.hasRemaining()) {
+      int length = readLength(frame);
+      frame.position(frame.position() + length);
+      count++;
+    }
+    frame.position(start);
+
+    String[] words = new String[count];
+    words[0] = command == null ? "OPCODE " + opcode : command.name();
+    for (int i = 1; i < count; i++) {
+      words[i] = readString(frame, readLength(frame));
+    }
+    return new Request(command, words);
+  }
+
+  /**
+   * Encodes a response into a frame.
+   *
+   * @param id      the id of the request the response belongs to.
+   * @param success whether the request succeeded.
+   * @param message the message of the response.
+   * @return the frame, including its length.
+   */
+  public static ByteBuffer encodeResponse(long id, boolean success, String message) {
+    byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+    int size = varintSize(id) + 1 + bytes.length;
+    ByteBuffer frame = ByteBuffer.allocate(varintSize(size) + size);
+    putVarint(frame, size);
+    putVarint(frame, id);
+    frame.put(success ? OK : ERROR);
+    frame.put(bytes);
+    frame.flip();
+    return frame;
+  }
+
+  /**
+   * Decodes the message of a response whose length and id have already been read.
+   *
+   * @param frame the frame, positioned at the status and limited to the end of the frame.
+   * @return the message of the response.
+   * @throws IOException if the frame is malformed.
+   */
+  public static String decodeMessage(ByteBuffer frame) throws IOException {
+    if (!frame.hasRemaining()) {
+      throw new EOFException("Missing status in binary frame");
+    }
+    frame.get();
+    return readString(frame, frame.remaining());
+  }
+
+  /**
+   * Reads a whole frame from a stream.
+   *
+   * @param in the stream to read from.
+   * @return the frame without its length, positioned at the id.
+   * @throws IOException in case of errors while reading or if the frame is too large.
+   */
+  public static ByteBuffer readFrame(DataInput in) throws IOException {
+    long length = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = in.readByte();
+      length |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        break;
+      }
+      if (shift >= 28) {
+        throw new IOException("Malformed frame length");
+      }
+    }
+    checkFrameSize(length);
+
+    byte[] frame = new byte[(int) length];
+    in.readFully(frame);
+    return ByteBuffer.wrap(frame);
+  }
+
+  /**
+   * Returns the size of the frame at the position of the buffer, without consuming anything.
+   *
+   * @param buffer the bytes received so far.
+   * @return the size of the frame including its length, or -1 if not even the length has been
+   *     received yet.
+   * @throws IOException if the frame is too large.
+   */
+  public static int frameSize(ByteBuffer buffer) throws IOException {
+    long length = 0;
+    int position = buffer.position();
+    for (int i = 0; i < 5; i++) {
+      if (position + i >= buffer.limit()) {
+        return -1;
+      }
+      byte b = buffer.get(position + i);
+      length |= (long) (b & 0x7F) << (7 * i);
+      if (b >= 0) {
+        checkFrameSize(length);
+        return i + 1 + (int) length;
+      }
+    }
+    throw new IOException("Malformed frame length");
+  }
+
+  private static void checkFrameSize(long length) throws IOException {
+    if (length > MAX_FRAME_SIZE) {
+      throw new IOException("Frame of " + length + " bytes is larger than the maximum of " + MAX_FRAME_SIZE);
+    }
+  }
+
+  /**
+   * Reads a varint from a frame.
+   *
+   * @param frame the frame to read from.
+   * @return the value of the varint.
+   * @throws IOException if the varint runs past the end of the frame or is too long.
+   */
+  public static long readVarint(ByteBuffer frame) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (!frame.hasRemaining()) {
+        throw new EOFException("Truncated varint in binary frame");
+      }
+      byte b = frame.get();
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint in binary frame");
+  }
+
+  private static int readLength(ByteBuffer frame) throws IOException {
+    long length = readVarint(frame);
+    if (length < 0 || length > frame.remaining()) {
+      throw new IOException("Length " + length + " runs past the end of the binary frame");
+    }
+    return (int) length;
+  }
+
+  private static String readString(ByteBuffer frame, int length) {
+    String s;
+    if (frame.hasArray()) {
+      s = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+      frame.position(frame.position() + length);
+    } else {
+      byte[] bytes = new byte[length];
+      frame.get(bytes);
+      s = new String(bytes, StandardCharsets.UTF_8);
+    }
+    return s;
+  }
+
+  private static int varintSize(long value) {
+    int size = 1;
+    while ((value >>>= 7) != 0) {
+      size++;
+    }
+    return size;
+  }
+
+  private static void putVarint(ByteBuffer buffer, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+}
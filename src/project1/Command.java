@@ -0,0 +1,114 @@
+package project1;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Enum for the commands a client can send to the server, each with the opcode that identifies
+ * it in the binary protocol (see BinaryCodec). In the text protocol commands are identified by
+ * their name instead.
+ */
+public enum Command {
+  GET(1), PUT(2), DELETE(3), MGET(4), MPUT(5), MDELETE(6), STOP(7), PUTEX(8), TTL(9), SCAN(10), PREFIX(11),
+  STATS(12), TRACK(13), PUTNX(14);
+
+  private static final Command[] VALUES = values();
+  private static final Command[] BY_OPCODE = new Command[15];
+
+  static {
+    for (Command command : VALUES) {
+      BY_OPCODE[command.opcode] = command;
+    }
+  }
+
+  private final byte opcode;
+
+  Command(int opcode) {
+    this.opcode = (byte) opcode;
+  }
+
+  /**
+   * Returns the opcode of the command in the binary protocol.
+   *
+   * @return the opcode as a byte.
+   */
+  public byte getOpcode() {
+    return opcode;
+  }
+
+  /**
+   * Returns the command with the given opcode.
+   *
+   * @param opcode the opcode read from a binary frame.
+   * @return the command, or null if no command has this opcode.
+   */
+  public static Command fromOpcode(int opcode) {
+    return opcode > 0 && opcode < BY_OPCODE.length ? BY_OPCODE[opcode] : null;
+  }
+
+  /**
+   * Returns the command with the given name.
+   *
+   * @param name the name of the command in upper case (eg: GET).
+   * @return the command, or null if no command has this name.
+   */
+  public static Command fromName(String name) {
+    switch (name) {
+      case "GET":
+        return GET;
+      case "PUT":
+        return PUT;
+      case "DELETE":
+        return DELETE;
+      case "MGET":
+        return MGET;
+      case "MPUT":
+        return MPUT;
+      case "MDELETE":
+        return MDELETE;
+      case "STOP":
+        return STOP;
+      case "PUTEX":
+        return PUTEX;
+      case "TTL":
+        return TTL;
+      case "SCAN":
+        return SCAN;
+      case "PREFIX":
+        return PREFIX;
+      case "STATS":
+        return STATS;
+      case "TRACK":
+        return TRACK;
+      case "PUTNX":
+        return PUTNX;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Returns the command whose name, in any case, is stored in a range of a buffer, without
+   * creating a String for it.
+   *
+   * @param buffer the buffer holding the name as ASCII bytes.
+   * @param start  index of the first byte of the name.
+   * @param end    index right after the last byte of the name.
+   * @return the command, or null if no command has this name.
+   */
+  public static Command fromName(ByteBuffer buffer, int start, int end) {
+    for (Command command : VALUES) {
+      String name = command.name();
+      if (name.length() != end - start) {
+        continue;
+      }
+      int i = 0;
+      while (i < name.length() && Character.toUpperCase(buffer.get(start + i)) == name.charAt(i)) {
+        i++;
+      }
+      if (i == name.length()) {
+        return command;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,181 @@
+package project1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Class that puts fragmented messages (see Fragments) back together. Fragments may arrive in
+ * any order and more than once. Messages still missing fragments after the timeout are dropped,
+ * and so are the oldest incomplete messages whenever the fragments held would take more than
+ * the given number of bytes, so that lost fragments or a misbehaving sender cannot exhaust the
+ * memory of the receiver. The reassembler may be shared by several threads.
+ */
+public final class FragmentReassembler {
+  private final int maxMessageSize;
+  private final long maxBufferedBytes;
+  private final long timeoutMs;
+  private final Map<Key, Partial> partials;
+  private long bufferedBytes;
+
+  /**
+   * Constructor to create an empty reassembler.
+   *
+   * @param maxMessageSize   the largest message accepted, in bytes.
+   * @param maxBufferedBytes the most bytes of incomplete messages held at a time.
+   * @param timeoutMs        milli-sec after its first fragment within which a message must be
+   *                         complete.
+   */
+  public FragmentReassembler(int maxMessageSize, long maxBufferedBytes, long timeoutMs) {
+    this.maxMessageSize = maxMessageSize;
+    this.maxBufferedBytes = maxBufferedBytes;
+    this.timeoutMs = timeoutMs;
+    // in insertion order, so that the oldest message is always first.
+    this.partials = new LinkedHashMap<>();
+  }
+
+  /**
+   * Adds a fragment to the message it belongs to.
+   *
+   * @param sender   the address the fragment came from, so that messages of different senders
+   *                 with the same id are kept apart.
+   * @param fragment the fragment, from its position to its limit.
+   * @return the whole message once its last missing fragment has been added, null otherwise.
+   * @throws IOException if the fragment is malformed or its message is larger than allowed.
+   */
+  public synchronized byte[] add(Object sender, ByteBuffer fragment) throws IOException {
+    long now = System.currentTimeMillis();
+    expire(now);
+
+    int position = fragment.position();
+    long messageId = fragment.getLong(position + 1);
+    int index = fragment.getShort(position + 9) & 0xFFFF;
+    int count = fragment.getShort(position + 11) & 0xFFFF;
+    int length = fragment.remaining() - Fragments.HEADER_SIZE;
+    if (count == 0 || index >= count || length > Fragments.MAX_PAYLOAD
+            || (index < count - 1 && length != Fragments.MAX_PAYLOAD)) {
+      throw new IOException("Malformed fragment " + index + " of " + count + " of message " + messageId);
+    }
+    // every fragment but the last is full, so the size is known up to the length of the last one.
+    long minSize = (long) (count - 1) * Fragments.MAX_PAYLOAD + (index == count - 1 ? length : 1);
+    if (minSize > maxMessageSize) {
+      throw new IOException("Message " + messageId + " is larger than the maximum of " + maxMessageSize + " bytes");
+    }
+
+    byte[] payload = new byte[length];
+    fragment.position(position + Fragments.HEADER_SIZE);
+    fragment.get(payload);
+    fragment.position(position);
+    if (count == 1) {
+      return payload;
+    }
+
+    Key key = new Key(sender, messageId);
+    Partial partial = partials.get(key);
+    if (partial == null) {
+      partial = new Partial(count, now);
+      partials.put(key, partial);
+    } else if (partial.parts.length != count) {
+      throw new IOException("Fragment count of message " + messageId + " changed from "
+              + partial.parts.length + " to " + count);
+    }
+    if (partial.parts[index] != null) {
+      // a duplicate, eg: a fragment sent again by the sender.
+      return null;
+    }
+
+    partial.parts[index] = payload;
+    partial.received++;
+    partial.size += length;
+    bufferedBytes += length;
+
+    if (partial.received < count) {
+      evict();
+      return null;
+    }
+
+    partials.remove(key);
+    bufferedBytes -= partial.size;
+    byte[] message = new byte[partial.size];
+    int offset = 0;
+    for (byte[] part : partial.parts) {
+      System.arraycopy(part, 0, message, offset, part.length);
+      offset += part.length;
+    }
+    return message;
+  }
+
+  /**
+   * Returns the number of messages that are still missing some fragments.
+   *
+   * @return the number of incomplete messages.
+   */
+  public synchronized int pending() {
+    return partials.size();
+  }
+
+  private void expire(long now) {
+    Iterator<Partial> it = partials.values().iterator();
+    while (it.hasNext()) {
+      Partial partial = it.next();
+      if (now - partial.createdMillis < timeoutMs) {
+        break;
+      }
+      bufferedBytes -= partial.size;
+      it.remove();
+    }
+  }
+
+  private void evict() {
+    Iterator<Partial> it = partials.values().iterator();
+    while (bufferedBytes > maxBufferedBytes && it.hasNext()) {
+      bufferedBytes -= it.next().size;
+      it.remove();
+    }
+  }
+
+  /**
+   * Class that identifies a message by its sender and id.
+   */
+  private static final class Key {
+    private final Object sender;
+    private final long messageId;
+
+    private Key(Object sender, long messageId) {
+      this.sender = sender;
+      this.messageId = messageId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return messageId == other.messageId && Objects.equals(sender, other.sender);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(sender) * 31 + Long.hashCode(messageId);
+    }
+  }
+
+  /**
+   * Class that holds the fragments of a message received so far.
+   */
+  private static final class Partial {
+    private final byte[][] parts;
+    private final long createdMillis;
+    private int received;
+    private int size;
+
+    private Partial(int count, long createdMillis) {
+      this.parts = new byte[count][];
+      this.createdMillis = createdMillis;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package project1;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class that splits messages too large for a single UDP datagram into fragments. Every fragment
+ * starts with a header of
+ * [byte 0xFF][long message id][unsigned short index][unsigned short count],
+ * followed by at most MAX_PAYLOAD bytes of the message. The first byte can never start a UTF-8
+ * string, so servers can tell fragments apart from plain text requests without any negotiation.
+ * The response to a fragmented request is fragmented as well and carries the same message id,
+ * which lets the client drop late responses to earlier requests. Fragments are reassembled by
+ * FragmentReassembler.
+ */
+public final class Fragments {
+  /**
+   * First byte of every fragment.
+   */
+  public static final byte MAGIC = (byte) 0xFF;
+
+  /**
+   * Size of the header in front of every fragment.
+   */
+  public static final int HEADER_SIZE = 1 + 8 + 2 + 2;
+
+  /**
+   * Most bytes of the message carried by a single fragment, small enough for a fragment to fit
+   * in an ethernet frame so that it is never split again by IP.
+   */
+  public static final int MAX_PAYLOAD = 1200;
+
+  /**
+   * Most fragments a message can be split into.
+   */
+  public static final int MAX_FRAGMENTS = 0xFFFF;
+
+  private Fragments() {
+  }
+
+  /**
+   * Splits a message into fragments.
+   *
+   * @param messageId the id of the message, echoed back in the fragments of the response.
+   * @param message   the message to split.
+   * @return the fragments, in order, each ready to be sent as a datagram.
+   * @throws IllegalArgumentException if the message needs more than MAX_FRAGMENTS fragments.
+   */
+  public static List<ByteBuffer> split(long messageId, byte[] message) throws IllegalArgumentException {
+    int count = Math.max(1, (message.length + MAX_PAYLOAD - 1) / MAX_PAYLOAD);
+    if (count > MAX_FRAGMENTS) {
+      throw new IllegalArgumentException("Message of " + message.length + " bytes is too large to be fragmented.");
+    }
+
+    List<ByteBuffer> fragments = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      int offset = i * MAX_PAYLOAD;
+      int length = Math.min(MAX_PAYLOAD, message.length - offset);
+      ByteBuffer fragment = ByteBuffer.allocate(HEADER_SIZE + length);
+      fragment.put(MAGIC).putLong(messageId).putShort((short) i).putShort((short) count);
+      fragment.put(message, offset, length);
+      fragment.flip();
+      fragments.add(fragment);
+    }
+    return fragments;
+  }
+
+  /**
+   * Checks whether a datagram is a fragment.
+   *
+   * @param datagram the datagram, from its position to its limit.
+   * @return true if the datagram is a fragment, false if it is a plain text message.
+   */
+  public static boolean isFragment(ByteBuffer datagram) {
+    return datagram.remaining() >= HEADER_SIZE && datagram.get(datagram.position()) == MAGIC;
+  }
+
+  /**
+   * Returns the id of the message a fragment belongs to.
+   *
+   * @param fragment the fragment, from its position to its limit.
+   * @return the message id.
+   */
+  public static long messageId(ByteBuffer fragment) {
+    return fragment.getLong(fragment.position() + 1);
+  }
+}
@@ -0,0 +1,142 @@
+package project1;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Class that counts latencies in buckets whose width grows with the latency, like
+ * HdrHistogram does: every power of two is split into 16 buckets, so any percentile read from
+ * the histogram is within about 6% of the true value while the whole range from 1 nano-sec to
+ * about 18 minutes fits in a few hundred buckets. Longer latencies are counted in the last
+ * bucket. A histogram is recorded into by a single thread, which never waits, and may be read
+ * by any thread at the same time. Servers keep one per command and thread, and the load generator
+ * one per connection.
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BITS = 4;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  private static final int MAX_EXPONENT = 40;
+  private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Counts a latency. Must only be called by the thread that owns the histogram, which is why
+   * plain lazy sets are enough instead of atomic increments.
+   *
+   * @param nanos the latency in nano-sec.
+   */
+  public void record(long nanos) {
+    int bucket = bucket(nanos);
+    counts.lazySet(bucket, counts.get(bucket) + 1);
+    sum.lazySet(sum.get() + nanos);
+    if (nanos > max.get()) {
+      max.lazySet(nanos);
+    }
+  }
+
+  /**
+   * Adds the counts of this histogram to merged ones.
+   *
+   * @param merged the counts of every bucket, followed by the sum and maximum of the latencies.
+   */
+  public void addTo(long[] merged) {
+    for (int i = 0; i < BUCKETS; i++) {
+      merged[i] += counts.get(i);
+    }
+    merged[BUCKETS] += sum.get();
+    merged[BUCKETS + 1] = Math.max(merged[BUCKETS + 1], max.get());
+  }
+
+  /**
+   * Creates empty merged counts for addTo.
+   *
+   * @return the counts.
+   */
+  public static long[] newMerged() {
+    return new long[BUCKETS + 2];
+  }
+
+  /**
+   * Returns a percentile of merged counts.
+   *
+   * @param merged   counts filled in by addTo.
+   * @param quantile the fraction of latencies at or below the result, eg: 0.99.
+   * @return the latency in nano-sec, i.e., the middle of the bucket the percentile falls in.
+   */
+  public static long valueAt(long[] merged, double quantile) {
+    long total = count(merged);
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += merged[i];
+      if (seen >= rank) {
+        return Math.min(lowerBound(i) + width(i) / 2, merged[BUCKETS + 1]);
+      }
+    }
+    return merged[BUCKETS + 1];
+  }
+
+  /**
+   * Returns how many latencies were counted in merged counts.
+   *
+   * @param merged counts filled in by addTo.
+   * @return the number of latencies.
+   */
+  public static long count(long[] merged) {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += merged[i];
+    }
+    return total;
+  }
+
+  /**
+   * Returns the sum of the latencies counted in merged counts.
+   *
+   * @param merged counts filled in by addTo.
+   * @return the sum in nano-sec.
+   */
+  public static long sum(long[] merged) {
+    return merged[BUCKETS];
+  }
+
+  /**
+   * Returns the longest latency counted in merged counts.
+   *
+   * @param merged counts filled in by addTo.
+   * @return the latency in nano-sec.
+   */
+  public static long max(long[] merged) {
+    return merged[BUCKETS + 1];
+  }
+
+  private static int bucket(long nanos) {
+    if (nanos < SUB_COUNT) {
+      return (int) Math.max(nanos, 0);
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+    return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+  }
+
+  private static long lowerBound(int bucket) {
+    if (bucket < SUB_COUNT) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+    return (long) (SUB_COUNT + bucket % SUB_COUNT) << (exponent - SUB_BITS);
+  }
+
+  private static long width(int bucket) {
+    return bucket < SUB_COUNT ? 1 : 1L << (bucket / SUB_COUNT - 1);
+  }
+}
@@ -0,0 +1,141 @@
+package project1;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class that holds the optional settings a client or server can be started with.
+ * Settings are passed on the command line after the mandatory arguments in the form
+ * --name=value (eg: --workers=pool). Settings that are not provided fall back to the
+ * default value supplied by the caller.
+ */
+public class Options {
+  private final Map<String, String> values;
+
+  /**
+   * Constructor to create an empty set of options where every lookup returns the default value.
+   */
+  public Options() {
+    this.values = new HashMap<>();
+  }
+
+  /**
+   * Parses the command line arguments starting at the given index into a set of options.
+   *
+   * @param args the command line arguments.
+   * @param from index of the first optional argument.
+   * @return the parsed options.
+   * @throws IllegalArgumentException if any argument is not of the form --name=value.
+   */
+  public static Options parse(String[] args, int from) throws IllegalArgumentException {
+    Options options = new Options();
+    for (int i = from; i < args.length; i++) {
+      String arg = args[i];
+      int eq = arg.indexOf('=');
+      if (!arg.startsWith("--") || eq < 3) {
+        throw new IllegalArgumentException("Invalid option " + arg + ". Must be of the form --name=value.");
+      }
+      options.values.put(arg.substring(2, eq).toLowerCase(), arg.substring(eq + 1));
+    }
+    return options;
+  }
+
+  /**
+   * Sets the value of an option, replacing any previous value.
+   *
+   * @param name  name of the option.
+   * @param value value of the option.
+   * @return this set of options so that calls can be chained.
+   */
+  public Options set(String name, String value) {
+    values.put(name.toLowerCase(), value);
+    return this;
+  }
+
+  /**
+   * Checks whether an option was provided.
+   *
+   * @param name name of the option.
+   * @return true if the option was provided, false otherwise.
+   */
+  public boolean has(String name) {
+    return values.containsKey(name.toLowerCase());
+  }
+
+  /**
+   * Returns the value of an option as a String.
+   *
+   * @param name         name of the option.
+   * @param defaultValue value to return if the option was not provided.
+   * @return the value of the option, lower-cased, or the default value.
+   */
+  public String getString(String name, String defaultValue) {
+    String value = values.get(name.toLowerCase());
+    return value == null ? defaultValue : value.toLowerCase();
+  }
+
+  /**
+   * Returns the value of an option exactly as provided, for values whose case matters (eg: the
+   * name of a directory).
+   *
+   * @param name         name of the option.
+   * @param defaultValue value to return if the option was not provided.
+   * @return the value of the option or the default value.
+   */
+  public String getValue(String name, String defaultValue) {
+    String value = values.get(name.toLowerCase());
+    return value == null ? defaultValue : value;
+  }
+
+  /**
+   * Returns the value of an option as an int.
+   *
+   * @param name         name of the option.
+   * @param defaultValue value to return if the option was not provided.
+   * @return the value of the option or the default value.
+   * @throws IllegalArgumentException if the value is not a valid number.
+   */
+  public int getInt(String name, int defaultValue) throws IllegalArgumentException {
+    long value = getLong(name, defaultValue);
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Value " + value + " for option --" + name + " is out of range.");
+    }
+    return (int) value;
+  }
+
+  /**
+   * Returns the value of an option as a long.
+   *
+   * @param name         name of the option.
+   * @param defaultValue value to return if the option was not provided.
+   * @return the value of the option or the default value.
+   * @throws IllegalArgumentException if the value is not a valid number.
+   */
+  public long getLong(String name, long defaultValue) throws IllegalArgumentException {
+    String value = values.get(name.toLowerCase());
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid value " + value + " for option --" + name + ". Must be a number.");
+    }
+  }
+
+  /**
+   * Returns the value of an option as a boolean.
+   *
+   * @param name         name of the option.
+   * @param defaultValue value to return if the option was not provided.
+   * @return true if the value is "true", "yes" or "on", false for any other provided value,
+   *     or the default value.
+   */
+  public boolean getBoolean(String name, boolean defaultValue) {
+    String value = getString(name, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    return value.equals("true") || value.equals("yes") || value.equals("on");
+  }
+}
@@ -0,0 +1,110 @@
+package project1;
+
+/**
+ * Class that holds the constants shared by clients and servers for the optional protocols a TCP
+ * connection can switch to. A connection always starts out in the original text protocol, where
+ * every request and response is a single writeUTF frame. The client may then send
+ * PROTOCOL \t name, and if the server replies with PROTOCOL name both sides switch to that
+ * protocol for the rest of the connection. Servers that do not know the protocol reply with an
+ * error instead, in which case the client keeps using the text protocol.
+ */
+public final class Protocol {
+  /**
+   * Name of the command used to negotiate a protocol.
+   */
+  public static final String NEGOTIATE = "PROTOCOL";
+
+  /**
+   * Pipelined protocol, where every frame is a long request id followed by a writeUTF frame.
+   * The client may send many requests without waiting for their responses, and the server may
+   * answer them in any order, tagging each response with the id of its request.
+   */
+  public static final String PIPELINED = "PIPELINED";
+
+  /**
+   * Binary protocol, where requests and responses are length-prefixed binary frames tagged with
+   * a request id (see BinaryCodec). Like the pipelined protocol, many requests may be in flight
+   * at once, but frames are not limited to 65535 bytes and requests are decoded without being
+   * split into words.
+   */
+  public static final String BINARY = "BINARY";
+
+  /**
+   * Request that asks the server to track the keys read on a pipelined or binary connection,
+   * after which it pushes INVALIDATE \t key, tagged with PUSH_ID, whenever one of them changes.
+   */
+  public static final String TRACK = "TRACK";
+
+  /**
+   * Response of a server that agrees to TRACK.
+   */
+  public static final String TRACKING = "Tracking keys read on this connection.";
+
+  /**
+   * Prefix of the message pushed when a tracked key changes, followed by the key.
+   */
+  public static final String INVALIDATE = "INVALIDATE\t";
+
+  /**
+   * Message pushed when the server fell behind pushing invalidations to a client and stopped
+   * tracking its connection, after which the client has to drop its whole cache and TRACK again.
+   */
+  public static final String INVALIDATE_ALL = "INVALIDATE_ALL";
+
+  /**
+   * Response of a server that stored a key, to PUT, PUTEX and PUTNX, and the message for every
+   * key of an MPUT.
+   */
+  public static final String STORED = "put successful";
+
+  /**
+   * Response of a server to a PUTNX of a key that exists already.
+   */
+  public static final String EXISTS = "Invalid request. Can't put key that already exists.";
+
+  /**
+   * Request id of messages pushed by the server, which no request ever uses.
+   */
+  public static final long PUSH_ID = 0;
+
+  private Protocol() {
+  }
+
+  /**
+   * Returns the request a client sends to switch to a protocol.
+   *
+   * @param protocol name of the protocol.
+   * @return the request as a String.
+   */
+  public static String request(String protocol) {
+    return NEGOTIATE + "\t" + protocol;
+  }
+
+  /**
+   * Returns the response a server sends when it agrees to switch to a protocol.
+   *
+   * @param protocol name of the protocol.
+   * @return the response as a String.
+   */
+  public static String accepted(String protocol) {
+    return NEGOTIATE + " " + protocol;
+  }
+
+  /**
+   * Returns the protocol a request asks to switch to.
+   *
+   * @param request the request as received by the server.
+   * @return the name of the protocol in upper case, or null if the request is not a
+   *     negotiation.
+   */
+  public static String requested(String request) {
+    if (!request.regionMatches(true, 0, NEGOTIATE, 0, NEGOTIATE.length())) {
+      return null;
+    }
+    String[] parts = request.trim().split("\\t+");
+    if (parts.length != 2 || !parts[0].trim().equalsIgnoreCase(NEGOTIATE)) {
+      return null;
+    }
+    return parts[1].trim().toUpperCase();
+  }
+}
@@ -0,0 +1,186 @@
+package project1;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Class that holds a request split into its words, i.e., the name of the command followed by its
+ * keys and values. Requests of the text protocol are split on tabs by parse, one character at a
+ * time, or straight from the bytes of a datagram, while requests of the binary protocol are
+ * decoded straight into words by BinaryCodec.
+ */
+public final class Request {
+  // bytes of a word copied out of a direct buffer before decoding, reused by every request of a thread.
+  private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[1024]);
+
+  private final Command command;
+  private final String[] words;
+
+  Request(Command command, String[] words) {
+    this.command = command;
+    this.words = words;
+  }
+
+  /**
+   * Splits a request of the text protocol into words. Words are separated by one or more tabs
+   * and surrounding whitespace is trimmed off each of them. The name of the command is upper
+   * cased, so commands may be sent in any case.
+   *
+   * @param request the request as a String (eg: PUT \t key \t value).
+   * @return the request split into words.
+   */
+  public static Request parse(String request) {
+    int n = request.length();
+    int max = 1;
+    for (int i = 0; i < n; i++) {
+      if (request.charAt(i) == '\t') {
+        max++;
+      }
+    }
+
+    String[] words = new String[max];
+    int count = 0;
+    int start = 0;
+    for (int i = 0; i <= n; i++) {
+      if (i < n && request.charAt(i) != '\t') {
+        continue;
+      }
+      if (i > start) {
+        words[count++] = trim(request, start, i);
+      }
+      start = i + 1;
+    }
+
+    if (count == 0) {
+      words[count++] = "";
+    }
+    if (count < max) {
+      String[] exact = new String[count];
+      System.arraycopy(words, 0, exact, 0, count);
+      words = exact;
+    }
+    words[0] = words[0].toUpperCase();
+    return new Request(Command.fromName(words[0]), words);
+  }
+
+  /**
+   * Splits a request of the text protocol held in a buffer into words, following the same rules
+   * as parse(String) but decoding each word straight from the buffer, so that no String is
+   * created for the request as a whole or for the name of a known command.
+   *
+   * @param request the UTF-8 bytes of the request, from the position to the limit of the buffer,
+   *                which are left unchanged.
+   * @return the request split into words.
+   */
+  public static Request parse(ByteBuffer request) {
+    int from = request.position();
+    int to = request.limit();
+    int max = 1;
+    for (int i = from; i < to; i++) {
+      if (request.get(i) == '\t') {
+        max++;
+      }
+    }
+
+    String[] words = new String[max];
+    Command command = null;
+    int count = 0;
+    int start = from;
+    for (int i = from; i <= to; i++) {
+      if (i < to && request.get(i) != '\t') {
+        continue;
+      }
+      if (i > start) {
+        int wordStart = start;
+        int wordEnd = i;
+        while (wordStart < wordEnd && (request.get(wordStart) & 0xFF) <= ' ') {
+          wordStart++;
+        }
+        while (wordEnd > wordStart && (request.get(wordEnd - 1) & 0xFF) <= ' ') {
+          wordEnd--;
+        }
+        if (count == 0) {
+          command = Command.fromName(request, wordStart, wordEnd);
+        }
+        if (count == 0 && command != null) {
+          words[count++] = command.name();
+        } else {
+          words[count++] = decode(request, wordStart, wordEnd - wordStart);
+        }
+      }
+      start = i + 1;
+    }
+
+    if (count == 0) {
+      words[count++] = "";
+    }
+    if (count < max) {
+      String[] exact = new String[count];
+      System.arraycopy(words, 0, exact, 0, count);
+      words = exact;
+    }
+    if (command == null) {
+      words[0] = words[0].toUpperCase();
+    }
+    return new Request(command, words);
+  }
+
+  private static String decode(ByteBuffer buffer, int start, int length) {
+    if (buffer.hasArray()) {
+      return new String(buffer.array(), buffer.arrayOffset() + start, length, StandardCharsets.UTF_8);
+    }
+    byte[] bytes = SCRATCH.get();
+    if (bytes.length < length) {
+      bytes = new byte[Math.max(length, bytes.length * 2)];
+      SCRATCH.set(bytes);
+    }
+    for (int i = 0; i < length; i++) {
+      bytes[i] = buffer.get(start + i);
+    }
+    return new String(bytes, 0, length, StandardCharsets.UTF_8);
+  }
+
+  private static String trim(String s, int start, int end) {
+    while (start < end && s.charAt(start) <= ' ') {
+      start++;
+    }
+    while (end > start && s.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    return s.substring(start, end);
+  }
+
+  /**
+   * Returns the command of the request.
+   *
+   * @return the command, or null if the request names a command that does not exist.
+   */
+  public Command getCommand() {
+    return command;
+  }
+
+  /**
+   * Returns the number of words in the request, including the name of the command.
+   *
+   * @return the number of words.
+   */
+  public int size() {
+    return words.length;
+  }
+
+  /**
+   * Returns a word of the request.
+   *
+   * @param i index of the word, where 0 is the name of the command and the keys and values
+   *          start at 1.
+   * @return the word as a String.
+   */
+  public String get(int i) {
+    return words[i];
+  }
+
+  @Override
+  public String toString() {
+    return String.join("\t", words);
+  }
+}
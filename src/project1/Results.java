@@ -0,0 +1,111 @@
+package project1;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class for the responses to requests about several keys, i.e., MGET, MPUT, MDELETE, SCAN and
+ * PREFIX, which hold one line per key of the form status \t key \t message. Keys and values may
+ * themselves hold tabs and newlines, so backslashes, tabs and newlines in keys and messages are
+ * written as \\, \t and \n, and read back by parse. A response that is not made of such lines is
+ * an error about the whole request, eg: that the request was invalid or the response too large.
+ */
+public final class Results {
+  /**
+   * Start of the error sent in place of a response too large for the protocol, eg: an MGET of
+   * many large values, in which case the same keys may be asked for again fewer at a time.
+   */
+  public static final String TOO_LARGE = "Response too large to send.";
+
+  private Results() {
+  }
+
+  /**
+   * Appends the line of a key to a response.
+   *
+   * @param res     the response so far.
+   * @param status  the status of the key, eg: OK or ERROR.
+   * @param key     the key.
+   * @param message the value of the key, or a message about it.
+   */
+  public static void append(StringBuilder res, String status, String key, String message) {
+    if (res.length() > 0) {
+      res.append('\n');
+    }
+    res.append(status).append('\t');
+    escape(res, key);
+    res.append('\t');
+    escape(res, message);
+  }
+
+  /**
+   * Splits a response into one status, key and message per line.
+   *
+   * @param res the response.
+   * @return the status, key and message of every line, in order.
+   * @throws IOException if the response is an error about the whole request.
+   */
+  public static List<String[]> parse(String res) throws IOException {
+    List<String[]> results = new ArrayList<>();
+    for (String line : res.trim().split("\n")) {
+      String[] result = line.split("\t", 3);
+      if (result.length < 3) {
+        throw new IOException(res.trim());
+      }
+      result[1] = unescape(result[1]);
+      result[2] = unescape(result[2]);
+      results.add(result);
+    }
+    return results;
+  }
+
+  /**
+   * Returns how many characters escaping adds to a key or message.
+   *
+   * @param s the key or message.
+   * @return the number of backslashes, tabs and newlines in it.
+   */
+  public static int escapes(String s) {
+    int escapes = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '\\' || c == '\t' || c == '\n') {
+        escapes++;
+      }
+    }
+    return escapes;
+  }
+
+  private static void escape(StringBuilder res, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '\\') {
+        res.append("\\\\");
+      } else if (c == '\t') {
+        res.append("\\t");
+      } else if (c == '\n') {
+        res.append("\\n");
+      } else {
+        res.append(c);
+      }
+    }
+  }
+
+  private static String unescape(String s) {
+    if (s.indexOf('\\') < 0) {
+      return s;
+    }
+    StringBuilder out = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c != '\\' || i + 1 == s.length()) {
+        out.append(c);
+        continue;
+      }
+      char next = s.charAt(++i);
+      out.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+    }
+    return out.toString();
+  }
+}
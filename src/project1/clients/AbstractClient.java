@@ -1,23 +1,130 @@
 package project1.clients;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+
+import project1.Options;
+import project1.Protocol;
+import project1.Results;
 
 abstract class AbstractClient implements Client {
+  /**
+   * Most keys sent in one batch request, the default limit of the server.
+   */
+  protected static final int MAX_BATCH = 1000;
+
+  /**
+   * Most bytes the line of a key in the response to a batch request takes besides the key, ie:
+   * its status, separators and the longest message sent back for a key.
+   */
+  private static final int RESULT_OVERHEAD = 48;
+
   protected final Scanner sc;
+  protected NearCache nearCache;
+  private ExecutorService asyncExecutor;
 
-  protected abstract void handleRequestsAndResponses(String request) throws IOException;
+  /**
+   * Sends a request to the server and waits for its response.
+   *
+   * @param request The request to be sent to the server.
+   * @return The response sent back by the server.
+   * @throws IOException In case of errors during the communication between the client and server.
+   */
+  protected abstract String handleRequestsAndResponses(String request) throws IOException;
+
+  /**
+   * Sends a request to the server and waits for its response, unless it is a GET the near cache
+   * can answer (see NearCache).
+   *
+   * @param request The request to be sent to the server.
+   * @return The response, from the near cache or sent back by the server.
+   * @throws IOException In case of errors during the communication between the client and server.
+   */
+  protected String exchange(String request) throws IOException {
+    if (nearCache == null) {
+      return handleRequestsAndResponses(request);
+    }
+    return nearCache.exchange(request, this::handleRequestsAndResponses);
+  }
 
   protected abstract void closeEverything();
 
-  protected abstract Client getClientInstance(String name, int port, int timeout) throws IOException;
+  protected abstract Client getClientInstance(String name, int port, int timeout, Options options)
+          throws IOException;
+
+  /**
+   * Returns the largest request, in bytes, that the protocol of the client can send at once.
+   *
+   * @return the maximum size of a request in bytes.
+   */
+  protected abstract int maxRequestSize();
+
+  /**
+   * Returns whether the client can have many requests in flight at once, so that
+   * serveRequestsAsync may be called from any number of threads without waiting for earlier
+   * responses.
+   *
+   * @return true if requests are matched to their responses by id, false otherwise.
+   */
+  protected boolean isMultiplexed() {
+    return false;
+  }
+
+  /**
+   * Returns whether the connection is known to be lost, eg: because the server closed it, so
+   * that a pool can replace it before sending requests on it.
+   *
+   * @return true if no more responses can arrive, false otherwise.
+   */
+  protected boolean isBroken() {
+    return false;
+  }
 
   protected AbstractClient() {
     sc = new Scanner(System.in);
   }
 
+  /**
+   * Turns on the near cache if --near-cache is set to the most GET responses to keep, and asks
+   * the server to push invalidations if the connection can carry them. Must be called once the
+   * connection is ready to send requests.
+   *
+   * @param options settings of the client.
+   * @throws IOException in case of errors while asking the server to track keys.
+   */
+  protected void startNearCache(Options options) throws IOException {
+    int maxEntries = options.getInt("near-cache", 0);
+    if (maxEntries <= 0) {
+      return;
+    }
+    nearCache = new NearCache(maxEntries, options.getLong("near-cache-ttl", 10000));
+    if (isMultiplexed()) {
+      String res = handleRequestsAndResponses(Protocol.TRACK);
+      if (!res.equals(Protocol.TRACKING)) {
+        showError("Server does not push invalidations, cached values may be stale until they expire. " + res);
+      }
+    }
+  }
+
   protected String getTimestamp() {
     Timestamp timestamp = new Timestamp(System.currentTimeMillis());
     return "[" + timestamp + "]";
@@ -46,17 +153,25 @@ abstract class AbstractClient implements Client {
   @Override
   public void validateArgs(String[] args) {
     try {
-      if (args.length != 2) {
-        throw new IllegalArgumentException("Invalid number of arguments. Should be exactly 2.");
+      if (args.length < 2) {
+        throw new IllegalArgumentException("Invalid number of arguments. Should be at least 2.");
       }
       String name = args[0];
       int port = Integer.parseInt(args[1]);
       if (port < 0 || port > 65535) {
         throw new IllegalArgumentException("Invalid port number. Must be in range 0-65535.");
       }
-      int timeout = 1000;
+      Options options = Options.parse(args, 2);
+      int timeout = options.getInt("timeout", 1000);
+      if (timeout < 1) {
+        throw new IllegalArgumentException("Invalid timeout. Must be at least 1 milli-sec.");
+      }
 
-      Client client = getClientInstance(name, port, timeout);
+      if (options.has("load")) {
+        new LoadGenerator(options, () -> (AbstractClient) getClientInstance(name, port, timeout, options)).run();
+        return;
+      }
+      Client client = getClientInstance(name, port, timeout, options);
       client.start();
     } catch (IOException | IllegalArgumentException e) {
       System.out.println(getTimestamp() + "ERROR: " + e.getMessage());
@@ -65,11 +180,229 @@ abstract class AbstractClient implements Client {
 
   @Override
   public void serveRequests(String request) throws IOException {
-    handleRequestsAndResponses(request);
+    showResponse(exchange(request));
+  }
+
+  /**
+   * Sends the request on a background thread that exchanges one request at a time with the
+   * server, for clients whose protocol cannot have several requests in flight.
+   */
+  @Override
+  public CompletableFuture<String> serveRequestsAsync(String request) {
+    synchronized (this) {
+      if (asyncExecutor == null) {
+        asyncExecutor = Executors.newSingleThreadExecutor(r -> {
+          Thread t = new Thread(r, "client-async");
+          t.setDaemon(true);
+          return t;
+        });
+      }
+    }
+
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return exchange(request);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, asyncExecutor);
+  }
+
+  @Override
+  public Map<String, String> getAll(Collection<String> keys) throws IOException {
+    Map<String, String> values = new HashMap<>();
+    for (List<String> batch : batches("MGET", new ArrayList<>(keys), null)) {
+      getBatch(batch, values);
+    }
+    return values;
+  }
+
+  /**
+   * Gets a batch of keys with a single MGET, unless their values are too large to be sent back
+   * at once, in which case each half of the batch is asked for again on its own.
+   */
+  private void getBatch(List<String> keys, Map<String, String> values) throws IOException {
+    String res = exchange(request("MGET", keys, null));
+    if (res.trim().startsWith(Results.TOO_LARGE) && keys.size() > 1) {
+      int half = keys.size() / 2;
+      getBatch(keys.subList(0, half), values);
+      getBatch(keys.subList(half, keys.size()), values);
+      return;
+    }
+    for (String[] result : Results.parse(res)) {
+      if (result[0].equals("OK")) {
+        values.put(result[1], result[2]);
+      }
+    }
+  }
+
+  @Override
+  public void putAll(Map<String, String> entries) throws IOException {
+    List<String> keys = new ArrayList<>(entries.keySet());
+    for (List<String> batch : batches("MPUT", keys, entries)) {
+      for (String[] result : Results.parse(exchange(request("MPUT", batch, entries)))) {
+        if (!result[0].equals("OK")) {
+          throw new IOException("Could not put " + result[1] + ": " + result[2]);
+        }
+      }
+    }
+  }
+
+  @Override
+  public Set<String> deleteAll(Collection<String> keys) throws IOException {
+    Set<String> deleted = new HashSet<>();
+    for (List<String> batch : batches("MDELETE", new ArrayList<>(keys), null)) {
+      for (String[] result : Results.parse(exchange(request("MDELETE", batch, null)))) {
+        if (result[0].equals("OK")) {
+          deleted.add(result[1]);
+        }
+      }
+    }
+    return deleted;
+  }
+
+  @Override
+  public Iterator<Map.Entry<String, String>> scan(String start, String end) {
+    return new PageIterator((from, limit) -> "SCAN\t" + from + "\t" + end + "\t" + limit, start);
+  }
+
+  @Override
+  public Iterator<Map.Entry<String, String>> prefix(String prefix) {
+    return new PageIterator((from, limit) -> "PREFIX\t" + prefix + "\t" + limit + "\t" + from, prefix);
+  }
+
+  /**
+   * Class that walks the pages of a SCAN or PREFIX query, asking for the next page only once
+   * every pair of the current one has been returned. Pages start at MAX_BATCH pairs; when a page
+   * is too large to be sent back, the same page is asked for again with half as many pairs, and
+   * the smaller limit is kept for the pages after it.
+   */
+  private final class PageIterator implements Iterator<Map.Entry<String, String>> {
+    private final BiFunction<String, Integer, String> request;
+    private String next;
+    private int limit;
+    private Iterator<Map.Entry<String, String>> page;
+
+    /**
+     * Constructor to create an iterator that has not fetched any page yet.
+     *
+     * @param request makes the request for the page starting at a key with at most a number of
+     *                pairs.
+     * @param first   the key the first page starts at.
+     */
+    private PageIterator(BiFunction<String, Integer, String> request, String first) {
+      this.request = request;
+      this.next = first;
+      this.limit = MAX_BATCH;
+      this.page = Collections.emptyIterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (!page.hasNext() && next != null) {
+        try {
+          fetch();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+      return page.hasNext();
+    }
+
+    @Override
+    public Map.Entry<String, String> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return page.next();
+    }
+
+    private void fetch() throws IOException {
+      String res = exchange(request.apply(next, limit));
+      while (res.trim().startsWith(Results.TOO_LARGE) && limit > 1) {
+        limit = Math.max(1, limit / 2);
+        res = exchange(request.apply(next, limit));
+      }
+      next = null;
+      List<Map.Entry<String, String>> pairs = new ArrayList<>();
+      for (String[] result : Results.parse(res)) {
+        if (result[0].equals("OK")) {
+          pairs.add(new AbstractMap.SimpleImmutableEntry<>(result[1], result[2]));
+        } else if (result[0].equals("MORE")) {
+          next = result[1];
+        } else if (!result[0].equals("END")) {
+          throw new IOException(res.trim());
+        }
+      }
+      page = pairs.iterator();
+    }
+  }
+
+  /**
+   * Splits the keys into as few batches as possible, each holding at most MAX_BATCH keys,
+   * fitting in a request of maxRequestSize bytes, and with a response that fits in as many bytes
+   * as well, not counting values MGET gets back (see getBatch).
+   *
+   * @param command MGET, MPUT or MDELETE.
+   * @param keys    the keys to send.
+   * @param values  the value of every key for MPUT, null otherwise.
+   * @return the keys of every batch.
+   * @throws IOException if a single key-value pair is too large to be sent.
+   */
+  private List<List<String>> batches(String command, List<String> keys, Map<String, String> values)
+          throws IOException {
+    List<List<String>> batches = new ArrayList<>();
+    List<String> batch = new ArrayList<>();
+    int requestSize = utfLength(command);
+    int responseSize = 0;
+
+    for (String key : keys) {
+      int keySize = utfLength(key);
+      int itemSize = 1 + keySize + (values == null ? 0 : 1 + utfLength(values.get(key)));
+      int resultSize = RESULT_OVERHEAD + keySize + Results.escapes(key);
+      if (utfLength(command) + itemSize > maxRequestSize() || resultSize > maxRequestSize()) {
+        throw new IOException("Key " + key + " is too large to be sent in a request.");
+      }
+      if (batch.size() == MAX_BATCH || requestSize + itemSize > maxRequestSize()
+              || responseSize + resultSize > maxRequestSize()) {
+        batches.add(batch);
+        batch = new ArrayList<>();
+        requestSize = utfLength(command);
+        responseSize = 0;
+      }
+      batch.add(key);
+      requestSize += itemSize;
+      responseSize += resultSize;
+    }
+
+    if (!batch.isEmpty()) {
+      batches.add(batch);
+    }
+    return batches;
+  }
+
+  private static String request(String command, List<String> keys, Map<String, String> values) {
+    StringBuilder request = new StringBuilder(command);
+    for (String key : keys) {
+      request.append('\t').append(key);
+      if (values != null) {
+        request.append('\t').append(values.get(key));
+      }
+    }
+    return request.toString();
+  }
+
+  private static int utfLength(String s) {
+    return s.getBytes(StandardCharsets.UTF_8).length;
   }
 
   @Override
   public void close() {
+    synchronized (this) {
+      if (asyncExecutor != null) {
+        asyncExecutor.shutdownNow();
+      }
+    }
     closeEverything();
   }
 
@@ -79,7 +412,16 @@ abstract class AbstractClient implements Client {
             "All valid request formats:\n\n" +
                     "GET x\n" +
                     "PUT x y\n" +
+                    "PUTEX x y ttl     (ttl in milli-sec)\n" +
+                    "PUTNX x y [ttl]   (only if x does not exist)\n" +
+                    "TTL x\n" +
                     "DELETE x\n" +
+                    "MGET x1 x2 ...\n" +
+                    "MPUT x1 y1 x2 y2 ...\n" +
+                    "MDELETE x1 x2 ...\n" +
+                    "SCAN start end limit\n" +
+                    "PREFIX p limit\n" +
+                    "STATS\n" +
                     "STOP\n\n" +
                     "Requests are tab separated. eg : PUT \\t This is the key \\t This is the value\n");
 
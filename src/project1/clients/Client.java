@@ -1,6 +1,11 @@
 package project1.clients;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import project1.Features;
 
@@ -16,4 +21,64 @@ public interface Client extends Features {
    * @throws IOException In case of errors during the communication between the client and server.
    */
   void serveRequests(String request) throws IOException;
+
+  /**
+   * Method that sends a request to the server without waiting for the response. Many requests
+   * may be in flight at the same time; whether they are actually sent before earlier ones are
+   * answered depends on the protocol the client uses.
+   *
+   * @param request The request to be sent to the server.
+   * @return a future completed with the response of the server, or completed exceptionally in
+   *     case of errors during the communication between the client and server.
+   */
+  CompletableFuture<String> serveRequestsAsync(String request);
+
+  /**
+   * Method that gets the values of many keys, sending as few MGET requests as possible.
+   *
+   * @param keys the keys to get.
+   * @return the value of every key that exists. Keys that do not exist are left out.
+   * @throws IOException In case of errors during the communication between the client and server.
+   */
+  Map<String, String> getAll(Collection<String> keys) throws IOException;
+
+  /**
+   * Method that stores many key-value pairs, sending as few MPUT requests as possible.
+   *
+   * @param entries the key-value pairs to store.
+   * @throws IOException In case of errors during the communication between the client and server
+   *                     or if the server refuses to store any of the pairs.
+   */
+  void putAll(Map<String, String> entries) throws IOException;
+
+  /**
+   * Method that deletes many keys, sending as few MDELETE requests as possible.
+   *
+   * @param keys the keys to delete.
+   * @return the keys that existed and were deleted.
+   * @throws IOException In case of errors during the communication between the client and server.
+   */
+  Set<String> deleteAll(Collection<String> keys) throws IOException;
+
+  /**
+   * Method that lists the key-value pairs whose keys are in a range, in key order. Pairs are
+   * fetched a page at a time with SCAN requests as the iterator advances, so the server must run
+   * with --sorted-index=true.
+   *
+   * @param start the first key of the range, inclusive.
+   * @param end   the end of the range, exclusive.
+   * @return an iterator over the pairs, which throws UncheckedIOException in case of errors
+   *     during the communication between the client and server.
+   */
+  Iterator<Map.Entry<String, String>> scan(String start, String end);
+
+  /**
+   * Method that lists the key-value pairs whose keys start with a prefix, in key order, fetching
+   * them a page at a time with PREFIX requests like scan does.
+   *
+   * @param prefix the prefix of the keys.
+   * @return an iterator over the pairs, which throws UncheckedIOException in case of errors
+   *     during the communication between the client and server.
+   */
+  Iterator<Map.Entry<String, String>> prefix(String prefix);
 }
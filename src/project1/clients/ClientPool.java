@@ -0,0 +1,354 @@
+package project1.clients;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import project1.Command;
+import project1.Options;
+import project1.Request;
+
+/**
+ * Class for a client that many threads can share, which sends their requests over a pool of
+ * --pool-size connections to the same server (default 4) instead of each thread opening its own.
+ *
+ * <p>Connections that can have many requests in flight, i.e., TCP with --pipelined=true or
+ * --binary=true, are shared by every thread at once and requests are spread across them in turn.
+ * Other connections, i.e., UDP and plain TCP, serve one request at a time, so a thread borrows an
+ * idle one for each request and waits up to --pool-wait milli-sec (default 5000) for one to be
+ * returned. Either way serveRequestsAsync never blocks the calling thread: requests on borrowed
+ * connections, and connecting a shared one, run on threads of the pool.
+ *
+ * <p>A connection that fails, or that the server closed, is closed and replaced by a new one the
+ * next time it is needed. A request is sent again once on another connection if it never left,
+ * i.e., no connection could be opened for it, or if it only reads (eg: GET, MGET or SCAN) and
+ * failed for any reason other than a timeout. Writes that may have reached the server are not
+ * sent again, since a PUTNX or MDELETE would then report the outcome of its own first attempt.
+ * Borrowed connections that sat idle for longer than --health-check-interval milli-sec (default
+ * 30000) are checked with a cheap request that always succeeds before they are handed out.
+ */
+public final class ClientPool extends AbstractClient {
+  private static final String HEALTH_CHECK = "MGET\tclient-pool-health-check";
+
+  /**
+   * Interface for opening another connection to the server.
+   */
+  interface Connector {
+    AbstractClient connect() throws IOException;
+  }
+
+  private final String transport;
+  private final Connector connector;
+  private final Slot[] slots;
+  private final BlockingQueue<Slot> idle;
+  private final AtomicInteger next;
+  private final long waitMillis;
+  private final long healthCheckMillis;
+  private final boolean multiplexed;
+  private final int maxRequestSize;
+  // run the requests of borrowed connections, or open the shared ones.
+  private final ExecutorService requestWorkers;
+
+  private ClientPool(String transport, Connector connector, Options options) throws IOException {
+    this.transport = transport;
+    this.connector = connector;
+    int size = options.getInt("pool-size", 4);
+    if (size < 1) {
+      throw new IllegalArgumentException("Invalid pool size. Must be at least 1.");
+    }
+    this.waitMillis = options.getLong("pool-wait", 5000);
+    this.healthCheckMillis = options.getLong("health-check-interval", 30000);
+    if (waitMillis < 0 || healthCheckMillis < 0) {
+      throw new IllegalArgumentException("Invalid pool wait or health check interval. Must be at least 0.");
+    }
+
+    this.slots = new Slot[size];
+    this.idle = new ArrayBlockingQueue<>(size);
+    for (int i = 0; i < size; i++) {
+      slots[i] = new Slot();
+      idle.add(slots[i]);
+    }
+    this.next = new AtomicInteger();
+
+    // the first connection is opened right away so that an unreachable server is noticed here.
+    AbstractClient first = connector.connect();
+    slots[0].client = first;
+    this.multiplexed = first.isMultiplexed();
+    this.maxRequestSize = first.maxRequestSize();
+    this.requestWorkers = Executors.newFixedThreadPool(size, r -> {
+      Thread t = new Thread(r, "client-pool");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Creates a pool of TCP connections to a server.
+   *
+   * @param name    host name
+   * @param port    destination port number
+   * @param timeout time limit in milli-sec to wait for the response to a request.
+   * @param options settings for the pool (eg: --pool-size=8) and for each of its connections
+   *                (eg: --pipelined=true).
+   * @return the pool, with one connection already open.
+   * @throws IOException in case of errors while opening the first connection.
+   */
+  public static ClientPool tcp(String name, int port, int timeout, Options options) throws IOException {
+    return new ClientPool("tcp", () -> new TCPClient(name, port, timeout, options), options);
+  }
+
+  /**
+   * Creates a pool of UDP sockets sending to a server.
+   *
+   * @param name    host name
+   * @param port    destination port number
+   * @param timeout time limit in milli-sec to wait for the response to a request.
+   * @param options settings for the pool (eg: --pool-size=8) and for each of its sockets
+   *                (eg: --reliable=true).
+   * @return the pool.
+   * @throws IOException in case of errors while opening the first socket.
+   */
+  public static ClientPool udp(String name, int port, int timeout, Options options) throws IOException {
+    return new ClientPool("udp", () -> new UDPClient(name, port, timeout, options), options);
+  }
+
+  @Override
+  public CompletableFuture<String> serveRequestsAsync(String request) {
+    if (!multiplexed) {
+      return CompletableFuture.supplyAsync(() -> {
+        try {
+          return handleRequestsAndResponses(request);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }, requestWorkers);
+    }
+
+    Slot slot = slots[Math.floorMod(next.getAndIncrement(), slots.length)];
+    AbstractClient client = slot.connected();
+    if (client != null) {
+      return send(slot, client, request);
+    }
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return slot.connect();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, requestWorkers).thenCompose(connected -> send(slot, connected, request));
+  }
+
+  private static CompletableFuture<String> send(Slot slot, AbstractClient client, String request) {
+    return client.serveRequestsAsync(request).whenComplete((res, e) -> {
+      if (e != null && !(unwrap(e) instanceof TimeoutException)) {
+        slot.discard(client);
+      }
+    });
+  }
+
+  @Override
+  protected String handleRequestsAndResponses(String request) throws IOException {
+    return send(request, true);
+  }
+
+  /**
+   * Sends a request on a connection of the pool and waits for its response.
+   *
+   * @param request the request to be sent to the server.
+   * @param retry   whether to send the request again on a new connection if it failed in a way
+   *                that is safe to retry (see mayRetry).
+   * @return the response sent back by the server.
+   * @throws IOException in case the request failed, or no connection became free in time.
+   */
+  private String send(String request, boolean retry) throws IOException {
+    if (multiplexed) {
+      try {
+        return serveRequestsAsync(request).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(e.getMessage());
+      } catch (ExecutionException e) {
+        Throwable cause = unwrap(e);
+        if (cause instanceof TimeoutException) {
+          throw new SocketTimeoutException("Read timed out");
+        }
+        if (retry && mayRetry(request, cause)) {
+          return send(request, false);
+        }
+        throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+      }
+    }
+
+    Slot slot = borrow();
+    IOException failure;
+    try {
+      AbstractClient client = slot.connect();
+      try {
+        return client.exchange(request);
+      } catch (IOException e) {
+        // even after a timeout the response may still arrive and be taken for the next one.
+        slot.discard(client);
+        failure = e;
+      }
+    } catch (NotSentException e) {
+      failure = e;
+    } finally {
+      slot.lastUsedMillis = System.currentTimeMillis();
+      idle.add(slot);
+    }
+    if (retry && mayRetry(request, failure)) {
+      return send(request, false);
+    }
+    throw failure;
+  }
+
+  /**
+   * Returns whether a failed request can be sent again without the risk of applying it twice,
+   * i.e., it never left because no connection could be opened, or it only reads and did not
+   * time out.
+   */
+  private static boolean mayRetry(String request, Throwable failure) {
+    if (failure instanceof NotSentException) {
+      return true;
+    }
+    if (failure instanceof SocketTimeoutException || failure instanceof TimeoutException) {
+      return false;
+    }
+    Command command = Request.parse(request).getCommand();
+    if (command == null) {
+      return false;
+    }
+    switch (command) {
+      case GET:
+      case MGET:
+      case TTL:
+      case SCAN:
+      case PREFIX:
+      case STATS:
+        return true;
+
+      default:
+        return false;
+    }
+  }
+
+  private Slot borrow() throws IOException {
+    Slot slot;
+    try {
+      slot = idle.poll(waitMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    }
+    if (slot == null) {
+      throw new IOException("No connection of the pool became free within " + waitMillis + " milli-sec");
+    }
+
+    AbstractClient client = slot.client;
+    if (client != null && System.currentTimeMillis() - slot.lastUsedMillis > healthCheckMillis) {
+      try {
+        client.handleRequestsAndResponses(HEALTH_CHECK);
+      } catch (IOException e) {
+        slot.discard(client);
+      }
+    }
+    return slot;
+  }
+
+  private static Throwable unwrap(Throwable e) {
+    while ((e instanceof CompletionException || e instanceof ExecutionException || e instanceof UncheckedIOException)
+            && e.getCause() != null) {
+      e = e.getCause();
+    }
+    return e;
+  }
+
+  @Override
+  protected int maxRequestSize() {
+    return maxRequestSize;
+  }
+
+  @Override
+  protected boolean isMultiplexed() {
+    return true;
+  }
+
+  @Override
+  protected void closeEverything() {
+    requestWorkers.shutdownNow();
+    for (Slot slot : slots) {
+      synchronized (slot) {
+        if (slot.client != null) {
+          slot.client.close();
+          slot.client = null;
+        }
+      }
+    }
+  }
+
+  @Override
+  protected Client getClientInstance(String name, int port, int timeout, Options options) throws IOException {
+    return transport.equals("tcp") ? tcp(name, port, timeout, options) : udp(name, port, timeout, options);
+  }
+
+  /**
+   * Class for a place in the pool, which holds a connection once one has been opened and until
+   * it fails.
+   */
+  private final class Slot {
+    private AbstractClient client;
+    private volatile long lastUsedMillis = System.currentTimeMillis();
+
+    /**
+     * Returns the connection of the slot, or null if a new one has to be opened first.
+     */
+    private synchronized AbstractClient connected() {
+      return client == null || client.isBroken() ? null : client;
+    }
+
+    private synchronized AbstractClient connect() throws IOException {
+      if (client != null && client.isBroken()) {
+        client.close();
+        client = null;
+      }
+      if (client == null) {
+        try {
+          client = connector.connect();
+        } catch (IOException e) {
+          throw new NotSentException(e);
+        }
+      }
+      return client;
+    }
+
+    private synchronized void discard(AbstractClient failed) {
+      if (client == failed) {
+        client = null;
+        failed.close();
+      }
+    }
+  }
+
+  /**
+   * Exception for a request that failed before it was sent, because no connection could be
+   * opened for it.
+   */
+  private static final class NotSentException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private NotSentException(IOException cause) {
+      super(cause.getMessage(), cause);
+    }
+  }
+}
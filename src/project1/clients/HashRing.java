@@ -0,0 +1,253 @@
+package project1.clients;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Class for a consistent-hash ring that decides which of several servers owns a key. Every
+ * server is placed on the ring at many points, its virtual nodes, and owns the keys that hash
+ * to the arc ending at each of them. Adding or removing a server only moves the keys of the arcs
+ * it gains or loses, about 1/N of all keys, instead of nearly all of them like hash modulo N.
+ *
+ * <p>Rings are read from a file with one server per line of the form host:port, optionally
+ * followed by a weight (default 1) that scales its number of points, and an optional line of the
+ * form vnodes N setting the points per unit of weight (default 160). Blank lines and lines
+ * starting with # are ignored, eg:
+ *
+ * <pre>
+ * vnodes 160
+ * localhost:8081
+ * localhost:8082
+ * localhost:8083 2
+ * </pre>
+ *
+ * <p>Points depend only on the host:port of a server and keys only on their characters, so every
+ * client reading the same file routes every key the same way.
+ */
+public final class HashRing {
+  public static final int DEFAULT_VNODES = 160;
+
+  private final List<Node> nodes;
+  private final long[] points;
+  private final int[] owners;
+
+  /**
+   * Constructor to create a ring from its servers.
+   *
+   * @param nodes  the servers, at least one and each at most once.
+   * @param vnodes the points on the ring per unit of weight of a server.
+   * @throws IllegalArgumentException if there are no servers, one is listed twice, or vnodes is
+   *                                  not positive.
+   */
+  public HashRing(List<Node> nodes, int vnodes) throws IllegalArgumentException {
+    if (nodes.isEmpty()) {
+      throw new IllegalArgumentException("Invalid ring. Must have at least 1 node.");
+    }
+    if (vnodes < 1) {
+      throw new IllegalArgumentException("Invalid vnodes. Must be at least 1.");
+    }
+    if (nodes.stream().distinct().count() != nodes.size()) {
+      throw new IllegalArgumentException("Invalid ring. Every node must be listed only once.");
+    }
+    this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+
+    List<long[]> placed = new ArrayList<>();
+    for (int i = 0; i < nodes.size(); i++) {
+      Node node = nodes.get(i);
+      for (int v = 0; v < vnodes * node.weight; v++) {
+        placed.add(new long[] {hash(node + "#" + v), i});
+      }
+    }
+    // ties between points are broken by the name of the node, so they do not depend on the
+    // order the file lists the nodes in.
+    placed.sort(Comparator.<long[]>comparingLong(p -> p[0])
+            .thenComparing(p -> nodes.get((int) p[1]).toString()));
+    this.points = new long[placed.size()];
+    this.owners = new int[placed.size()];
+    for (int i = 0; i < placed.size(); i++) {
+      points[i] = placed.get(i)[0];
+      owners[i] = (int) placed.get(i)[1];
+    }
+  }
+
+  /**
+   * Reads a ring from a file, see the class comment for its format.
+   *
+   * @param file the ring file.
+   * @return the ring.
+   * @throws IOException              in case of errors while reading the file.
+   * @throws IllegalArgumentException if the file is not a valid ring.
+   */
+  public static HashRing read(Path file) throws IOException, IllegalArgumentException {
+    List<Node> nodes = new ArrayList<>();
+    int vnodes = DEFAULT_VNODES;
+    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] words = line.split("\\s+");
+      try {
+        if (words[0].equals("vnodes") && words.length == 2) {
+          vnodes = Integer.parseInt(words[1]);
+        } else if (words.length <= 2) {
+          nodes.add(Node.parse(words[0], words.length == 2 ? Integer.parseInt(words[1]) : 1));
+        } else {
+          throw new IllegalArgumentException("Must be host:port [weight] or vnodes N.");
+        }
+      } catch (IllegalArgumentException e) {
+        // NumberFormatException included.
+        throw new IllegalArgumentException("Invalid ring file " + file + ", line " + (i + 1) + ". " + e.getMessage());
+      }
+    }
+    return new HashRing(nodes, vnodes);
+  }
+
+  /**
+   * Returns the servers of the ring, in the order they were listed.
+   *
+   * @return the servers.
+   */
+  public List<Node> getNodes() {
+    return nodes;
+  }
+
+  /**
+   * Returns the server that owns a key.
+   *
+   * @param key the key.
+   * @return the server.
+   */
+  public Node nodeFor(String key) {
+    return nodes.get(indexFor(key));
+  }
+
+  /**
+   * Returns the position in getNodes of the server that owns a key.
+   *
+   * @param key the key.
+   * @return the position of the server.
+   */
+  public int indexFor(String key) {
+    int i = Arrays.binarySearch(points, hash(key));
+    if (i < 0) {
+      i = -i - 1;
+    }
+    // keys past the last point belong to the first one, which closes the ring.
+    return owners[i == points.length ? 0 : i];
+  }
+
+  /**
+   * Returns the fraction of all possible keys a server owns.
+   *
+   * @param node the server.
+   * @return the fraction, 0 if the server is not in the ring.
+   */
+  public double share(Node node) {
+    int index = nodes.indexOf(node);
+    if (points.length == 1) {
+      return index == owners[0] ? 1 : 0;
+    }
+    double owned = 0;
+    for (int i = 0; i < points.length; i++) {
+      if (owners[i] != index) {
+        continue;
+      }
+      // the arc ending at a point starts right after the previous one. For the first point the
+      // subtraction wraps around, which is exactly the arc that closes the ring.
+      long arc = points[i] - points[i == 0 ? points.length - 1 : i - 1];
+      owned += arc >= 0 ? arc : arc + 0x1p64;
+    }
+    return owned / 0x1p64;
+  }
+
+  /**
+   * Hashes a String to 64 bits: FNV-1a over its characters, followed by the final mix of
+   * MurmurHash3, since FNV-1a alone leaves keys that differ only at the end close together.
+   */
+  static long hash(String s) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < s.length(); i++) {
+      h ^= s.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Class for a server of the ring.
+   */
+  public static final class Node {
+    private final String host;
+    private final int port;
+    private final int weight;
+
+    /**
+     * Constructor to create a server.
+     *
+     * @param host   host name.
+     * @param port   port number.
+     * @param weight how many times the default number of points the server gets.
+     */
+    public Node(String host, int port, int weight) {
+      if (port < 0 || port > 65535) {
+        throw new IllegalArgumentException("Invalid port number. Must be in range 0-65535.");
+      }
+      if (weight < 1) {
+        throw new IllegalArgumentException("Invalid weight. Must be at least 1.");
+      }
+      this.host = host;
+      this.port = port;
+      this.weight = weight;
+    }
+
+    private static Node parse(String address, int weight) {
+      int colon = address.lastIndexOf(':');
+      if (colon < 1) {
+        throw new IllegalArgumentException("Must be host:port [weight] or vnodes N.");
+      }
+      return new Node(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)), weight);
+    }
+
+    public String getHost() {
+      return host;
+    }
+
+    public int getPort() {
+      return port;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Node)) {
+        return false;
+      }
+      Node other = (Node) o;
+      return host.equals(other.host) && port == other.port;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(host, port);
+    }
+
+    @Override
+    public String toString() {
+      return host + ":" + port;
+    }
+  }
+}
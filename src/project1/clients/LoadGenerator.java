@@ -0,0 +1,376 @@
+package project1.clients;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import project1.LatencyHistogram;
+import project1.Options;
+
+/**
+ * Class that puts a server under load instead of sending requests typed by the user, and reports
+ * the throughput and latency percentiles it saw. Requests are GETs, PUTs and DELETEs in the
+ * proportions of --mix (default 90:10:0), on keys picked from --keys keys (default 100000) either
+ * uniformly or following a Zipfian distribution where a few keys get most of the requests
+ * (--distribution, default zipfian), with values of --value-size bytes (default 100, or a range
+ * like 64-1024). Each of --connections connections (default 1) has its own client and thread.
+ *
+ * <p>With --load=closed every connection sends its next request as soon as it has the response
+ * to the previous one, which measures the throughput the server can sustain. With --load=open
+ * requests are sent at a fixed --rate per second (default 1000) spread across the connections,
+ * whether or not the server keeps up. A request is then timed from when it should have been sent
+ * rather than from when it was, so that a server that stalls is charged for every request that
+ * queued up behind the stall, which closed loops and naive open loops fail to count (known as
+ * coordinated omission). The time the server took to answer once the request was sent is
+ * reported separately as the service time.
+ */
+final class LoadGenerator {
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+  /**
+   * Interface for opening another connection to the server.
+   */
+  interface Connector {
+    AbstractClient connect() throws IOException;
+  }
+
+  private final Connector connector;
+  private final boolean open;
+  private final int connections;
+  private final long rate;
+  private final long durationNanos;
+  private final long warmupNanos;
+  private final int keys;
+  private final double zipfExponent;
+  private final int minValueSize;
+  private final int maxValueSize;
+  private final int getPercent;
+  private final int putPercent;
+  private final boolean preload;
+
+  /**
+   * Constructor to create a load generator from the options of a client.
+   *
+   * @param options   the options the client was started with.
+   * @param connector opens a connection to the server for every connection of the load.
+   * @throws IllegalArgumentException in case of an invalid option.
+   */
+  LoadGenerator(Options options, Connector connector) throws IllegalArgumentException {
+    this.connector = connector;
+    String load = options.getString("load", "closed");
+    if (!load.equals("closed") && !load.equals("open")) {
+      throw new IllegalArgumentException("Invalid load. Must be closed or open.");
+    }
+    this.open = load.equals("open");
+    this.connections = options.getInt("connections", 1);
+    if (connections < 1) {
+      throw new IllegalArgumentException("Invalid connections. Must be at least 1.");
+    }
+    this.rate = options.getLong("rate", 1000);
+    if (rate < 1) {
+      throw new IllegalArgumentException("Invalid rate. Must be at least 1 request per second.");
+    }
+    long duration = options.getLong("duration", 30);
+    long warmup = options.getLong("warmup", 0);
+    if (duration < 1 || warmup < 0) {
+      throw new IllegalArgumentException("Invalid duration. Must be at least 1 second, after a warmup of 0 or more.");
+    }
+    this.durationNanos = TimeUnit.SECONDS.toNanos(duration);
+    this.warmupNanos = TimeUnit.SECONDS.toNanos(warmup);
+    this.keys = options.getInt("keys", 100000);
+    if (keys < 1) {
+      throw new IllegalArgumentException("Invalid keys. Must be at least 1.");
+    }
+
+    String distribution = options.getString("distribution", "zipfian");
+    if (distribution.equals("uniform")) {
+      this.zipfExponent = 0;
+    } else if (distribution.equals("zipfian")) {
+      this.zipfExponent = Double.parseDouble(options.getString("zipf-exponent", "0.99"));
+      if (!(zipfExponent > 0 && zipfExponent < 1)) {
+        throw new IllegalArgumentException("Invalid zipf exponent. Must be between 0 and 1.");
+      }
+    } else {
+      throw new IllegalArgumentException("Invalid distribution. Must be uniform or zipfian.");
+    }
+
+    String[] sizes = options.getString("value-size", "100").split("-");
+    try {
+      this.minValueSize = Integer.parseInt(sizes[0]);
+      this.maxValueSize = Integer.parseInt(sizes[sizes.length - 1]);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid value size. Must be a number of bytes or a range like 64-1024.");
+    }
+    if (sizes.length > 2 || minValueSize < 1 || maxValueSize < minValueSize) {
+      throw new IllegalArgumentException("Invalid value size. Must be a number of bytes or a range like 64-1024.");
+    }
+
+    String[] mix = options.getString("mix", "90:10:0").split(":");
+    try {
+      if (mix.length != 3) {
+        throw new NumberFormatException();
+      }
+      this.getPercent = Integer.parseInt(mix[0]);
+      this.putPercent = Integer.parseInt(mix[1]);
+      if (getPercent < 0 || putPercent < 0 || Integer.parseInt(mix[2]) < 0
+              || getPercent + putPercent + Integer.parseInt(mix[2]) != 100) {
+        throw new NumberFormatException();
+      }
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid mix. Must be the percentages of GET:PUT:DELETE adding up to 100.");
+    }
+    this.preload = options.getBoolean("preload", false);
+  }
+
+  /**
+   * Opens the connections, runs the load for the warmup and the duration, and prints what was
+   * measured after the warmup.
+   *
+   * @throws IOException in case of errors while connecting to the server or preloading keys.
+   */
+  void run() throws IOException {
+    List<AbstractClient> clients = new ArrayList<>();
+    try {
+      for (int i = 0; i < connections; i++) {
+        clients.add(connector.connect());
+      }
+      if (preload) {
+        preload(clients.get(0));
+      }
+
+      System.out.print(describe() + "\n");
+      Worker[] workers = new Worker[connections];
+      long startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+      for (int i = 0; i < connections; i++) {
+        workers[i] = new Worker(i, clients.get(i), startNanos);
+        workers[i].thread.start();
+      }
+      for (Worker worker : workers) {
+        try {
+          worker.thread.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      System.out.print(report(workers));
+    } finally {
+      for (AbstractClient client : clients) {
+        client.close();
+      }
+    }
+  }
+
+  private void preload(AbstractClient client) throws IOException {
+    SplittableRandom random = new SplittableRandom(0);
+    Map<String, String> batch = new HashMap<>();
+    for (int i = 0; i < keys; i++) {
+      batch.put(key(i), value(random));
+      if (batch.size() == AbstractClient.MAX_BATCH || i == keys - 1) {
+        client.putAll(batch);
+        batch.clear();
+      }
+    }
+  }
+
+  private String describe() {
+    String loop = open ? "Open loop at " + rate + " requests/sec" : "Closed loop";
+    String values = minValueSize == maxValueSize ? minValueSize + " bytes" : minValueSize + "-" + maxValueSize + " bytes";
+    return String.format(Locale.ROOT, "%s over %d connections for %d s after %d s of warmup: %s keys out of %d, "
+                    + "values of %s, %d%% GET %d%% PUT %d%% DELETE", loop, connections,
+            TimeUnit.NANOSECONDS.toSeconds(durationNanos), TimeUnit.NANOSECONDS.toSeconds(warmupNanos),
+            zipfExponent > 0 ? "zipfian" : "uniform", keys, values, getPercent, putPercent,
+            100 - getPercent - putPercent);
+  }
+
+  private String report(Worker[] workers) {
+    long[] latency = LatencyHistogram.newMerged();
+    long[] service = LatencyHistogram.newMerged();
+    long failed = 0;
+    long late = 0;
+    long finished = 0;
+    for (Worker worker : workers) {
+      worker.latency.addTo(latency);
+      worker.service.addTo(service);
+      failed += worker.failed;
+      late += worker.late;
+      finished = Math.max(finished, worker.finishedNanos);
+    }
+
+    long completed = LatencyHistogram.count(latency);
+    // an open loop that fell behind keeps sending the requests that were due past the end.
+    double seconds = Math.max(durationNanos, finished - workers[0].startNanos - warmupNanos) / 1e9;
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(Locale.ROOT, "Completed %d requests (%d failed) in %.1f s: %.0f requests/sec%n",
+            completed, failed, seconds, completed / seconds));
+    if (open) {
+      sb.append(percentiles("Latency from when requests were due", latency));
+      sb.append(percentiles("Service time", service));
+      if (late > 0) {
+        sb.append(String.format(Locale.ROOT, "%d requests were sent late because the server did not keep up%n", late));
+      }
+    } else {
+      sb.append(percentiles("Latency", latency));
+    }
+    return sb.toString();
+  }
+
+  private static String percentiles(String name, long[] merged) {
+    StringBuilder sb = new StringBuilder(name).append(" (micro-sec):");
+    for (int i = 0; i < QUANTILES.length; i++) {
+      sb.append(String.format(Locale.ROOT, " %s=%.1f", QUANTILE_NAMES[i],
+              LatencyHistogram.valueAt(merged, QUANTILES[i]) / 1000.0));
+    }
+    long count = LatencyHistogram.count(merged);
+    sb.append(String.format(Locale.ROOT, " max=%.1f mean=%.1f%n", LatencyHistogram.max(merged) / 1000.0,
+            count == 0 ? 0 : LatencyHistogram.sum(merged) / 1000.0 / count));
+    return sb.toString();
+  }
+
+  private static String key(long rank) {
+    return "key" + rank;
+  }
+
+  private String value(SplittableRandom random) {
+    int size = minValueSize == maxValueSize ? minValueSize : random.nextInt(minValueSize, maxValueSize + 1);
+    char[] chars = new char[size];
+    for (int i = 0; i < size; i++) {
+      chars[i] = (char) ('a' + random.nextInt(26));
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Class for a single connection of the load, which sends requests on its own thread and
+   * records their latencies in its own histograms.
+   */
+  private final class Worker implements Runnable {
+    private final int index;
+    private final AbstractClient client;
+    private final long startNanos;
+    private final Thread thread;
+    private final SplittableRandom random;
+    private final Zipfian zipfian;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram service = new LatencyHistogram();
+    // only read once the thread of the worker has finished.
+    private long failed;
+    private long late;
+    private long finishedNanos;
+
+    private Worker(int index, AbstractClient client, long startNanos) {
+      this.index = index;
+      this.client = client;
+      this.startNanos = startNanos;
+      this.thread = new Thread(this, "load-" + index);
+      this.random = new SplittableRandom(index);
+      this.zipfian = zipfExponent > 0 ? Zipfian.of(keys, zipfExponent) : null;
+    }
+
+    @Override
+    public void run() {
+      long measureFrom = startNanos + warmupNanos;
+      long end = measureFrom + durationNanos;
+      // in an open loop the connections take turns, so together they send a request every period.
+      double period = 1e9 / rate * connections;
+      long sent = 0;
+      while (true) {
+        long due = open ? startNanos + (long) ((sent + (double) index / connections) * period) : System.nanoTime();
+        if (due >= end) {
+          finishedNanos = System.nanoTime();
+          return;
+        }
+        long now = System.nanoTime();
+        while (open && now < due) {
+          LockSupport.parkNanos(due - now);
+          now = System.nanoTime();
+        }
+        if (open && now - due > TimeUnit.MILLISECONDS.toNanos(1) && due >= measureFrom) {
+          late++;
+        }
+
+        String request = nextRequest();
+        long sentAt = System.nanoTime();
+        try {
+          client.exchange(request);
+        } catch (IOException e) {
+          if (due >= measureFrom) {
+            failed++;
+          }
+        }
+        long done = System.nanoTime();
+        if (due >= measureFrom) {
+          latency.record(done - (open ? due : sentAt));
+          service.record(done - sentAt);
+        }
+        sent++;
+      }
+    }
+
+    private String nextRequest() {
+      String key = key(zipfian != null ? zipfian.next(random) : random.nextInt(keys));
+      int op = random.nextInt(100);
+      if (op < getPercent) {
+        return "GET\t" + key;
+      } else if (op < getPercent + putPercent) {
+        return "PUT\t" + key + "\t" + value(random);
+      }
+      return "DELETE\t" + key;
+    }
+  }
+
+  /**
+   * Class that picks ranks from 0 to n - 1 where rank i is picked with a probability proportional
+   * to 1 / (i + 1)^theta, using the method of Gray et al. in "Quickly Generating Billion-Record
+   * Synthetic Databases" that takes constant time once the zeta constant of n is computed.
+   */
+  private static final class Zipfian {
+    // the zeta constant takes a pass over every key, so it is only computed once per key count.
+    private static final Map<String, Zipfian> CACHE = new HashMap<>();
+
+    private final long n;
+    private final double theta;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+
+    private Zipfian(long n, double theta) {
+      this.n = n;
+      this.theta = theta;
+      this.zetaN = zeta(n, theta);
+      this.alpha = 1 / (1 - theta);
+      this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+    }
+
+    private static synchronized Zipfian of(long n, double theta) {
+      return CACHE.computeIfAbsent(n + ":" + theta, k -> new Zipfian(n, theta));
+    }
+
+    private static double zeta(long n, double theta) {
+      double sum = 0;
+      for (long i = 1; i <= n; i++) {
+        sum += 1 / Math.pow(i, theta);
+      }
+      return sum;
+    }
+
+    private long next(SplittableRandom random) {
+      double u = random.nextDouble();
+      double uz = u * zetaN;
+      if (uz < 1) {
+        return 0;
+      }
+      if (uz < 1 + Math.pow(0.5, theta)) {
+        return 1;
+      }
+      return Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+    }
+  }
+}
@@ -0,0 +1,259 @@
+package project1.clients;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import project1.Command;
+import project1.Protocol;
+import project1.Request;
+
+/**
+ * Class for a cache of GET responses kept by a client, so that reading a key it read recently
+ * takes a local lookup instead of a round trip. At most --near-cache entries are kept, evicting
+ * the least recently used, and each for at most --near-cache-ttl milli-sec (default 10000).
+ *
+ * <p>Over a pipelined or binary TCP connection the client sends TRACK, after which the server
+ * pushes INVALIDATE \t key whenever a key the client read changes, so the cache never serves a
+ * stale value for longer than the push takes to arrive. Over UDP nothing is pushed and the time
+ * to live alone bounds how stale a value may be. Writes sent by the client itself always drop
+ * their keys.
+ *
+ * <p>A GET that misses reserves its key before it is sent, and the response is only cached if
+ * the reservation is still there when it arrives. An invalidation arriving in between removes
+ * the reservation, so a response that may have been read before the change is never cached.
+ *
+ * <p>A server that falls behind pushing invalidations to the client stops tracking it and pushes
+ * INVALIDATE_ALL instead. The cache is then suspended, i.e., emptied and not filled again, until
+ * the server has agreed to TRACK once more.
+ */
+final class NearCache {
+  /**
+   * Interface for sending a request and waiting for its response.
+   */
+  interface Sender {
+    String send(String request) throws IOException;
+  }
+
+  private final Map<String, Object> entries;
+  private final long ttlMillis;
+  private long hits;
+  private long misses;
+  private long epoch;
+  private boolean suspended;
+
+  /**
+   * Constructor to create an empty cache.
+   *
+   * @param maxEntries most GET responses kept at once.
+   * @param ttlMillis  milli-sec after which a response is no longer used.
+   */
+  NearCache(int maxEntries, long ttlMillis) {
+    if (maxEntries < 1 || ttlMillis < 1) {
+      throw new IllegalArgumentException("Invalid near cache. Must keep at least 1 entry for at least 1 milli-sec.");
+    }
+    this.ttlMillis = ttlMillis;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Sends a request unless it is a GET whose response is cached, and keeps the cache up to date
+   * with what the request reads or writes.
+   *
+   * @param request the request to be sent to the server.
+   * @param sender  sends the request if needed.
+   * @return the response, from the cache or from the server.
+   * @throws IOException in case of errors while sending the request.
+   */
+  String exchange(String request, Sender sender) throws IOException {
+    Request req = Request.parse(request);
+    String key = cacheableKey(req);
+    if (key == null) {
+      invalidateWrites(req);
+      String res = sender.send(request);
+      invalidateWrites(req);
+      return res;
+    }
+
+    String cached = lookup(key);
+    if (cached != null) {
+      return cached;
+    }
+    Reservation reservation = reserve(key);
+    String res = sender.send(request);
+    fill(key, reservation, res);
+    return res;
+  }
+
+  /**
+   * Same as exchange, for requests sent without waiting for their response.
+   *
+   * @param request the request to be sent to the server.
+   * @param sender  sends the request if needed.
+   * @return the response, from the cache or from the server.
+   */
+  CompletableFuture<String> exchangeAsync(String request, Function<String, CompletableFuture<String>> sender) {
+    Request req = Request.parse(request);
+    String key = cacheableKey(req);
+    if (key == null) {
+      invalidateWrites(req);
+      return sender.apply(request).whenComplete((res, e) -> invalidateWrites(req));
+    }
+
+    String cached = lookup(key);
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cached);
+    }
+    Reservation reservation = reserve(key);
+    return sender.apply(request).whenComplete((res, e) -> {
+      if (e == null) {
+        fill(key, reservation, res);
+      } else {
+        invalidate(key);
+      }
+    });
+  }
+
+  /**
+   * Handles a message pushed by the server, if it is an invalidation.
+   *
+   * @param message the message as received.
+   * @return true if it was an invalidation, false otherwise.
+   */
+  boolean handlePush(String message) {
+    if (!message.startsWith(Protocol.INVALIDATE)) {
+      return false;
+    }
+    invalidate(message.substring(Protocol.INVALIDATE.length()));
+    return true;
+  }
+
+  /**
+   * Drops every cached response and stops caching new ones until resume is called with the
+   * returned epoch, eg: while the server is asked to TRACK again.
+   *
+   * @return the epoch to resume.
+   */
+  synchronized long suspend() {
+    entries.clear();
+    suspended = true;
+    return ++epoch;
+  }
+
+  /**
+   * Starts caching again, unless the cache was suspended again since.
+   *
+   * @param epoch the epoch returned by suspend.
+   */
+  synchronized void resume(long epoch) {
+    if (this.epoch == epoch) {
+      suspended = false;
+    }
+  }
+
+  /**
+   * Drops every cached response, eg: when the connection carrying invalidations is lost.
+   */
+  synchronized void clear() {
+    entries.clear();
+  }
+
+  synchronized long getHits() {
+    return hits;
+  }
+
+  synchronized long getMisses() {
+    return misses;
+  }
+
+  private static String cacheableKey(Request req) {
+    return req.getCommand() == Command.GET && req.size() == 2 ? req.get(1) : null;
+  }
+
+  private void invalidateWrites(Request req) {
+    Command command = req.getCommand();
+    if (command == null) {
+      return;
+    }
+    switch (command) {
+      case PUT:
+      case PUTEX:
+      case PUTNX:
+      case DELETE:
+        if (req.size() > 1) {
+          invalidate(req.get(1));
+        }
+        break;
+
+      case MDELETE:
+        for (int i = 1; i < req.size(); i++) {
+          invalidate(req.get(i));
+        }
+        break;
+
+      case MPUT:
+        for (int i = 1; i < req.size(); i += 2) {
+          invalidate(req.get(i));
+        }
+        break;
+
+      default:
+        break;
+    }
+  }
+
+  private synchronized String lookup(String key) {
+    Object entry = suspended ? null : entries.get(key);
+    if (entry instanceof Cached && ((Cached) entry).expiresMillis > System.currentTimeMillis()) {
+      hits++;
+      return ((Cached) entry).response;
+    }
+    misses++;
+    return null;
+  }
+
+  private synchronized Reservation reserve(String key) {
+    if (suspended) {
+      return null;
+    }
+    Reservation reservation = new Reservation();
+    entries.put(key, reservation);
+    return reservation;
+  }
+
+  private synchronized void fill(String key, Reservation reservation, String response) {
+    if (reservation != null && entries.get(key) == reservation) {
+      entries.put(key, new Cached(response, System.currentTimeMillis() + ttlMillis));
+    }
+  }
+
+  private synchronized void invalidate(String key) {
+    entries.remove(key);
+  }
+
+  /**
+   * Class that marks a key whose GET is on its way to the server.
+   */
+  private static final class Reservation {
+  }
+
+  /**
+   * Class that holds a cached GET response until it expires.
+   */
+  private static final class Cached {
+    private final String response;
+    private final long expiresMillis;
+
+    private Cached(String response, long expiresMillis) {
+      this.response = response;
+      this.expiresMillis = expiresMillis;
+    }
+  }
+}
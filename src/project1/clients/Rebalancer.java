@@ -0,0 +1,217 @@
+package project1.clients;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import project1.Options;
+import project1.Protocol;
+
+/**
+ * Class for the tool that moves keys between the servers of a sharded deployment when the ring
+ * changes, eg: after a server was added to or removed from the ring file. It walks every key of
+ * every server of the old ring with SCAN, so the servers must run with --sorted-index=true, and
+ * streams each key the new ring gives to another server over to it, a page of up to 1000 keys at
+ * a time: the pairs are stored on their new server with PUTNX, keeping the time keys that expire
+ * have left, and only then deleted from the old one.
+ *
+ * <p>Clients should switch to the new ring file right before rebalancing, so that their writes
+ * already go to the new servers. Since PUTNX only stores keys that do not exist yet, a key a
+ * client wrote to its new server, before or while it is being moved, is never overwritten by the
+ * older value. Deletes are not protected the same way: a client deleting a key that was not
+ * moved yet deletes nothing on its new server, and the key comes back once it is moved, so keys
+ * deleted while rebalancing should be deleted again once it is done. Keys not moved yet also
+ * read as missing until they are. Clients still on the old ring would write to servers keys were
+ * already moved away from, so those writes would be lost. With --dry-run=true keys are only
+ * counted.
+ */
+public final class Rebalancer {
+  private static final int PAGE = AbstractClient.MAX_BATCH;
+  // every key starts with a character above a space, since surrounding whitespace is trimmed.
+  private static final String FIRST_KEY = "!";
+  private static final String PAST_LAST_KEY = "\uffff";
+
+  private final HashRing from;
+  private final HashRing to;
+  private final boolean dryRun;
+  private final Map<HashRing.Node, AbstractClient> clients;
+  private final Map<String, Long> moved;
+
+  /**
+   * Constructor to create a rebalancer that connects to every server of both rings.
+   *
+   * @param from      the ring keys are currently placed by.
+   * @param to        the ring keys should be placed by.
+   * @param transport tcp or udp.
+   * @param timeout   time limit in milli-sec to wait for the response to a request.
+   * @param options   settings for the client of each server, and --dry-run.
+   * @throws IOException in case of errors while connecting to any of the servers.
+   */
+  Rebalancer(HashRing from, HashRing to, String transport, int timeout, Options options) throws IOException {
+    this.from = from;
+    this.to = to;
+    this.dryRun = options.getBoolean("dry-run", false);
+    this.clients = new LinkedHashMap<>();
+    this.moved = new LinkedHashMap<>();
+    Set<HashRing.Node> nodes = new LinkedHashSet<>(from.getNodes());
+    nodes.addAll(to.getNodes());
+    try {
+      for (HashRing.Node node : nodes) {
+        clients.put(node, ShardedClient.connect(transport, node, timeout, options));
+      }
+    } catch (IOException | RuntimeException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Moves every key whose server differs between the two rings, and prints how many keys went
+   * from which server to which.
+   *
+   * @throws IOException in case of errors while talking to any of the servers.
+   */
+  void run() throws IOException {
+    long startMillis = System.currentTimeMillis();
+    for (HashRing.Node node : to.getNodes()) {
+      System.out.printf("%s owns %.1f%% of the keys, was %.1f%%%n", node, 100 * to.share(node), 100 * from.share(node));
+    }
+
+    for (HashRing.Node source : from.getNodes()) {
+      AbstractClient client = clients.get(source);
+      Map<HashRing.Node, Map<String, String>> page = new LinkedHashMap<>();
+      int pending = 0;
+      try {
+        Iterator<Map.Entry<String, String>> pairs = client.scan(FIRST_KEY, PAST_LAST_KEY);
+        while (pairs.hasNext()) {
+          Map.Entry<String, String> pair = pairs.next();
+          HashRing.Node target = to.nodeFor(pair.getKey());
+          if (target.equals(source)) {
+            continue;
+          }
+          page.computeIfAbsent(target, n -> new LinkedHashMap<>()).put(pair.getKey(), pair.getValue());
+          if (++pending == PAGE) {
+            move(source, page);
+            page.clear();
+            pending = 0;
+          }
+        }
+      } catch (UncheckedIOException e) {
+        throw new IOException("Could not list the keys of " + source + ". " + e.getCause().getMessage(), e);
+      }
+      move(source, page);
+    }
+
+    moved.forEach((route, count) -> System.out.println((dryRun ? "Would move " : "Moved ") + count + " keys " + route));
+    if (moved.isEmpty()) {
+      System.out.println("No keys to move.");
+    }
+    System.out.println("Rebalancing took " + (System.currentTimeMillis() - startMillis) + " ms");
+  }
+
+  /**
+   * Copies a page of pairs to their new servers and then deletes them from their old one. Each
+   * key's time to live is read again right before it is copied, and keys that expired or were
+   * deleted in the meantime are skipped. Keys clients already wrote to the new server are left
+   * as they are there, and still deleted from the old one.
+   */
+  private void move(HashRing.Node source, Map<HashRing.Node, Map<String, String>> page) throws IOException {
+    for (Map.Entry<HashRing.Node, Map<String, String>> entry : page.entrySet()) {
+      HashRing.Node target = entry.getKey();
+      Map<String, String> pairs = entry.getValue();
+      moved.merge("from " + source + " to " + target, (long) pairs.size(), Long::sum);
+      if (dryRun) {
+        continue;
+      }
+
+      AbstractClient sourceClient = clients.get(source);
+      AbstractClient targetClient = clients.get(target);
+      List<String> keys = new ArrayList<>(pairs.keySet());
+      List<CompletableFuture<String>> ttls = new ArrayList<>();
+      for (String key : keys) {
+        ttls.add(sourceClient.serveRequestsAsync("TTL\t" + key));
+      }
+
+      List<String> copied = new ArrayList<>();
+      List<CompletableFuture<String>> puts = new ArrayList<>();
+      for (int i = 0; i < keys.size(); i++) {
+        String key = keys.get(i);
+        long ttl;
+        try {
+          ttl = Long.parseLong(join(ttls.get(i)).trim());
+        } catch (NumberFormatException e) {
+          // the key is gone, its TTL request was answered with an error.
+          continue;
+        }
+        if (ttl == 0) {
+          continue;
+        }
+        String put = "PUTNX\t" + key + "\t" + pairs.get(key) + (ttl > 0 ? "\t" + ttl : "");
+        puts.add(targetClient.serveRequestsAsync(put));
+        copied.add(key);
+      }
+      for (int i = 0; i < puts.size(); i++) {
+        String res = join(puts.get(i));
+        if (!res.equals(Protocol.STORED) && !res.equals(Protocol.EXISTS)) {
+          throw new IOException("Could not move " + copied.get(i) + " to " + target + ". " + res);
+        }
+      }
+      sourceClient.deleteAll(copied);
+    }
+  }
+
+  private static String join(CompletableFuture<String> future) throws IOException {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+  }
+
+  private void close() {
+    for (AbstractClient client : clients.values()) {
+      client.close();
+    }
+  }
+
+  /**
+   * Moves keys from the servers of one ring file to those of another, eg:
+   * java -cp TCPClient.jar project1.clients.Rebalancer old-ring.conf new-ring.conf --pipelined=true
+   *
+   * @param args the old and new ring files followed by the options.
+   */
+  public static void main(String[] args) {
+    try {
+      if (args.length < 2) {
+        throw new IllegalArgumentException("Invalid number of arguments. Should be at least 2.");
+      }
+      HashRing from = HashRing.read(Paths.get(args[0]));
+      HashRing to = HashRing.read(Paths.get(args[1]));
+      Options options = Options.parse(args, 2);
+      int timeout = options.getInt("timeout", 1000);
+      if (timeout < 1) {
+        throw new IllegalArgumentException("Invalid timeout. Must be at least 1 milli-sec.");
+      }
+
+      Rebalancer rebalancer = new Rebalancer(from, to, options.getString("transport", "tcp"), timeout, options);
+      try {
+        rebalancer.run();
+      } finally {
+        rebalancer.close();
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      System.out.println("[" + new Timestamp(System.currentTimeMillis()) + "] ERROR: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package project1.clients;
+
+/**
+ * Class that estimates how long to wait for a response before sending a request again, from
+ * the round-trip times measured so far. It follows the retransmission timer of TCP (RFC 6298):
+ * a smoothed round-trip time and its mean deviation are updated with every sample, and the
+ * timeout is the smoothed time plus four deviations. Samples must only be taken from requests
+ * that were answered on their first attempt, since the response to a request sent more than
+ * once cannot be matched to a particular attempt.
+ */
+final class RttEstimator {
+  private static final long MIN_TIMEOUT_MS = 10;
+
+  private final long initialTimeoutMs;
+  private final long maxTimeoutMs;
+  private double smoothedMs;
+  private double deviationMs;
+  private boolean sampled;
+
+  /**
+   * Constructor to create an estimator without any samples.
+   *
+   * @param initialTimeoutMs the timeout to use until the first sample is taken.
+   * @param maxTimeoutMs     the longest timeout ever returned, including after backing off.
+   */
+  RttEstimator(long initialTimeoutMs, long maxTimeoutMs) {
+    this.initialTimeoutMs = initialTimeoutMs;
+    this.maxTimeoutMs = maxTimeoutMs;
+  }
+
+  /**
+   * Adds a measured round-trip time.
+   *
+   * @param rttMs milli-sec between sending a request and receiving its response.
+   */
+  synchronized void sample(double rttMs) {
+    if (!sampled) {
+      smoothedMs = rttMs;
+      deviationMs = rttMs / 2;
+      sampled = true;
+      return;
+    }
+    deviationMs = 0.75 * deviationMs + 0.25 * Math.abs(smoothedMs - rttMs);
+    smoothedMs = 0.875 * smoothedMs + 0.125 * rttMs;
+  }
+
+  /**
+   * Returns how long to wait for the response to the first attempt of a request.
+   *
+   * @return the timeout in milli-sec.
+   */
+  synchronized long timeout() {
+    if (!sampled) {
+      return initialTimeoutMs;
+    }
+    long timeout = (long) Math.ceil(smoothedMs + 4 * deviationMs);
+    return Math.max(MIN_TIMEOUT_MS, Math.min(timeout, maxTimeoutMs));
+  }
+
+  /**
+   * Returns how long to wait for the next attempt after an attempt timed out, i.e., twice as
+   * long as before up to the maximum.
+   *
+   * @param timeoutMs the timeout of the attempt that timed out.
+   * @return the timeout in milli-sec.
+   */
+  long backoff(long timeoutMs) {
+    return Math.min(timeoutMs * 2, maxTimeoutMs);
+  }
+}
@@ -0,0 +1,374 @@
+package project1.clients;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import project1.Command;
+import project1.Options;
+import project1.Request;
+import project1.Results;
+
+/**
+ * Class for a client of a sharded deployment, where every server of a HashRing holds only the
+ * keys the ring gives it, so the data set and the load are spread across all of them. Requests
+ * on a single key go straight to the server that owns it. Batches are split into one request
+ * per server, sent at the same time, and their results put back in the order of the original
+ * request. SCAN and PREFIX ask every server for a page and merge them in key order, STATS and
+ * STOP are sent to every server.
+ *
+ * <p>Each server is reached through its own client over --transport=tcp|udp (default tcp), or
+ * a ClientPool of them with --pool-size. Every other option (eg: --pipelined=true or
+ * --near-cache=N) applies to those clients, so their features work the same when sharded.
+ */
+public final class ShardedClient extends AbstractClient {
+  private final String transport;
+  private final HashRing ring;
+  private final AbstractClient[] shards;
+  private final int maxRequestSize;
+
+  private ShardedClient(String transport, HashRing ring, AbstractClient[] shards) {
+    this.transport = transport;
+    this.ring = ring;
+    this.shards = shards;
+    int max = Integer.MAX_VALUE;
+    for (AbstractClient shard : shards) {
+      max = Math.min(max, shard.maxRequestSize());
+    }
+    this.maxRequestSize = max;
+  }
+
+  private ShardedClient() {
+    this(null, null, new AbstractClient[0]);
+  }
+
+  /**
+   * Connects to every server of a ring.
+   *
+   * @param transport tcp or udp.
+   * @param ring      the servers and which keys each of them owns.
+   * @param timeout   time limit in milli-sec to wait for the response to a request.
+   * @param options   settings for the client of each server (eg: --pipelined=true).
+   * @return the client, with a connection open to every server.
+   * @throws IOException in case of errors while connecting to any of the servers.
+   */
+  public static ShardedClient connect(String transport, HashRing ring, int timeout, Options options)
+          throws IOException {
+    List<HashRing.Node> nodes = ring.getNodes();
+    AbstractClient[] shards = new AbstractClient[nodes.size()];
+    try {
+      for (int i = 0; i < shards.length; i++) {
+        shards[i] = connect(transport, nodes.get(i), timeout, options);
+      }
+    } catch (IOException | RuntimeException e) {
+      for (AbstractClient shard : shards) {
+        if (shard != null) {
+          shard.close();
+        }
+      }
+      throw e;
+    }
+    return new ShardedClient(transport, ring, shards);
+  }
+
+  /**
+   * Connects to a single server of a ring, through a ClientPool if --pool-size is set.
+   */
+  static AbstractClient connect(String transport, HashRing.Node node, int timeout, Options options)
+          throws IOException {
+    String host = node.getHost();
+    int port = node.getPort();
+    switch (transport) {
+      case "tcp":
+        return options.has("pool-size")
+                ? ClientPool.tcp(host, port, timeout, options) : new TCPClient(host, port, timeout, options);
+
+      case "udp":
+        return options.has("pool-size")
+                ? ClientPool.udp(host, port, timeout, options) : new UDPClient(host, port, timeout, options);
+
+      default:
+        throw new IllegalArgumentException("Invalid transport " + transport + ". Must be tcp or udp.");
+    }
+  }
+
+  @Override
+  public CompletableFuture<String> serveRequestsAsync(String request) {
+    Request req = Request.parse(request);
+    Command command = req.getCommand();
+    if (command == null) {
+      // any server answers with the same error.
+      return shards[0].serveRequestsAsync(request);
+    }
+
+    switch (command) {
+      case GET:
+      case PUT:
+      case PUTEX:
+      case PUTNX:
+      case TTL:
+      case DELETE:
+        return shardFor(req, 1).serveRequestsAsync(request);
+
+      case MGET:
+      case MDELETE:
+        return req.size() < 2 ? shards[0].serveRequestsAsync(request) : scatter(request, req, 1);
+
+      case MPUT:
+        return req.size() < 3 || req.size() % 2 == 0
+                ? shards[0].serveRequestsAsync(request) : scatter(request, req, 2);
+
+      case SCAN:
+        return req.size() != 4 ? shards[0].serveRequestsAsync(request) : mergeRange(request, req.get(3));
+
+      case PREFIX:
+        return req.size() != 3 && req.size() != 4
+                ? shards[0].serveRequestsAsync(request) : mergeRange(request, req.get(2));
+
+      case STATS:
+      case STOP:
+        return broadcast(request);
+
+      default:
+        return shards[0].serveRequestsAsync(request);
+    }
+  }
+
+  private AbstractClient shardFor(Request req, int word) {
+    return req.size() > word ? shards[ring.indexFor(req.get(word))] : shards[0];
+  }
+
+  /**
+   * Splits a batch into one batch per server owning any of its keys, and puts the results of
+   * each back where their keys were in the original batch.
+   *
+   * @param request the batch as sent by the caller.
+   * @param req     the batch split into words.
+   * @param stride  words per key, i.e., 2 for MPUT and 1 otherwise.
+   */
+  private CompletableFuture<String> scatter(String request, Request req, int stride) {
+    int[] owners = new int[(req.size() - 1) / stride];
+    Map<Integer, StringBuilder> batches = new LinkedHashMap<>();
+    for (int i = 0; i < owners.length; i++) {
+      int first = 1 + i * stride;
+      owners[i] = ring.indexFor(req.get(first));
+      StringBuilder batch = batches.computeIfAbsent(owners[i], s -> new StringBuilder(req.get(0)));
+      for (int j = first; j < first + stride; j++) {
+        batch.append('\t').append(req.get(j));
+      }
+    }
+    if (batches.size() == 1) {
+      return shards[owners[0]].serveRequestsAsync(request);
+    }
+
+    Map<Integer, CompletableFuture<String>> responses = new LinkedHashMap<>();
+    batches.forEach((shard, batch) -> responses.put(shard, shards[shard].serveRequestsAsync(batch.toString())));
+    return allOf(responses.values()).thenApply(v -> {
+      Map<Integer, Iterator<String[]>> results = new LinkedHashMap<>();
+      for (Map.Entry<Integer, CompletableFuture<String>> response : responses.entrySet()) {
+        String res = response.getValue().join();
+        try {
+          results.put(response.getKey(), Results.parse(res).iterator());
+        } catch (IOException e) {
+          if (res.trim().startsWith(Results.TOO_LARGE)) {
+            // the caller can only ask for fewer keys at once, whichever server it was.
+            return res;
+          }
+          throw new CompletionException(new IOException("Server " + ring.getNodes().get(response.getKey())
+                  + " refused its part of the batch: " + e.getMessage()));
+        }
+      }
+
+      StringBuilder merged = new StringBuilder();
+      for (int owner : owners) {
+        Iterator<String[]> lines = results.get(owner);
+        if (!lines.hasNext()) {
+          throw new CompletionException(new IOException("Server answered fewer results than keys in the batch."));
+        }
+        String[] result = lines.next();
+        Results.append(merged, result[0], result[1], result[2]);
+      }
+      return merged.toString();
+    });
+  }
+
+  /**
+   * Sends a SCAN or PREFIX page request to every server and merges their pages into one of the
+   * same form a single server answers with. Every server answers with its first limit pairs
+   * from where the page starts, so the first limit of all of them are the first limit overall,
+   * and the next page starts at whichever comes first of the pairs left over and the keys each
+   * server said it would continue from.
+   *
+   * @param request the request as sent by the caller.
+   * @param limit   the most pairs in the page, as sent by the caller.
+   */
+  private CompletableFuture<String> mergeRange(String request, String limit) {
+    int max;
+    try {
+      max = Integer.parseInt(limit);
+    } catch (NumberFormatException e) {
+      return shards[0].serveRequestsAsync(request);
+    }
+
+    List<CompletableFuture<String>> responses = new ArrayList<>();
+    for (AbstractClient shard : shards) {
+      responses.add(shard.serveRequestsAsync(request));
+    }
+    return allOf(responses).thenApply(v -> {
+      TreeMap<String, String> pairs = new TreeMap<>();
+      String next = null;
+      for (int shard = 0; shard < shards.length; shard++) {
+        String res = responses.get(shard).join();
+        List<String[]> results;
+        try {
+          results = Results.parse(res);
+        } catch (IOException e) {
+          return res;
+        }
+        for (String[] result : results) {
+          if (result[0].equals("OK")) {
+            // while keys are being moved by Rebalancer a key may be on two servers, and the one
+            // the ring gives it to has the latest value.
+            if (!pairs.containsKey(result[1]) || ring.indexFor(result[1]) == shard) {
+              pairs.put(result[1], result[2]);
+            }
+          } else if (result[0].equals("MORE")) {
+            next = next == null || result[1].compareTo(next) < 0 ? result[1] : next;
+          } else if (!result[0].equals("END")) {
+            return res;
+          }
+        }
+      }
+
+      StringBuilder page = new StringBuilder();
+      int count = 0;
+      for (Map.Entry<String, String> pair : pairs.entrySet()) {
+        if (count == max) {
+          next = next == null || pair.getKey().compareTo(next) < 0 ? pair.getKey() : next;
+          break;
+        }
+        Results.append(page, "OK", pair.getKey(), pair.getValue());
+        count++;
+      }
+      if (next != null) {
+        Results.append(page, "MORE", next, "more keys follow");
+      } else {
+        Results.append(page, "END", "", "no more keys");
+      }
+      return page.toString();
+    });
+  }
+
+  /**
+   * Sends a request to every server and lists their responses under the name of each server.
+   */
+  private CompletableFuture<String> broadcast(String request) {
+    List<CompletableFuture<String>> responses = new ArrayList<>();
+    for (AbstractClient shard : shards) {
+      responses.add(shard.serveRequestsAsync(request));
+    }
+    return allOf(responses).thenApply(v -> {
+      StringBuilder res = new StringBuilder();
+      for (int i = 0; i < shards.length; i++) {
+        res.append(i == 0 ? "# " : "\n# ").append(ring.getNodes().get(i)).append('\n').append(responses.get(i).join());
+      }
+      return res.toString();
+    });
+  }
+
+  private static CompletableFuture<Void> allOf(Iterable<CompletableFuture<String>> futures) {
+    List<CompletableFuture<String>> all = new ArrayList<>();
+    futures.forEach(all::add);
+    return CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0]));
+  }
+
+  @Override
+  protected String handleRequestsAndResponses(String request) throws IOException {
+    try {
+      return serveRequestsAsync(request).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      while (cause instanceof CompletionException && cause.getCause() != null) {
+        cause = cause.getCause();
+      }
+      if (cause instanceof TimeoutException) {
+        throw new SocketTimeoutException("Read timed out");
+      }
+      throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+  }
+
+  @Override
+  protected int maxRequestSize() {
+    return maxRequestSize;
+  }
+
+  @Override
+  protected boolean isMultiplexed() {
+    return true;
+  }
+
+  @Override
+  protected void closeEverything() {
+    for (AbstractClient shard : shards) {
+      shard.close();
+    }
+  }
+
+  /**
+   * Connects to every server of the same ring again. The host name and port are ignored, since
+   * a sharded client has one per server.
+   */
+  @Override
+  protected Client getClientInstance(String name, int port, int timeout, Options options) throws IOException {
+    return connect(transport, ring, timeout, options);
+  }
+
+  @Override
+  public void validateArgs(String[] args) {
+    try {
+      if (args.length < 1) {
+        throw new IllegalArgumentException("Invalid number of arguments. Should be at least 1.");
+      }
+      HashRing ring = HashRing.read(Paths.get(args[0]));
+      Options options = Options.parse(args, 1);
+      int timeout = options.getInt("timeout", 1000);
+      if (timeout < 1) {
+        throw new IllegalArgumentException("Invalid timeout. Must be at least 1 milli-sec.");
+      }
+      String transport = options.getString("transport", "tcp");
+
+      if (options.has("load")) {
+        new LoadGenerator(options, () -> connect(transport, ring, timeout, options)).run();
+        return;
+      }
+      connect(transport, ring, timeout, options).start();
+    } catch (IOException | IllegalArgumentException e) {
+      System.out.println(getTimestamp() + "ERROR: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Starts a client of the servers listed in a ring file, eg:
+   * java -cp TCPClient.jar project1.clients.ShardedClient ring.conf --pipelined=true
+   *
+   * @param args the ring file followed by the options.
+   */
+  public static void main(String[] args) {
+    new ShardedClient().validateArgs(args);
+  }
+}
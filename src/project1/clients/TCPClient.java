@@ -1,18 +1,45 @@
 package project1.clients;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import project1.BinaryCodec;
+import project1.Options;
+import project1.Protocol;
+import project1.Request;
 
 /**
  * Class the simulates a client that interacts witch the serve using TCP connection.
+ * With --pipelined=true the client switches the connection to the pipelined protocol, where
+ * every request carries an id so that many requests can be in flight at the same time and
+ * their responses may arrive in any order. With --binary=true it switches to the binary
+ * protocol instead, which works the same way but is not limited to 65535 bytes per message.
  */
 public class TCPClient extends AbstractClient {
   private Socket clientSocket;
   private DataInputStream din;
   private DataOutputStream dout;
+  private int timeout;
+  private boolean pipelined;
+  private boolean binary;
+  private Map<Long, CompletableFuture<String>> inFlight;
+  private AtomicLong nextId;
+  private volatile IOException lost;
 
   /**
    * Constructor to initialize the client socket, ip address of host, destination port number
@@ -21,27 +48,214 @@ public class TCPClient extends AbstractClient {
    * @param name    host name
    * @param port    destination port number
    * @param timeout time limit in milli-sec to wait before saying socket is not receiving back a response.
+   * @param options optional settings for the client (eg: --pipelined=true or --binary=true).
    */
-  public TCPClient(String name, int port, int timeout) throws IOException {
+  public TCPClient(String name, int port, int timeout, Options options) throws IOException {
     InetAddress ip = InetAddress.getByName(name);
     this.clientSocket = new Socket(ip, port);
     showInfo("Connection established\n\n");
     clientSocket.setSoTimeout(timeout);
+    this.timeout = timeout;
 
-    din = new DataInputStream(clientSocket.getInputStream());
-    dout = new DataOutputStream(clientSocket.getOutputStream());
+    din = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+    // buffered so that the id and the message of a pipelined request leave in a single segment,
+    // rather than the message waiting on the delayed ack of the id.
+    dout = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+
+    if (options.getBoolean("binary", false)) {
+      startPipelining(Protocol.BINARY);
+    } else if (options.getBoolean("pipelined", false)) {
+      startPipelining(Protocol.PIPELINED);
+    }
+    startNearCache(options);
+  }
+
+  /**
+   * Constructor to create a client with the default settings.
+   *
+   * @param name    host name
+   * @param port    destination port number
+   * @param timeout time limit in milli-sec to wait before saying socket is not receiving back a response.
+   */
+  public TCPClient(String name, int port, int timeout) throws IOException {
+    this(name, port, timeout, new Options());
   }
 
   private TCPClient() {
   }
 
+  /**
+   * Asks the server to switch to the pipelined or binary protocol and, if it agrees, starts the
+   * thread that reads the responses and hands each one to the request it belongs to.
+   */
+  private void startPipelining(String protocol) throws IOException {
+    dout.writeUTF(Protocol.request(protocol));
+    dout.flush();
+    String res = din.readUTF();
+    if (!res.equals(Protocol.accepted(protocol))) {
+      showError("Server does not support protocol " + protocol + ", sending one request at a time. " + res);
+      return;
+    }
+
+    pipelined = true;
+    binary = protocol.equals(Protocol.BINARY);
+    inFlight = new ConcurrentHashMap<>();
+    nextId = new AtomicLong();
+    // responses are matched to requests by id, each request times out on its own.
+    clientSocket.setSoTimeout(0);
+
+    Thread reader = new Thread(this::readResponses, "client-reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  private void readResponses() {
+    try {
+      while (true) {
+        long id;
+        String res;
+        if (binary) {
+          ByteBuffer frame = BinaryCodec.readFrame(din);
+          id = BinaryCodec.readVarint(frame);
+          res = BinaryCodec.decodeMessage(frame);
+        } else {
+          id = din.readLong();
+          res = din.readUTF();
+        }
+        if (id == Protocol.PUSH_ID) {
+          if (nearCache != null && res.equals(Protocol.INVALIDATE_ALL)) {
+            trackAgain();
+          } else if (nearCache != null) {
+            nearCache.handlePush(res);
+          }
+          continue;
+        }
+        CompletableFuture<String> future = inFlight.remove(id);
+        if (future != null) {
+          future.complete(res);
+        }
+      }
+    } catch (IOException e) {
+      lost = e;
+      if (nearCache != null) {
+        // invalidations can no longer arrive, so nothing cached can be trusted.
+        nearCache.clear();
+      }
+      for (CompletableFuture<String> future : inFlight.values()) {
+        future.completeExceptionally(e);
+      }
+      inFlight.clear();
+    }
+  }
+
+  /**
+   * Drops the near cache after the server stopped tracking this connection, and asks it to TRACK
+   * again. Nothing is cached until it has agreed. The request is sent from another thread, since
+   * the reader has to keep reading while it is written.
+   */
+  private void trackAgain() {
+    long epoch = nearCache.suspend();
+    CompletableFuture.supplyAsync(() -> sendPipelined(Protocol.TRACK))
+            .thenCompose(future -> future)
+            .thenAccept(res -> {
+              if (res.equals(Protocol.TRACKING)) {
+                nearCache.resume(epoch);
+              } else {
+                showError("Server stopped pushing invalidations, cached values may be stale until they expire. " + res);
+              }
+            });
+  }
+
   @Override
-  protected void handleRequestsAndResponses(String request) throws IOException {
+  public CompletableFuture<String> serveRequestsAsync(String request) {
+    if (!pipelined) {
+      return super.serveRequestsAsync(request);
+    }
+    if (nearCache != null) {
+      return nearCache.exchangeAsync(request, this::sendPipelined);
+    }
+    return sendPipelined(request);
+  }
+
+  private CompletableFuture<String> sendPipelined(String request) {
+    long id = nextId.incrementAndGet();
+    CompletableFuture<String> future = new CompletableFuture<>();
+    inFlight.put(id, future);
+    try {
+      if (binary) {
+        ByteBuffer frame = BinaryCodec.encodeRequest(id, Request.parse(request));
+        synchronized (dout) {
+          dout.write(frame.array(), 0, frame.limit());
+          dout.flush();
+        }
+      } else {
+        synchronized (dout) {
+          dout.writeLong(id);
+          dout.writeUTF(request);
+          dout.flush();
+        }
+      }
+    } catch (IOException e) {
+      inFlight.remove(id);
+      future.completeExceptionally(e);
+      return future;
+    }
+    if (lost != null) {
+      // the reader is gone and can no longer answer the request, nor fail it.
+      inFlight.remove(id);
+      future.completeExceptionally(lost);
+      return future;
+    }
+
+    return future.orTimeout(timeout, TimeUnit.MILLISECONDS)
+            .whenComplete((res, e) -> inFlight.remove(id));
+  }
+
+  @Override
+  protected String handleRequestsAndResponses(String request) throws IOException {
+    if (pipelined) {
+      return await(sendPipelined(request));
+    }
+
     dout.writeUTF(request);
     dout.flush();
 
-    String res = din.readUTF();
-    showResponse(res);
+    return din.readUTF();
+  }
+
+  private static String await(CompletableFuture<String> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof TimeoutException) {
+        throw new SocketTimeoutException("Read timed out");
+      }
+      throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+  }
+
+  @Override
+  protected int maxRequestSize() {
+    if (binary) {
+      // leave room for the varint lengths, which take a few more bytes than the tabs they replace.
+      return BinaryCodec.MAX_FRAME_SIZE - 64 * 1024;
+    }
+    // writeUTF can send at most 65535 bytes.
+    return 65535;
+  }
+
+  @Override
+  protected boolean isMultiplexed() {
+    return pipelined;
+  }
+
+  @Override
+  protected boolean isBroken() {
+    return lost != null;
   }
 
   @Override
@@ -56,8 +270,8 @@ public class TCPClient extends AbstractClient {
   }
 
   @Override
-  protected Client getClientInstance(String name, int port, int timeout) throws IOException {
-    return new TCPClient(name, port, timeout);
+  protected Client getClientInstance(String name, int port, int timeout, Options options) throws IOException {
+    return new TCPClient(name, port, timeout, options);
   }
 
   /**
@@ -66,8 +280,9 @@ public class TCPClient extends AbstractClient {
    * and calls the required methods to proceed further in the program execution.
    *
    * @param args String array for command line arguments to be passed when running the program.
-   *             For this program this array should have exactly 2 elements which are the
-   *             name and port number respectively for the client to run on.
+   *             For this program this array should have the name and port number respectively
+   *             for the client to run on, optionally followed by settings of the form
+   *             --name=value (eg: --pipelined=true).
    */
   public static void main(String[] args) {
     new TCPClient().validateArgs(args);
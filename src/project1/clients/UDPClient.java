@@ -4,6 +4,15 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import project1.FragmentReassembler;
+import project1.Fragments;
+import project1.Options;
 
 /**
  * Class that simulates a client for UDP data transmission.
@@ -12,11 +21,33 @@ import java.net.InetAddress;
  * This class allows users to send requests to the server like get, put or delete requests and
  * the client keeps running until the user explicitly intervenes or enters stop (case-insensitive).
  * It simulates a client that uses UDP protocol.
+ * With --fragmented=true requests and responses too large for a single datagram are split into
+ * fragments (see Fragments), which allows values of up to --max-message-size bytes.
+ * With --reliable=true requests are also sent in fragments, whose message id lets the client
+ * tell the response to the current request apart from late responses to earlier ones. A request
+ * that is not answered in time is sent again, up to --retries=N times, waiting twice as long
+ * after every attempt. How long to wait at first is estimated from the round-trip times of
+ * earlier requests. The server remembers its recent responses, so a request sent again is not
+ * applied twice.
  */
 public class UDPClient extends AbstractClient {
+  private static final int MAX_DATAGRAM_SIZE = 65507;
+  private static final int DEFAULT_MAX_MESSAGE_SIZE = 1024 * 1024;
+  private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+  private static final int DEFAULT_RETRIES = 3;
+  private static final int MAX_TIMEOUT_FACTOR = 8;
+
   private DatagramSocket clientSocket;
   private InetAddress ip;
   private final int port;
+  private int timeout;
+  private boolean fragmented;
+  private boolean reliable;
+  private int retries;
+  private RttEstimator rtt;
+  private int maxMessageSize;
+  private FragmentReassembler reassembler;
+  private long nextMessageId;
 
   /**
    * Constructor to initialize the client socket, ip address of host, destination port number
@@ -25,12 +56,41 @@ public class UDPClient extends AbstractClient {
    * @param name    host name
    * @param port    destination port number
    * @param timeout time limit in milli-sec to wait before saying socket is not receiving back a response.
+   * @param options optional settings for the client (eg: --fragmented=true or --reliable=true).
    */
-  public UDPClient(String name, int port, int timeout) throws IOException {
+  public UDPClient(String name, int port, int timeout, Options options) throws IOException {
     this.port = port;
     this.clientSocket = new DatagramSocket();
     clientSocket.setSoTimeout(timeout);
     this.ip = InetAddress.getByName(name);
+    this.timeout = timeout;
+    this.reliable = options.getBoolean("reliable", false);
+    this.fragmented = reliable || options.getBoolean("fragmented", false);
+    this.maxMessageSize = options.getInt("max-message-size", DEFAULT_MAX_MESSAGE_SIZE);
+    this.retries = reliable ? options.getInt("retries", DEFAULT_RETRIES) : 0;
+    if (retries < 0) {
+      throw new IllegalArgumentException("Invalid number of retries. Must be at least 0.");
+    }
+    long maxTimeout = (long) timeout * MAX_TIMEOUT_FACTOR;
+    this.rtt = new RttEstimator(timeout, maxTimeout);
+    if (fragmented) {
+      clientSocket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+      // only one request is in flight at a time, so only its fragments are ever held.
+      this.reassembler = new FragmentReassembler(maxMessageSize, maxMessageSize, maxTimeout);
+      this.nextMessageId = new Random().nextLong();
+    }
+    startNearCache(options);
+  }
+
+  /**
+   * Constructor to create a client with the default settings.
+   *
+   * @param name    host name
+   * @param port    destination port number
+   * @param timeout time limit in milli-sec to wait before saying socket is not receiving back a response.
+   */
+  public UDPClient(String name, int port, int timeout) throws IOException {
+    this(name, port, timeout, new Options());
   }
 
   private UDPClient() {
@@ -38,17 +98,99 @@ public class UDPClient extends AbstractClient {
   }
 
   @Override
-  protected void handleRequestsAndResponses(String request) throws IOException {
+  protected String handleRequestsAndResponses(String request) throws IOException {
+    if (fragmented) {
+      return sendFragmented(request);
+    }
+
     byte[] sendData;
-    byte[] receiveData = new byte[1024];
-    sendData = request.getBytes();
+    byte[] receiveData = new byte[MAX_DATAGRAM_SIZE];
+    sendData = request.getBytes(StandardCharsets.UTF_8);
 
     DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, ip, port);
     clientSocket.send(sendPacket);
 
     DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
     clientSocket.receive(receivePacket);
-    showResponse(new String(receivePacket.getData()));
+    return new String(receivePacket.getData(), 0, receivePacket.getLength(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Sends the request in fragments and waits until every fragment of its response has arrived,
+   * sending the request again if it is not answered in time and the client is reliable.
+   * Fragments of responses to earlier requests that timed out are ignored.
+   */
+  private String sendFragmented(String request) throws IOException {
+    long messageId = nextMessageId++;
+    byte[] message = request.getBytes(StandardCharsets.UTF_8);
+    if (message.length > maxMessageSize) {
+      throw new IOException("Request of " + message.length + " bytes is larger than the maximum of "
+              + maxMessageSize + " bytes");
+    }
+    List<ByteBuffer> fragments = Fragments.split(messageId, message);
+
+    long attemptTimeout = reliable ? rtt.timeout() : timeout;
+    try {
+      for (int attempt = 0; attempt <= retries; attempt++) {
+        long sentNanos = System.nanoTime();
+        for (ByteBuffer fragment : fragments) {
+          clientSocket.send(new DatagramPacket(fragment.array(), fragment.limit(), ip, port));
+        }
+
+        String response = awaitResponse(messageId, attemptTimeout);
+        if (response != null) {
+          if (attempt == 0) {
+            rtt.sample((System.nanoTime() - sentNanos) / 1e6);
+          }
+          return response;
+        }
+        if (attempt < retries) {
+          showError("No response within " + attemptTimeout + " ms, sending the request again.");
+          attemptTimeout = rtt.backoff(attemptTimeout);
+        }
+      }
+    } finally {
+      clientSocket.setSoTimeout(timeout);
+    }
+    throw new SocketTimeoutException("Receive timed out after " + (retries + 1) + " attempts");
+  }
+
+  /**
+   * Waits for every fragment of the response to a request.
+   *
+   * @return the response, or null if it did not arrive in time.
+   */
+  private String awaitResponse(long messageId, long timeoutMs) throws IOException {
+    byte[] receiveData = new byte[MAX_DATAGRAM_SIZE];
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (true) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return null;
+      }
+      clientSocket.setSoTimeout((int) remaining);
+
+      DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
+      try {
+        clientSocket.receive(receivePacket);
+      } catch (SocketTimeoutException e) {
+        return null;
+      }
+      ByteBuffer datagram = ByteBuffer.wrap(receiveData, 0, receivePacket.getLength());
+      if (!Fragments.isFragment(datagram) || Fragments.messageId(datagram) != messageId) {
+        continue;
+      }
+
+      byte[] response = reassembler.add(receivePacket.getSocketAddress(), datagram);
+      if (response != null) {
+        return new String(response, StandardCharsets.UTF_8);
+      }
+    }
+  }
+
+  @Override
+  protected int maxRequestSize() {
+    return fragmented ? maxMessageSize : MAX_DATAGRAM_SIZE;
   }
 
   @Override
@@ -57,8 +199,8 @@ public class UDPClient extends AbstractClient {
   }
 
   @Override
-  protected Client getClientInstance(String name, int port, int timeout) throws IOException {
-    return new UDPClient(name, port, timeout);
+  protected Client getClientInstance(String name, int port, int timeout, Options options) throws IOException {
+    return new UDPClient(name, port, timeout, options);
   }
 
   /**
@@ -67,8 +209,9 @@ public class UDPClient extends AbstractClient {
    * and calls the required methods to proceed further in the program execution.
    *
    * @param args String array for command line arguments to be passed when running the program.
-   *             For this program this array should have exactly 2 elements which are the
-   *             name and port number respectively for the client to run on.
+   *             For this program this array should have the name and port number respectively
+   *             for the client to run on, optionally followed by settings of the form
+   *             --name=value (eg: --fragmented=true).
    */
   public static void main(String[] args) {
     new UDPClient().validateArgs(args);
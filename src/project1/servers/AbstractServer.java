@@ -1,45 +1,159 @@
 package project1.servers;
 
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
-
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.InetSocketAddress;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
 import java.sql.Timestamp;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.sun.net.httpserver.HttpServer;
+
+import project1.Options;
+import project1.Protocol;
+import project1.Request;
+import project1.Results;
 
 abstract class AbstractServer implements Server {
+  protected static final int DEFAULT_EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+  private static final int WRITE_LOCK_STRIPES = 64;
+  private static final int DEFAULT_MAX_BATCH = 1000;
+  private static final int DEFAULT_DISK_THREADS = 8;
+
   private String path;
+  protected final SnapshotFormat snapshotFormat;
   protected final String fileName;
-  protected final Map<String, String> map;
-  protected boolean reqStatus;
-  protected abstract String getIp();
-  protected abstract String getPort();
+  protected final String logName;
+  protected final Options options;
+  protected final KeyValueStore store;
+  protected final SortedIndexStore sortedIndex;
+  protected final int maxBatch;
+  protected final ExpiryWheel expiry;
+  protected final Metrics metrics;
+  protected final ServerLog logger;
+  protected final InvalidationTracker tracker;
+  protected WriteAheadLog log;
+  protected final ExecutorService diskWorkers;
+  private final ReentrantLock[] writeLocks;
+  private final Object snapshotLock;
+  private final AtomicLong writes;
+  private volatile long writesAtLastSnapshot;
+  private volatile long lastSnapshotMillis;
+  private ScheduledExecutorService snapshotter;
+  private ScheduledExecutorService storeReporter;
+  private HttpServer metricsEndpoint;
+  private ExecutorService metricsWorkers;
 
-  protected abstract String receiveDataFromClient() throws IOException;
+  /**
+   * Method that keeps receiving requests from clients until the server is shut down or
+   * can no longer serve requests. Every request received should be processed with
+   * processRequest and the response sent back on the connection it came from.
+   *
+   * @throws IOException in case of errors while setting up the socket to listen on.
+   */
+  protected abstract void listen() throws IOException;
 
-  protected abstract void sendDataToClient(String res) throws IOException;
+  /**
+   * Returns whether the server was started with the non-blocking engine (--engine=nio), where a
+   * few event loop threads serve all clients, instead of the default blocking engine
+   * (--engine=blocking).
+   *
+   * @return true for the non-blocking engine, false for the blocking one.
+   * @throws IllegalArgumentException in case of an unknown engine.
+   */
+  protected boolean isNioEngine() throws IllegalArgumentException {
+    String engine = options.getString("engine", "blocking");
+    if (!engine.equals("blocking") && !engine.equals("nio")) {
+      throw new IllegalArgumentException("Invalid engine " + engine + ". Must be blocking or nio.");
+    }
+    return engine.equals("nio");
+  }
+
+  /**
+   * Creates the store that holds the key-value pairs, chosen with --store when starting the
+   * server: concurrent (default) keeps every pair, bounded keeps at most --max-entries pairs or
+   * --max-bytes bytes and evicts keys chosen by --eviction (lru or lfu, default lru), and
+   * offheap keeps the pairs in direct memory outside the heap.
+   *
+   * @return the store to use.
+   * @throws IllegalArgumentException in case of an unknown store.
+   */
+  protected KeyValueStore createStore() throws IllegalArgumentException {
+    String type = options.getString("store", "concurrent");
+    switch (type) {
+      case "concurrent":
+        return new ConcurrentKeyValueStore();
 
-  protected abstract boolean handleServeRequestError(Exception e);
+      case "bounded":
+        return new BoundedKeyValueStore(options.getLong("max-entries", 0), options.getLong("max-bytes", 0),
+                options.getString("eviction", EvictionPolicy.LRU));
+
+      case "offheap":
+        return new OffHeapKeyValueStore();
+
+      default:
+        throw new IllegalArgumentException("Invalid store " + type + ". Must be concurrent, bounded or offheap.");
+    }
+  }
+
+  protected abstract boolean handleServeRequestError(Connection connection, Exception e);
 
   protected abstract void closeEverything();
 
-  protected abstract Server getServerInstance(int port) throws IOException;
+  protected abstract Server getServerInstance(int port, Options options) throws IOException;
 
   protected AbstractServer() {
-    this.fileName = "contents.json";
-    this.map = new HashMap<>();
-    this.reqStatus = false;
+    this(new Options());
+  }
+
+  protected AbstractServer(Options options) {
+    this.options = options;
+    this.logger = new ServerLog(options);
+    this.snapshotFormat = SnapshotFormat.parse(options.getString("snapshot-format", "json"));
+    this.fileName = snapshotFormat.getFileName();
+    this.logName = "contents.wal";
+    KeyValueStore created = createStore();
+    this.sortedIndex = options.getBoolean("sorted-index", false) ? new SortedIndexStore(created) : null;
+    this.store = sortedIndex != null ? sortedIndex : created;
+    this.expiry = new ExpiryWheel(this::expire);
+    this.metrics = new Metrics();
+    this.tracker = new InvalidationTracker(options.getInt("tracking-max-keys", 1_000_000));
+    this.maxBatch = options.getInt("max-batch", DEFAULT_MAX_BATCH);
+    if (maxBatch < 1) {
+      throw new IllegalArgumentException("Invalid max batch. Must be at least 1.");
+    }
+    this.writeLocks = new ReentrantLock[WRITE_LOCK_STRIPES];
+    for (int i = 0; i < writeLocks.length; i++) {
+      writeLocks[i] = new ReentrantLock();
+    }
+    this.snapshotLock = new Object();
+    this.writes = new AtomicLong();
+    // an event loop must never wait for the disk, see waitsForDisk.
+    this.diskWorkers = isNioEngine()
+            ? Workers.create(Workers.POOL, options.getInt("disk-threads", DEFAULT_DISK_THREADS), "disk") : null;
+    if (options.has("data-dir")) {
+      // lets several servers run from the same jar, eg: the shards of a ring on one machine.
+      File dir = new File(options.getValue("data-dir", "."));
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IllegalArgumentException("Invalid data dir " + dir + ". Could not create it.");
+      }
+      this.path = dir.getAbsolutePath() + "/";
+      return;
+    }
     try {
       File f = new File(getClass().getProtectionDomain().getCodeSource().getLocation().toURI());
       this.path = f.getParent() + "/";
@@ -50,43 +164,562 @@ abstract class AbstractServer implements Server {
 
   @Override
   public void readFromFile() {
+    long startNanos = System.nanoTime();
+    resetPeakHeap();
     try {
-      InputStream is = new FileInputStream(path + fileName);
-      Reader reader = new InputStreamReader(is);
-
-      JSONParser jsonParser = new JSONParser();
-      JSONObject jsonObject = (JSONObject) jsonParser.parse(reader);
-      JSONArray data = (JSONArray) jsonObject.get("data");
-      for (Object pair : data) {
-        JSONObject jsonPair = (JSONObject) pair;
-        String key = (String) jsonPair.get("key");
-        String value = (String) jsonPair.get("value");
-        map.put(key, value);
-      }
-    } catch (FileNotFoundException ignored) {
-      // file does not exist. But hashmap is already initialized hence ignore.
-    } catch (IOException | ParseException e) {
+      Path file = latestSnapshot();
+      if (file != null) {
+        long loaded = loadSnapshot(file);
+        showInfo("Loaded " + loaded + " pairs from " + file.getFileName() + "\n");
+      }
+    } catch (IOException e) {
       showError(e.getMessage());
     }
+
+    openLog();
+    showInfo("Startup took " + (System.nanoTime() - startNanos) / 1_000_000 + " ms, peak heap "
+            + peakHeap() / (1024 * 1024) + " MB\n");
+  }
+
+  /**
+   * Returns the most recently written snapshot file of any format, or null if there is none.
+   */
+  private Path latestSnapshot() throws IOException {
+    Path latest = null;
+    for (SnapshotFormat format : SnapshotFormat.values()) {
+      Path file = Paths.get(path + format.getFileName());
+      if (Files.exists(file) && (latest == null
+              || Files.getLastModifiedTime(file).compareTo(Files.getLastModifiedTime(latest)) > 0)) {
+        latest = file;
+      }
+    }
+    return latest;
+  }
+
+  /**
+   * Streams the pairs of a snapshot file into the store, detecting its format from its
+   * contents. Files larger than --parallel-load-size bytes (default 64 MB) are split across
+   * --load-threads threads (default the number of cores).
+   */
+  private long loadSnapshot(Path file) throws IOException {
+    SnapshotFormat format = SnapshotFormat.detect(file);
+    int threads = options.getInt("load-threads", DEFAULT_EVENT_LOOPS);
+    long parallelSize = options.getLong("parallel-load-size", 64L * 1024 * 1024);
+    if (threads < 2 || Files.size(file) < parallelSize) {
+      return format.read(file, store::put, null, 1);
+    }
+
+    ExecutorService loaders = Workers.create(Workers.POOL, threads, "loader");
+    try {
+      return format.read(file, store::put, loaders, threads);
+    } finally {
+      loaders.shutdown();
+    }
+  }
+
+  private static void resetPeakHeap() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+
+  private static long peakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  /**
+   * Opens the write-ahead log, unless it was turned off with --wal=off, and replays the writes
+   * it holds on top of the key-value pairs read from the file, since those writes are newer.
+   * The log is forced to disk according to --fsync=always|interval|never, every
+   * --fsync-interval milli-sec for the interval policy.
+   */
+  private void openLog() {
+    if (!options.getBoolean("wal", true) || path == null) {
+      return;
+    }
+
+    try {
+      WriteAheadLog.FsyncPolicy policy = WriteAheadLog.FsyncPolicy.parse(options.getString("fsync", "interval"));
+      log = new WriteAheadLog(Paths.get(path + logName), policy, options.getLong("fsync-interval", 100));
+      int replayed = log.replay(store, expiry);
+      if (replayed > 0) {
+        showInfo("Replayed " + replayed + " writes from " + logName + "\n");
+      }
+    } catch (IOException e) {
+      showError("Could not open " + logName + ", writes will not be logged. " + e.getMessage());
+      log = null;
+    }
+  }
+
+  private ReentrantLock writeLockFor(String key) {
+    return writeLocks[Math.floorMod(key.hashCode(), writeLocks.length)];
+  }
+
+  /**
+   * Stores a value for a key and records the write in the log. Writes to the same key are
+   * applied to the store and the log in the same order, so replaying the log always ends with
+   * the value the store had. The key no longer expires, even if it was stored with PUTEX.
+   *
+   * @param key   the key to store.
+   * @param value the value to store.
+   * @throws IOException in case of errors while writing to the log.
+   */
+  protected void put(String key, String value) throws IOException {
+    writes.incrementAndGet();
+    long position = 0;
+    ReentrantLock lock = writeLockFor(key);
+    lock.lock();
+    try {
+      if (log != null) {
+        position = log.append(WriteAheadLog.PUT, key, value);
+      }
+      store.put(key, value);
+      expiry.clear(key);
+    } finally {
+      lock.unlock();
+    }
+    tracker.invalidate(key);
+    if (log != null) {
+      log.sync(position);
+    }
+  }
+
+  /**
+   * Stores a value for a key that expires after the given time, and records the write in the
+   * log along with when the key expires, so that it still expires on time after a restart.
+   *
+   * @param key   the key to store.
+   * @param value the value to store.
+   * @param ttlMs milli-sec after which the key is deleted.
+   * @throws IOException in case of errors while writing to the log.
+   */
+  protected void putExpiring(String key, String value, long ttlMs) throws IOException {
+    writes.incrementAndGet();
+    long deadline = System.currentTimeMillis() + ttlMs;
+    long position = 0;
+    ReentrantLock lock = writeLockFor(key);
+    lock.lock();
+    try {
+      if (log != null) {
+        position = log.append(WriteAheadLog.PUT_EXPIRING, key, value, deadline);
+      }
+      store.put(key, value);
+      expiry.set(key, deadline);
+    } finally {
+      lock.unlock();
+    }
+    tracker.invalidate(key);
+    if (log != null) {
+      log.sync(position);
+    }
+  }
+
+  /**
+   * Stores a value for a key only if the key does not exist yet, eg: so that a key being moved
+   * between servers never overwrites a newer value a client wrote in the meantime.
+   *
+   * @param key   the key to store.
+   * @param value the value to store.
+   * @param ttlMs milli-sec after which the key is deleted, or 0 if it never expires.
+   * @return true if the key was stored, false if it already existed.
+   * @throws IOException in case of errors while writing to the log.
+   */
+  protected boolean putIfAbsent(String key, String value, long ttlMs) throws IOException {
+    writes.incrementAndGet();
+    long deadline = ttlMs > 0 ? System.currentTimeMillis() + ttlMs : 0;
+    long position = 0;
+    ReentrantLock lock = writeLockFor(key);
+    lock.lock();
+    try {
+      if (peekLive(key) != null) {
+        return false;
+      }
+      if (log != null) {
+        position = deadline == 0 ? log.append(WriteAheadLog.PUT, key, value)
+                : log.append(WriteAheadLog.PUT_EXPIRING, key, value, deadline);
+      }
+      store.put(key, value);
+      if (deadline == 0) {
+        expiry.clear(key);
+      } else {
+        expiry.set(key, deadline);
+      }
+    } finally {
+      lock.unlock();
+    }
+    tracker.invalidate(key);
+    if (log != null) {
+      log.sync(position);
+    }
+    return true;
+  }
+
+  /**
+   * Removes a key from the store and records the delete in the log.
+   *
+   * @param key the key to remove.
+   * @return true if the key existed, false otherwise.
+   * @throws IOException in case of errors while writing to the log.
+   */
+  protected boolean delete(String key) throws IOException {
+    writes.incrementAndGet();
+    long position;
+    ReentrantLock lock = writeLockFor(key);
+    lock.lock();
+    try {
+      if (peekLive(key) == null) {
+        return false;
+      }
+      position = log != null ? log.append(WriteAheadLog.DELETE, key, null) : 0;
+      store.delete(key);
+      expiry.clear(key);
+    } finally {
+      lock.unlock();
+    }
+    tracker.invalidate(key);
+    if (log != null) {
+      log.sync(position);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the value of a key a client reads, unless the key has expired and is only waiting to
+   * be removed.
+   *
+   * @param key the key to look up.
+   * @return the value of the key, or null if the key does not exist or has expired.
+   */
+  protected String getLive(String key) {
+    return live(key, store.get(key));
+  }
+
+  /**
+   * Same as getLive, for lookups the server makes on its own, which do not count as reads of the
+   * key (see KeyValueStore.peek).
+   *
+   * @param key the key to look up.
+   * @return the value of the key, or null if the key does not exist or has expired.
+   */
+  protected String peekLive(String key) {
+    return live(key, store.peek(key));
+  }
+
+  private String live(String key, String value) {
+    if (value != null && expiry.isExpired(key, System.currentTimeMillis())) {
+      return null;
+    }
+    return value;
+  }
+
+  /**
+   * Removes a key whose deadline has passed. Expired keys are not recorded in the log since
+   * replaying the log skips writes whose deadline has passed. Nothing happens if the key was
+   * stored again in the meantime.
+   */
+  private void expire(String key, long deadline) {
+    ReentrantLock lock = writeLockFor(key);
+    lock.lock();
+    try {
+      if (expiry.deadline(key) != deadline) {
+        return;
+      }
+      store.delete(key);
+      expiry.clear(key);
+    } finally {
+      lock.unlock();
+    }
+    tracker.invalidate(key);
+  }
+
+  /**
+   * Stores the values of several keys and records the writes in the log, forcing the log to
+   * disk once for the whole batch. The write locks of all the keys are held while the batch
+   * is applied, so no other write can interleave with it and its records are contiguous in the
+   * log. Reads are not blocked and may see a batch that is only partly applied.
+   *
+   * @param keys   the keys to store.
+   * @param values the values to store, in the same order as the keys.
+   * @throws IOException in case of errors while writing to the log.
+   */
+  protected void putAll(String[] keys, String[] values) throws IOException {
+    writes.addAndGet(keys.length);
+    long position = 0;
+    ReentrantLock[] locks = writeLocksFor(keys);
+    lockAll(locks);
+    try {
+      for (int i = 0; i < keys.length; i++) {
+        if (log != null) {
+          position = log.append(WriteAheadLog.PUT, keys[i], values[i]);
+        }
+        store.put(keys[i], values[i]);
+        expiry.clear(keys[i]);
+      }
+    } finally {
+      unlockAll(locks);
+    }
+    for (String key : keys) {
+      tracker.invalidate(key);
+    }
+    if (log != null) {
+      log.sync(position);
+    }
+  }
+
+  /**
+   * Removes several keys from the store and records the deletes in the log, with the same
+   * guarantees as putAll.
+   *
+   * @param keys the keys to remove.
+   * @return for each key, whether it existed.
+   * @throws IOException in case of errors while writing to the log.
+   */
+  protected boolean[] deleteAll(String[] keys) throws IOException {
+    writes.addAndGet(keys.length);
+    boolean[] deleted = new boolean[keys.length];
+    long position = 0;
+    ReentrantLock[] locks = writeLocksFor(keys);
+    lockAll(locks);
+    try {
+      for (int i = 0; i < keys.length; i++) {
+        if (peekLive(keys[i]) != null) {
+          if (log != null) {
+            position = log.append(WriteAheadLog.DELETE, keys[i], null);
+          }
+          store.delete(keys[i]);
+          expiry.clear(keys[i]);
+          deleted[i] = true;
+        }
+      }
+    } finally {
+      unlockAll(locks);
+    }
+    for (int i = 0; i < keys.length; i++) {
+      if (deleted[i]) {
+        tracker.invalidate(keys[i]);
+      }
+    }
+    if (log != null) {
+      log.sync(position);
+    }
+    return deleted;
+  }
+
+  /**
+   * Returns the distinct write locks of the given keys in stripe order, so that batches taking
+   * several locks always take them in the same order and cannot deadlock.
+   */
+  private ReentrantLock[] writeLocksFor(String[] keys) {
+    boolean[] needed = new boolean[writeLocks.length];
+    int count = 0;
+    for (String key : keys) {
+      int stripe = Math.floorMod(key.hashCode(), writeLocks.length);
+      if (!needed[stripe]) {
+        needed[stripe] = true;
+        count++;
+      }
+    }
+
+    ReentrantLock[] locks = new ReentrantLock[count];
+    for (int i = 0, j = 0; i < needed.length; i++) {
+      if (needed[i]) {
+        locks[j++] = writeLocks[i];
+      }
+    }
+    return locks;
+  }
+
+  private static void lockAll(ReentrantLock[] locks) {
+    for (ReentrantLock lock : locks) {
+      lock.lock();
+    }
+  }
+
+  private static void unlockAll(ReentrantLock[] locks) {
+    for (int i = locks.length - 1; i >= 0; i--) {
+      locks[i].unlock();
+    }
+  }
+
+  /**
+   * Rotates the log while no write is in progress, so that every write in the rotated files
+   * has already been applied to the store and will be part of the snapshot that follows.
+   * Writes wait only for the rename of the log file, not for the snapshot.
+   */
+  private long rotateLog() throws IOException {
+    lockAll(writeLocks);
+    try {
+      return log.rotate();
+    } finally {
+      unlockAll(writeLocks);
+    }
+  }
+
+  /**
+   * Starts taking snapshots in the background, every --snapshot-interval milli-sec (default
+   * 60000, 0 to turn off) or as soon as the log grows past --snapshot-log-size bytes (default
+   * 64 MB), whichever comes first. Nothing is written if there were no writes since the last
+   * snapshot.
+   */
+  private void startSnapshots() {
+    long interval = options.getLong("snapshot-interval", 60000);
+    long maxLogSize = options.getLong("snapshot-log-size", 64L * 1024 * 1024);
+    if (interval <= 0 && (log == null || maxLogSize <= 0)) {
+      return;
+    }
+
+    lastSnapshotMillis = System.currentTimeMillis();
+    long checkEvery = interval > 0 ? Math.min(interval, 1000) : 1000;
+    snapshotter = Executors.newSingleThreadScheduledExecutor(Workers.named("snapshot"));
+    snapshotter.scheduleWithFixedDelay(() -> {
+      boolean due = interval > 0 && System.currentTimeMillis() - lastSnapshotMillis >= interval;
+      boolean logFull = log != null && maxLogSize > 0 && log.size() >= maxLogSize;
+      if ((due || logFull) && writes.get() != writesAtLastSnapshot) {
+        try {
+          writeToFile();
+        } catch (IOException e) {
+          showError("Snapshot failed. " + e.getMessage());
+        }
+      }
+    }, checkEvery, checkEvery, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Starts printing what the store reports about itself every --store-report seconds (default
+   * 0, i.e., never), eg: the hit ratio and evictions of a bounded store.
+   */
+  private void startStoreReport() {
+    long interval = options.getLong("store-report", 0);
+    if (interval < 0) {
+      throw new IllegalArgumentException("Invalid store report interval. Must be at least 0.");
+    }
+    if (interval == 0 || store.stats().isEmpty()) {
+      return;
+    }
+
+    storeReporter = Executors.newSingleThreadScheduledExecutor(Workers.named("store-report"));
+    storeReporter.scheduleAtFixedRate(() -> showInfo(describeStore() + "\n"), interval, interval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Describes the figures the store reports about itself on a single line, along with the ratio
+   * of gets that found their key if the store counts hits and misses.
+   *
+   * @return the description.
+   */
+  protected String describeStore() {
+    Map<String, Long> stats = store.stats();
+    StringBuilder sb = new StringBuilder("Store:");
+    for (Map.Entry<String, Long> stat : stats.entrySet()) {
+      sb.append(' ').append(stat.getKey()).append('=').append(stat.getValue());
+    }
+    Long hits = stats.get("hits");
+    Long misses = stats.get("misses");
+    if (hits != null && misses != null && hits + misses > 0) {
+      sb.append(String.format(" hit_ratio=%.3f", (double) hits / (hits + misses)));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Starts serving the metrics of the server as plain text over HTTP at /metrics on
+   * --metrics-port (default 0, i.e., not served), so that they can be scraped without going
+   * through the protocol clients use.
+   *
+   * @throws IOException in case of errors while binding the port.
+   */
+  private void startMetricsEndpoint() throws IOException {
+    int port = options.getInt("metrics-port", 0);
+    if (port < 0 || port > 65535) {
+      throw new IllegalArgumentException("Invalid metrics port. Must be in range 0-65535.");
+    }
+    if (port == 0) {
+      return;
+    }
+
+    metricsEndpoint = HttpServer.create(new InetSocketAddress(port), 0);
+    metricsWorkers = Executors.newSingleThreadExecutor(Workers.named("metrics"));
+    metricsEndpoint.setExecutor(metricsWorkers);
+    metricsEndpoint.createContext("/metrics", exchange -> {
+      byte[] body = metrics.describe(store.stats(), logger.dropped()).getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      exchange.getResponseBody().write(body);
+      exchange.close();
+    });
+    metricsEndpoint.start();
+    showInfo("Serving metrics at http://localhost:" + port + "/metrics\n");
   }
 
   @Override
-  public ValidationCode isValidRequest(String[] req) {
-    req[0] = req[0].toUpperCase();
-    for (int i = 0; i < req.length; i++) {
-      req[i] = req[i].trim();
+  public ValidationCode isValidRequest(Request req) {
+    if (req.getCommand() == null) {
+      return ValidationCode.INVALID_REQUEST_TYPE;
     }
 
-    switch (req[0]) {
-      case "STOP":
-        return req.length == 1 ? ValidationCode.VALID_REQUEST_TYPE : ValidationCode.INCORRECT_PARAMETER_COUNT;
+    switch (req.getCommand()) {
+      case STOP:
+      case STATS:
+      case TRACK:
+        return req.size() == 1 ? ValidationCode.VALID_REQUEST_TYPE : ValidationCode.INCORRECT_PARAMETER_COUNT;
+
+      case GET:
+      case DELETE:
+        return req.size() == 2 ? ValidationCode.VALID_REQUEST_TYPE : ValidationCode.INCORRECT_PARAMETER_COUNT;
+
+      case PUT:
+        return req.size() == 3 ? ValidationCode.VALID_REQUEST_TYPE : ValidationCode.INCORRECT_PARAMETER_COUNT;
+
+      case TTL:
+        return req.size() == 2 ? ValidationCode.VALID_REQUEST_TYPE : ValidationCode.INCORRECT_PARAMETER_COUNT;
 
-      case "GET":
-      case "DELETE":
-        return req.length == 2 ? ValidationCode.VALID_REQUEST_TYPE : ValidationCode.INCORRECT_PARAMETER_COUNT;
+      case SCAN:
+        if (req.size() != 4) {
+          return ValidationCode.INCORRECT_PARAMETER_COUNT;
+        }
+        return isValidLimit(req.get(3)) ? ValidationCode.VALID_REQUEST_TYPE : ValidationCode.INVALID_LIMIT;
+
+      case PREFIX:
+        if (req.size() != 3 && req.size() != 4) {
+          return ValidationCode.INCORRECT_PARAMETER_COUNT;
+        }
+        return isValidLimit(req.get(2)) ? ValidationCode.VALID_REQUEST_TYPE : ValidationCode.INVALID_LIMIT;
 
-      case "PUT":
-        return req.length == 3 ? ValidationCode.VALID_REQUEST_TYPE : ValidationCode.INCORRECT_PARAMETER_COUNT;
+      case PUTEX:
+        if (req.size() != 4) {
+          return ValidationCode.INCORRECT_PARAMETER_COUNT;
+        }
+        return parseTtl(req.get(3)) > 0 ? ValidationCode.VALID_REQUEST_TYPE : ValidationCode.INVALID_TTL;
+
+      case PUTNX:
+        if (req.size() == 3) {
+          return ValidationCode.VALID_REQUEST_TYPE;
+        }
+        if (req.size() != 4) {
+          return ValidationCode.INCORRECT_PARAMETER_COUNT;
+        }
+        return parseTtl(req.get(3)) > 0 ? ValidationCode.VALID_REQUEST_TYPE : ValidationCode.INVALID_TTL;
+
+      case MGET:
+      case MDELETE:
+        if (req.size() < 2) {
+          return ValidationCode.INCORRECT_PARAMETER_COUNT;
+        }
+        return req.size() - 1 <= maxBatch ? ValidationCode.VALID_REQUEST_TYPE : ValidationCode.BATCH_TOO_LARGE;
+
+      case MPUT:
+        if (req.size() < 3 || req.size() % 2 == 0) {
+          return ValidationCode.INCORRECT_PARAMETER_COUNT;
+        }
+        return (req.size() - 1) / 2 <= maxBatch ? ValidationCode.VALID_REQUEST_TYPE : ValidationCode.BATCH_TOO_LARGE;
 
       default:
         return ValidationCode.INVALID_REQUEST_TYPE;
@@ -94,58 +727,318 @@ abstract class AbstractServer implements Server {
   }
 
   @Override
-  public String handleRequest(String[] req) throws IOException {
-    reqStatus = true;
+  public Response handleRequest(Request req) throws IOException {
+    switch (req.getCommand()) {
+      case GET:
+        String value = getLive(req.get(1));
+        if (value != null) {
+          return Response.ok(value);
+        }
+        return Response.error("Invalid request. Can't get key that doesn't exist.");
 
-    switch (req[0]) {
-      case "GET":
-        if (map.containsKey(req[1])) {
-          return map.get(req[1]);
+      case PUT:
+        put(req.get(1), req.get(2));
+        return Response.ok(Protocol.STORED);
+
+      case PUTEX:
+        putExpiring(req.get(1), req.get(2), parseTtl(req.get(3)));
+        return Response.ok(Protocol.STORED);
+
+      case PUTNX:
+        if (putIfAbsent(req.get(1), req.get(2), req.size() == 4 ? parseTtl(req.get(3)) : 0)) {
+          return Response.ok(Protocol.STORED);
         }
-        reqStatus = false;
-        return "Invalid request. Can't get key that doesn't exist.";
+        return Response.error(Protocol.EXISTS);
+
+      case TTL:
+        return handleTtl(req.get(1));
+
+      case SCAN:
+        return handleRange(req.get(1), req.get(2), null, Integer.parseInt(req.get(3)));
 
-      case "PUT":
-        map.put(req[1], req[2]);
-        return "put successful";
+      case PREFIX:
+        String from = req.size() == 4 && req.get(3).compareTo(req.get(1)) > 0 ? req.get(3) : req.get(1);
+        return handleRange(from, null, req.get(1), Integer.parseInt(req.get(2)));
 
-      case "DELETE":
-        if (map.containsKey(req[1])) {
-          map.remove(req[1]);
-          return "delete successful";
+      case DELETE:
+        if (delete(req.get(1))) {
+          return Response.ok("delete successful");
         }
-        reqStatus = false;
-        return "Invalid request. Can't delete key that doesnt exist.";
+        return Response.error("Invalid request. Can't delete key that doesnt exist.");
 
-      case "STOP":
+      case MGET:
+        return handleMultiGet(req);
+
+      case MPUT:
+        return handleMultiPut(req);
+
+      case MDELETE:
+        return handleMultiDelete(req);
+
+      case STOP:
         writeToFile();
-        return "Updated " + fileName + " with latest data.";
+        return Response.ok("Updated " + fileName + " with latest data.");
+
+      case STATS:
+        return Response.ok(metrics.describe(store.stats(), logger.dropped()));
+
+      case TRACK:
+        return Response.error("Invalid request. TRACK needs a pipelined or binary TCP connection.");
 
       default:
-        return "never gonna happen";
+        return Response.error("never gonna happen");
+    }
+  }
+
+  /**
+   * Parses the time to live of a PUTEX request.
+   *
+   * @param ttl the time to live in milli-sec, as sent by the client.
+   * @return the time to live, or -1 if it is not a number.
+   */
+  private static long parseTtl(String ttl) {
+    try {
+      return Long.parseLong(ttl);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private boolean isValidLimit(String limit) {
+    try {
+      int n = Integer.parseInt(limit);
+      return n >= 1 && n <= maxBatch;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Lists a page of the pairs whose keys are in a range, in key order. The response has one
+   * line per pair of the form OK \t key \t value, followed by MORE \t key \t more keys follow
+   * if there are more pairs, where key is where the next page starts, or by END \t \t no more
+   * keys otherwise. Pages hold at most --max-batch pairs, so no response grows with the number
+   * of keys in the range.
+   *
+   * @param from   the first key of the range, inclusive.
+   * @param to     the end of the range, exclusive, or null for no end.
+   * @param prefix the prefix every key must start with, or null for any key.
+   * @param limit  the most pairs in the page.
+   */
+  private Response handleRange(String from, String to, String prefix, int limit) {
+    if (sortedIndex == null) {
+      return Response.error("Invalid request. Range queries need the server to run with --sorted-index=true.");
+    }
+
+    StringBuilder res = new StringBuilder();
+    int count = 0;
+    for (String key : sortedIndex.keys().tailSet(from, true)) {
+      if (to != null && key.compareTo(to) >= 0 || prefix != null && !key.startsWith(prefix)) {
+        break;
+      }
+      if (count == limit) {
+        Results.append(res, "MORE", key, "more keys follow");
+        return Response.ok(res.toString());
+      }
+      String value = peekLive(key);
+      if (value == null) {
+        sortedIndex.dropIfAbsent(key);
+        continue;
+      }
+      Results.append(res, "OK", key, value);
+      count++;
+    }
+    Results.append(res, "END", "", "no more keys");
+    return Response.ok(res.toString());
+  }
+
+  /**
+   * Tells how long a key has left before it expires. The response is the number of milli-sec
+   * left, or -1 if the key never expires.
+   */
+  private Response handleTtl(String key) {
+    long now = System.currentTimeMillis();
+    long deadline = expiry.deadline(key);
+    if (store.peek(key) == null || deadline != 0 && deadline <= now) {
+      return Response.error("Invalid request. Can't get ttl of key that doesn't exist.");
+    }
+    return Response.ok(Long.toString(deadline == 0 ? -1 : deadline - now));
+  }
+
+  /**
+   * Returns the response to send back in place of one that is too long for the protocol, eg:
+   * a batch whose values add up to more than a single TCP frame can hold.
+   *
+   * @param res the response that could not be sent.
+   * @return a short error message to send instead.
+   */
+  static String responseTooLarge(String res) {
+    return Results.TOO_LARGE + " It has " + res.length() + " characters, request fewer keys at once.";
+  }
+
+  /**
+   * Gets several keys at once. The response has one line per key, in the order of the request,
+   * of the form OK \t key \t value, or ERROR \t key \t message if the key does not exist.
+   */
+  private Response handleMultiGet(Request req) {
+    StringBuilder res = new StringBuilder();
+    for (int i = 1; i < req.size(); i++) {
+      String value = getLive(req.get(i));
+      if (value != null) {
+        Results.append(res, "OK", req.get(i), value);
+      } else {
+        Results.append(res, "ERROR", req.get(i), "Can't get key that doesn't exist.");
+      }
+    }
+    return Response.ok(res.toString());
+  }
+
+  /**
+   * Puts several key-value pairs at once, see putAll for how the batch is applied. The response
+   * has one line per pair of the form OK \t key \t put successful.
+   */
+  private Response handleMultiPut(Request req) throws IOException {
+    int n = (req.size() - 1) / 2;
+    String[] keys = new String[n];
+    String[] values = new String[n];
+    for (int i = 0; i < n; i++) {
+      keys[i] = req.get(1 + 2 * i);
+      values[i] = req.get(2 + 2 * i);
+    }
+    putAll(keys, values);
+
+    StringBuilder res = new StringBuilder();
+    for (String key : keys) {
+      Results.append(res, "OK", key, Protocol.STORED);
+    }
+    return Response.ok(res.toString());
+  }
+
+  /**
+   * Deletes several keys at once, see deleteAll for how the batch is applied. The response has
+   * one line per key of the form OK \t key \t delete successful, or ERROR \t key \t message if
+   * the key does not exist.
+   */
+  private Response handleMultiDelete(Request req) throws IOException {
+    String[] keys = new String[req.size() - 1];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = req.get(i + 1);
+    }
+    boolean[] deleted = deleteAll(keys);
+
+    StringBuilder res = new StringBuilder();
+    for (int i = 0; i < keys.length; i++) {
+      if (deleted[i]) {
+        Results.append(res, "OK", keys[i], "delete successful");
+      } else {
+        Results.append(res, "ERROR", keys[i], "Can't delete key that doesnt exist.");
+      }
     }
+    return Response.ok(res.toString());
   }
 
+  /**
+   * Records every key that expires in the new log right after it was rotated, since snapshots
+   * only hold keys that never expire and the rotated files that held them are about to be
+   * deleted. Keys are logged one at a time while holding their write lock, so a key stored
+   * again in the meantime is logged in the right order.
+   */
+  private void logExpiringKeys() throws IOException {
+    long position = 0;
+    for (String key : expiry.keys()) {
+      ReentrantLock lock = writeLockFor(key);
+      lock.lock();
+      try {
+        long deadline = expiry.deadline(key);
+        String value = store.peek(key);
+        if (deadline == 0) {
+          continue;
+        }
+        if (value == null) {
+          // evicted by a bounded store.
+          expiry.clear(key);
+          continue;
+        }
+        position = log.append(WriteAheadLog.PUT_EXPIRING, key, value, deadline);
+      } finally {
+        lock.unlock();
+      }
+    }
+    log.sync(position);
+  }
+
+  /**
+   * Writes a snapshot of the store into contents.json, or contents.snap with
+   * --snapshot-format=binary. Keys that expire are left out of the snapshot and kept in the log
+   * instead, along with when they expire. The snapshot is written to a temporary file which then replaces
+   * the old one in a single rename, so a crash while writing never leaves a truncated file
+   * behind. Requests keep being served while the snapshot is written, and once it is on disk
+   * the log and any snapshot in the other format it makes redundant are deleted.
+   *
+   * @throws IOException in case of any errors while writing to the file.
+   */
   @Override
   public void writeToFile() throws IOException {
-    JSONObject jsonObject = new JSONObject();
-    JSONArray data = new JSONArray();
-    for (String key : map.keySet()) {
-      JSONObject details = new JSONObject();
-      details.put("key", key);
-      details.put("value", map.get(key));
-      data.add(details);
-    }
-    jsonObject.put("data", data);
+    synchronized (snapshotLock) {
+      long startNanos = System.nanoTime();
+      long writesBefore = writes.get();
+      long rotated = log != null ? rotateLog() : -1;
+      if (log != null) {
+        logExpiringKeys();
+      }
 
-    FileWriter writer = new FileWriter(path + fileName);
-    writer.write(jsonObject.toJSONString());
-    writer.close();
+      Path target = Paths.get(path + fileName);
+      Path temp = Paths.get(path + fileName + ".tmp");
+      try (SnapshotWriter writer = snapshotFormat.newWriter(temp, options.getBoolean("snapshot-index", true))) {
+        for (Map.Entry<String, String> entry : store.snapshot()) {
+          if (expiry.deadline(entry.getKey()) == 0) {
+            writer.write(entry.getKey(), entry.getValue());
+          }
+        }
+      }
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      for (SnapshotFormat format : SnapshotFormat.values()) {
+        if (format != snapshotFormat) {
+          Files.deleteIfExists(Paths.get(path + format.getFileName()));
+        }
+      }
+
+      if (log != null) {
+        log.discardRotated(rotated);
+      }
+      writesAtLastSnapshot = writesBefore;
+      lastSnapshotMillis = System.currentTimeMillis();
+      metrics.snapshot(System.nanoTime() - startNanos);
+    }
   }
 
   @Override
   public void close() {
+    if (snapshotter != null) {
+      snapshotter.shutdownNow();
+    }
+    expiry.close();
+    if (storeReporter != null) {
+      storeReporter.shutdownNow();
+      showInfo(describeStore() + "\n");
+    }
+    if (metricsEndpoint != null) {
+      metricsEndpoint.stop(0);
+      metricsWorkers.shutdownNow();
+    }
     closeEverything();
+    if (diskWorkers != null) {
+      // not interrupted, which would close the log under a write that is being forced.
+      diskWorkers.shutdown();
+    }
+    if (log != null) {
+      try {
+        log.close();
+      } catch (IOException e) {
+        showError(e.getMessage());
+      }
+    }
+    logger.close();
   }
 
   protected String getTimestamp() {
@@ -155,22 +1048,26 @@ abstract class AbstractServer implements Server {
 
   @Override
   public void showRequest(String req) {
-    System.out.println(getTimestamp() + " REQ from " + getIp() + ":" + getPort() + " : " + req);
+    logger.line(ServerLog.Level.DEBUG, "REQ:", req);
+  }
+
+  protected void showRequest(Connection connection, String req) {
+    logger.line(ServerLog.Level.DEBUG, "REQ from", connection.getIp() + ":" + connection.getPort() + " : " + req);
   }
 
   @Override
   public void showResponse(String res) {
-    System.out.println(getTimestamp() + " RES to send: " + res);
+    logger.line(ServerLog.Level.DEBUG, "RES to send:", res);
   }
 
   @Override
   public void showError(String msg) {
-    System.out.println(getTimestamp() + " ERROR: " + msg);
+    logger.line(ServerLog.Level.ERROR, "ERROR:", msg);
   }
 
   @Override
   public void showInfo(String msg) {
-    System.out.print(msg);
+    logger.text(ServerLog.Level.INFO, msg);
   }
 
   @Override
@@ -178,8 +1075,15 @@ abstract class AbstractServer implements Server {
     String res = "Malformed request, ";
     if (validationCode == ValidationCode.INCORRECT_PARAMETER_COUNT) {
       res += "incorrect parameter count";
+    } else if (validationCode == ValidationCode.BATCH_TOO_LARGE) {
+      res += "too many keys in one request. Must be at most " + maxBatch + ".";
+    } else if (validationCode == ValidationCode.INVALID_TTL) {
+      res += "ttl must be a positive number of milli-sec";
+    } else if (validationCode == ValidationCode.INVALID_LIMIT) {
+      res += "limit must be a number between 1 and " + maxBatch;
     } else {
-      res += "invalid request type. Must be GET, PUT, DELETE or STOP only.";
+      res += "invalid request type. Must be GET, PUT, PUTEX, PUTNX, TTL, DELETE, MGET, MPUT, MDELETE, SCAN, PREFIX, "
+              + "STATS, TRACK or STOP only.";
     }
     return res;
   }
@@ -187,42 +1091,159 @@ abstract class AbstractServer implements Server {
   @Override
   public void start() {
     readFromFile();
+    expiry.start();
+    startSnapshots();
+    startStoreReport();
 
-    while (true) {
+    try {
+      startMetricsEndpoint();
+      listen();
+    } catch (IOException e) {
+      showError(e.getMessage());
+    }
+
+    this.close();
+  }
+
+  /**
+   * Decides whether a connection may switch to the protocol a client asked for.
+   *
+   * @param connection the connection the request was received on.
+   * @param protocol   the name of the protocol, in upper case.
+   * @return true if the connection should switch to the protocol, false otherwise.
+   */
+  protected boolean acceptsProtocol(Connection connection, String protocol) {
+    boolean accepted = protocol.equals(Protocol.PIPELINED) || protocol.equals(Protocol.BINARY);
+    showInfo((accepted ? "Switched " : "Refused to switch ") + connection.getIp() + ":" + connection.getPort()
+            + " to protocol " + protocol + "\n");
+    return accepted;
+  }
+
+  /**
+   * Returns whether processing a request waits for the disk: STOP, which writes the whole store
+   * to a file, and every write while the log is forced to disk after each one (--fsync=always).
+   * The non-blocking engine hands these to the --disk-threads disk workers (default 8) instead of
+   * processing them on an event loop, where they would hold up every client of the loop.
+   *
+   * @param req the request split into words.
+   * @return true if the request waits for the disk, false otherwise.
+   */
+  protected boolean waitsForDisk(Request req) {
+    if (req.getCommand() == null) {
+      return false;
+    }
+    switch (req.getCommand()) {
+      case STOP:
+        return true;
+
+      case PUT:
+      case PUTEX:
+      case PUTNX:
+      case DELETE:
+      case MPUT:
+      case MDELETE:
+        return log != null && log.syncsEveryWrite();
+
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Validates and processes a single request received on a connection and returns the response
+   * that should be sent back to the client. This is shared by all servers irrespective of how
+   * they receive requests, and may be called from several threads at the same time.
+   *
+   * @param connection the connection the request was received on.
+   * @param request    the request as a String (eg: PUT \t key \t value).
+   * @return the response to be sent to the client as a String.
+   * @throws IOException in case of any errors while writing to the file when client says STOP.
+   */
+  protected String processRequest(Connection connection, String request) throws IOException {
+    return processRequest(connection, Request.parse(request)).getMessage();
+  }
+
+  /**
+   * Validates and processes a request that has already been split into words, eg: one decoded
+   * from a binary frame, and returns the response that should be sent back to the client. A
+   * request that fails with an unexpected exception is answered with an error, so that it does
+   * not take the connection or the thread that processes it down with it.
+   *
+   * @param connection the connection the request was received on.
+   * @param req        the request split into words.
+   * @return the response to be sent to the client.
+   * @throws IOException in case of any errors while writing to the file when client says STOP.
+   */
+  protected Response processRequest(Connection connection, Request req) throws IOException {
+    boolean logged = logger.sampleRequest();
+    if (logged) {
+      showRequest(connection, req.toString());
+    }
+    long startNanos = System.nanoTime();
+    ValidationCode validationCode = isValidRequest(req);
+    Response response;
+    if (validationCode == ValidationCode.VALID_REQUEST_TYPE) {
       try {
-        String request = receiveDataFromClient();
-        showRequest(request);
-        String[] req = request.split("\\t+");
-
-        ValidationCode validationCode = isValidRequest(req);
-        String res;
-        if (validationCode == ValidationCode.VALID_REQUEST_TYPE) {
-          res = handleRequest(req);
-          if (!reqStatus) {
-            showError(res);
-          } else {
-            showResponse(res);
-          }
-        } else {
-          res = handleInvalidRequest(validationCode);
-          showResponse(res);
-        }
-        sendDataToClient(res);
+        response = handleRequest(connection, req);
       } catch (IOException e) {
-        boolean shouldBreak = handleServeRequestError(e);
-        if (shouldBreak)
-          break;
+        metrics.request(req.getCommand(), validationCode, false, System.nanoTime() - startNanos);
+        throw e;
+      } catch (RuntimeException e) {
+        showError("Failed to process " + req.getCommand() + " request. " + e);
+        response = Response.error("Internal error while processing the request.");
+      }
+      metrics.request(req.getCommand(), validationCode, response.isSuccess(), System.nanoTime() - startNanos);
+      if (!logged) {
+        return response;
+      }
+      if (!response.isSuccess()) {
+        logger.line(ServerLog.Level.DEBUG, "ERROR:", response.getMessage());
+      } else {
+        showResponse(response.getMessage());
+      }
+    } else {
+      metrics.request(req.getCommand(), validationCode, false, System.nanoTime() - startNanos);
+      response = Response.error(handleInvalidRequest(validationCode));
+      if (logged) {
+        showResponse(response.getMessage());
       }
     }
+    return response;
+  }
 
-    this.close();
+  /**
+   * Handles a request on behalf of the connection it came on, which TRACK and the GETs of a
+   * connection that tracks its keys depend on.
+   *
+   * @param connection the connection the request was received on.
+   * @param req        the request, which must be valid.
+   * @return the response to be sent to the client.
+   * @throws IOException in case of any errors while writing to the file when client says STOP.
+   */
+  private Response handleRequest(Connection connection, Request req) throws IOException {
+    switch (req.getCommand()) {
+      case TRACK:
+        if (tracker.enable(connection)) {
+          return Response.ok(Protocol.TRACKING);
+        }
+        return handleRequest(req);
+
+      case GET:
+        if (tracker.isTracking(connection)) {
+          tracker.track(req.get(1), connection);
+        }
+        return handleRequest(req);
+
+      default:
+        return handleRequest(req);
+    }
   }
 
   @Override
   public void validateArgs(String[] args) {
     try {
-      if (args.length != 1) {
-        throw new IllegalArgumentException("Invalid number of arguments. Should be exactly 1.");
+      if (args.length < 1) {
+        throw new IllegalArgumentException("Invalid number of arguments. Should be at least 1.");
       }
 
       int port = Integer.parseInt(args[0]);
@@ -230,7 +1251,8 @@ abstract class AbstractServer implements Server {
         throw new IllegalArgumentException("Invalid port number. Must be in range 0-65535.");
       }
 
-      Server server = getServerInstance(port);
+      Options options = Options.parse(args, 1);
+      Server server = getServerInstance(port, options);
       server.start();
     } catch (IOException | IllegalArgumentException e) {
       System.out.println(getTimestamp() + "ERROR: " + e.getMessage());
@@ -0,0 +1,94 @@
+package project1.servers;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class that measures how many bytes of heap the threads of a server allocate per request,
+ * split between moving the request in and out (receiving, decoding, encoding and sending) and
+ * processing it (applying it to the store and logging it). It reads the allocation counter that
+ * the JVM keeps for every thread, which is only available on HotSpot based JVMs; elsewhere the
+ * meter reports nothing. Each request must be measured from start to end on a single thread.
+ */
+final class AllocationMeter {
+  private final com.sun.management.ThreadMXBean threads;
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder totalBytes = new LongAdder();
+  private final LongAdder processingBytes = new LongAdder();
+  private long reportedRequests;
+  private long reportedTotal;
+  private long reportedProcessing;
+
+  /**
+   * Constructor to create a meter, which is enabled if the JVM counts allocated bytes per thread.
+   */
+  AllocationMeter() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    com.sun.management.ThreadMXBean sun = null;
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      sun = (com.sun.management.ThreadMXBean) bean;
+      if (sun.isThreadAllocatedMemorySupported()) {
+        sun.setThreadAllocatedMemoryEnabled(true);
+      } else {
+        sun = null;
+      }
+    }
+    this.threads = sun;
+  }
+
+  boolean isEnabled() {
+    return threads != null;
+  }
+
+  /**
+   * Returns the number of bytes allocated so far by the current thread, to be subtracted from a
+   * later reading.
+   *
+   * @return the number of bytes, or 0 if the meter is disabled.
+   */
+  long now() {
+    return threads == null ? 0 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Adds the bytes allocated while processing a request.
+   *
+   * @param bytes the difference between two readings taken around the processing.
+   */
+  void processing(long bytes) {
+    processingBytes.add(bytes);
+  }
+
+  /**
+   * Adds a request once it has been handled from start to end.
+   *
+   * @param bytes the difference between two readings taken around the whole request, including
+   *              the processing.
+   */
+  void request(long bytes) {
+    totalBytes.add(bytes);
+    requests.increment();
+  }
+
+  /**
+   * Describes the bytes allocated per request since the last report.
+   *
+   * @return the description, or null if no request has been handled since then.
+   */
+  synchronized String report() {
+    long count = requests.sum();
+    long total = totalBytes.sum();
+    long processing = processingBytes.sum();
+    long newRequests = count - reportedRequests;
+    if (newRequests == 0) {
+      return null;
+    }
+    long newTotal = total - reportedTotal;
+    long newProcessing = processing - reportedProcessing;
+    reportedRequests = count;
+    reportedTotal = total;
+    reportedProcessing = processing;
+    return "Allocated " + (newTotal - newProcessing) / newRequests + " bytes per request moving requests in and out and "
+            + newProcessing / newRequests + " processing them, over " + newRequests + " requests";
+  }
+}
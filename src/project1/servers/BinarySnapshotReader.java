@@ -0,0 +1,180 @@
+package project1.servers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Class that loads a snapshot written by BinarySnapshotWriter by memory-mapping the file, so that
+ * the entries are decoded straight from the page cache without copying the file through
+ * buffers. Files with an index are split across several threads at the indexed entries.
+ */
+final class BinarySnapshotReader {
+  private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+  private final FileChannel channel;
+  private final long end;
+  private MappedByteBuffer window;
+  private long windowStart;
+
+  private BinarySnapshotReader(FileChannel channel, long end) {
+    this.channel = channel;
+    this.end = end;
+  }
+
+  /**
+   * Reads every key-value pair in the file after checking its header and checksum.
+   *
+   * @param file    the file to read.
+   * @param sink    receives every pair read, from several threads at the same time if the
+   *                file is split.
+   * @param workers the threads to split the file across, or null to read it on the calling
+   *                thread.
+   * @param threads the number of parts to split the file into when workers are given.
+   * @return the number of pairs read.
+   * @throws IOException in case of errors while reading the file or if it is corrupt.
+   */
+  static long read(Path file, BiConsumer<String, String> sink, ExecutorService workers, int threads)
+          throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(BinarySnapshotWriter.HEADER_SIZE);
+      while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+        // keep reading until the whole header is in.
+      }
+      header.flip();
+      byte[] magic = new byte[BinarySnapshotWriter.MAGIC.length];
+      if (header.remaining() < BinarySnapshotWriter.HEADER_SIZE) {
+        throw new IOException("Corrupt snapshot " + file + ", header is incomplete");
+      }
+      header.get(magic);
+      int version = header.getInt();
+      int flags = header.getInt();
+      long count = header.getLong();
+      long indexOffset = header.getLong();
+      long expectedCrc = header.getLong();
+      if (!Arrays.equals(magic, BinarySnapshotWriter.MAGIC) || version != BinarySnapshotWriter.VERSION) {
+        throw new IOException("Unsupported snapshot " + file);
+      }
+      if (checksum(channel) != expectedCrc) {
+        throw new IOException("Corrupt snapshot " + file + ", checksum does not match");
+      }
+
+      boolean indexed = (flags & BinarySnapshotWriter.FLAG_INDEX) != 0;
+      long dataEnd = indexed ? indexOffset : channel.size();
+      long[] starts = indexed && workers != null && threads > 1
+              ? partStarts(channel, indexOffset, threads)
+              : new long[] {BinarySnapshotWriter.HEADER_SIZE};
+
+      long total;
+      if (starts.length == 1) {
+        total = new BinarySnapshotReader(channel, dataEnd).readFrom(starts[0], sink);
+      } else {
+        List<Future<Long>> parts = new ArrayList<>();
+        for (int i = 0; i < starts.length; i++) {
+          long from = starts[i];
+          long to = i + 1 < starts.length ? starts[i + 1] : dataEnd;
+          parts.add(workers.submit(() -> new BinarySnapshotReader(channel, to).readFrom(from, sink)));
+        }
+        total = 0;
+        for (Future<Long> part : parts) {
+          total += part.get();
+        }
+      }
+
+      if (total != count) {
+        throw new IOException("Corrupt snapshot " + file + ", expected " + count + " entries but found " + total);
+      }
+      return total;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading " + file);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+  }
+
+  /**
+   * Computes the crc32 of everything after the header, one mapped window at a time.
+   */
+  private static long checksum(FileChannel channel) throws IOException {
+    CRC32 crc = new CRC32();
+    long size = channel.size();
+    for (long position = BinarySnapshotWriter.HEADER_SIZE; position < size; position += WINDOW_SIZE) {
+      crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, size - position)));
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Reads the index and picks evenly spaced indexed entries as the starts of the parts.
+   */
+  private static long[] partStarts(FileChannel channel, long indexOffset, int threads) throws IOException {
+    ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, channel.size() - indexOffset);
+    int n = index.getInt();
+    if (n == 0) {
+      return new long[] {BinarySnapshotWriter.HEADER_SIZE};
+    }
+
+    int parts = Math.min(threads, n);
+    long[] starts = new long[parts];
+    for (int i = 0; i < parts; i++) {
+      starts[i] = index.getLong(4 + 8 * (int) ((long) n * i / parts));
+    }
+    return starts;
+  }
+
+  private long readFrom(long position, BiConsumer<String, String> sink) throws IOException {
+    long count = 0;
+    while (position < end) {
+      String key = readString(position);
+      position += 4 + window.getInt((int) (position - windowStart));
+      String value = readString(position);
+      position += 4 + window.getInt((int) (position - windowStart));
+      sink.accept(key, value);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Decodes the length-prefixed string at the given position, mapping the part of the file it
+   * is in if it is not in the current window.
+   */
+  private String readString(long position) throws IOException {
+    ensureMapped(position, 4);
+    int length = window.getInt((int) (position - windowStart));
+    if (length < 0 || position + 4 + length > end) {
+      throw new IOException("Corrupt snapshot, entry runs past the end of the data");
+    }
+    ensureMapped(position, 4 + length);
+
+    byte[] bytes = new byte[length];
+    window.position((int) (position - windowStart) + 4);
+    window.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private void ensureMapped(long position, int length) throws IOException {
+    if (window != null && position >= windowStart && position + length <= windowStart + window.limit()) {
+      return;
+    }
+    if (position + length > end) {
+      throw new IOException("Corrupt snapshot, entry runs past the end of the data");
+    }
+    windowStart = position;
+    window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Math.max(WINDOW_SIZE, length), end - position));
+  }
+}
@@ -0,0 +1,100 @@
+package project1.servers;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Class that writes a snapshot in a compact binary format which can be loaded straight from a
+ * memory-mapped file. The file is laid out as
+ * [header][entries][index], where the header is
+ * [8 byte magic KVSNAP01][int version][int flags][long entry count][long index offset][long crc32],
+ * each entry is [int key length][key][int value length][value] with keys and values in UTF-8, and
+ * the optional index is [int n][n longs], the offset of every INDEX_EVERY-th entry, which lets
+ * the entries be loaded by several threads at once. The crc32 covers everything after the header.
+ */
+final class BinarySnapshotWriter implements SnapshotWriter {
+  static final byte[] MAGIC = "KVSNAP01".getBytes(StandardCharsets.US_ASCII);
+  static final int VERSION = 1;
+  static final int FLAG_INDEX = 1;
+  static final int HEADER_SIZE = 40;
+  static final int INDEX_EVERY = 4096;
+
+  private final FileOutputStream file;
+  private final CRC32 crc;
+  private final DataOutputStream out;
+  private final boolean index;
+  private long[] offsets;
+  private int offsetCount;
+  private long position;
+  private long count;
+
+  /**
+   * Constructor to create the file and leave room for the header, which is written last.
+   *
+   * @param path  the file to write to, which is replaced if it exists.
+   * @param index whether to write an index for loading the entries in parallel.
+   * @throws IOException in case of errors while creating the file.
+   */
+  BinarySnapshotWriter(Path path, boolean index) throws IOException {
+    this.file = new FileOutputStream(path.toFile());
+    file.write(new byte[HEADER_SIZE]);
+    this.crc = new CRC32();
+    this.out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(file, 64 * 1024), crc));
+    this.index = index;
+    this.offsets = new long[16];
+    this.position = HEADER_SIZE;
+  }
+
+  @Override
+  public void write(String key, String value) throws IOException {
+    if (index && count % INDEX_EVERY == 0) {
+      if (offsetCount == offsets.length) {
+        offsets = Arrays.copyOf(offsets, offsetCount * 2);
+      }
+      offsets[offsetCount++] = position;
+    }
+
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(keyBytes.length);
+    out.write(keyBytes);
+    out.writeInt(valueBytes.length);
+    out.write(valueBytes);
+    position += 8 + keyBytes.length + valueBytes.length;
+    count++;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      long indexOffset = 0;
+      if (index) {
+        indexOffset = position;
+        out.writeInt(offsetCount);
+        for (int i = 0; i < offsetCount; i++) {
+          out.writeLong(offsets[i]);
+        }
+      }
+      out.flush();
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.put(MAGIC).putInt(VERSION).putInt(index ? FLAG_INDEX : 0).putLong(count).putLong(indexOffset)
+              .putLong(crc.getValue());
+      header.flip();
+      while (header.hasRemaining()) {
+        file.getChannel().write(header, header.position());
+      }
+      file.getFD().sync();
+    } finally {
+      file.close();
+    }
+  }
+}
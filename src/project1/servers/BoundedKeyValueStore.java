@@ -0,0 +1,227 @@
+package project1.servers;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class that stores at most a given number of key-value pairs, or of bytes, and evicts keys
+ * chosen by an eviction policy to make room for new ones, so that the server can run as a cache
+ * in front of another database. The store is split into segments by the hash of the key, each
+ * with its own lock, policy and share of the limits, so requests for keys in different segments
+ * never wait for each other and the policy is applied per segment rather than over the whole
+ * store. The size of a pair is estimated as two bytes per character of its key and value plus
+ * a fixed overhead for the objects that hold it.
+ */
+public class BoundedKeyValueStore implements KeyValueStore {
+  static final long ENTRY_OVERHEAD = 128;
+  private static final int MAX_SEGMENTS = 16;
+  // fewer segments for small limits, so that each still has room for a fair number of pairs.
+  private static final int MIN_ENTRIES_PER_SEGMENT = 64;
+
+  private final long maxEntries;
+  private final long maxBytes;
+  private final Segment[] segments;
+  private final LongAdder hits;
+  private final LongAdder misses;
+  private final LongAdder evictions;
+
+  /**
+   * Constructor to create an empty store.
+   *
+   * @param maxEntries the most pairs held at a time, or 0 for no limit.
+   * @param maxBytes   the most bytes held at a time, or 0 for no limit.
+   * @param eviction   the name of the eviction policy, either lru or lfu.
+   * @throws IllegalArgumentException in case of negative limits, no limit at all or an unknown
+   *                                  policy.
+   */
+  public BoundedKeyValueStore(long maxEntries, long maxBytes, String eviction) throws IllegalArgumentException {
+    if (maxEntries < 0 || maxBytes < 0 || maxEntries == 0 && maxBytes == 0) {
+      throw new IllegalArgumentException("Invalid store limits. Must set --max-entries or --max-bytes to at least 1.");
+    }
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+
+    long smallest = Math.min(maxEntries > 0 ? maxEntries : Long.MAX_VALUE,
+            maxBytes > 0 ? maxBytes / (ENTRY_OVERHEAD * 4) : Long.MAX_VALUE);
+    int count = 1;
+    while (count < MAX_SEGMENTS && smallest / (count * 2) >= MIN_ENTRIES_PER_SEGMENT) {
+      count *= 2;
+    }
+    this.segments = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      segments[i] = new Segment(share(maxEntries, count, i), share(maxBytes, count, i), EvictionPolicy.create(eviction));
+    }
+    this.hits = new LongAdder();
+    this.misses = new LongAdder();
+    this.evictions = new LongAdder();
+  }
+
+  /**
+   * Splits a limit between segments, giving the remainder to the first ones.
+   */
+  private static long share(long limit, int count, int index) {
+    return limit == 0 ? 0 : limit / count + (index < limit % count ? 1 : 0);
+  }
+
+  static long sizeOf(String key, String value) {
+    return ENTRY_OVERHEAD + 2L * (key.length() + value.length());
+  }
+
+  private Segment segmentFor(String key) {
+    int h = key.hashCode();
+    return segments[(h ^ h >>> 16) & (segments.length - 1)];
+  }
+
+  @Override
+  public String get(String key) {
+    Segment segment = segmentFor(key);
+    String value;
+    synchronized (segment) {
+      value = segment.map.get(key);
+      if (value != null) {
+        segment.policy.accessed(key);
+      }
+    }
+    (value != null ? hits : misses).increment();
+    return value;
+  }
+
+  @Override
+  public String peek(String key) {
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      return segment.map.get(key);
+    }
+  }
+
+  @Override
+  public String put(String key, String value) {
+    Segment segment = segmentFor(key);
+    String previous;
+    int evicted;
+    synchronized (segment) {
+      previous = segment.map.put(key, value);
+      if (previous == null) {
+        segment.policy.added(key);
+        segment.bytes += sizeOf(key, value);
+      } else {
+        segment.policy.accessed(key);
+        segment.bytes += 2L * (value.length() - previous.length());
+      }
+      evicted = segment.evict(key);
+    }
+    if (evicted > 0) {
+      evictions.add(evicted);
+    }
+    return previous;
+  }
+
+  @Override
+  public String delete(String key) {
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      String previous = segment.map.remove(key);
+      if (previous != null) {
+        segment.policy.removed(key);
+        segment.bytes -= sizeOf(key, previous);
+      }
+      return previous;
+    }
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.map.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Returns the key-value pairs stored. Each segment is copied while holding its lock, so
+   * requests for keys in a segment wait while it is being copied.
+   *
+   * @return the key-value pairs stored.
+   */
+  @Override
+  public Iterable<Map.Entry<String, String>> snapshot() {
+    List<Map.Entry<String, String>> pairs = new ArrayList<>();
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        for (Map.Entry<String, String> entry : segment.map.entrySet()) {
+          pairs.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+        }
+      }
+    }
+    return pairs;
+  }
+
+  @Override
+  public Map<String, Long> stats() {
+    long entries = 0;
+    long bytes = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        entries += segment.map.size();
+        bytes += segment.bytes;
+      }
+    }
+    Map<String, Long> stats = new LinkedHashMap<>();
+    stats.put("hits", hits.sum());
+    stats.put("misses", misses.sum());
+    stats.put("evictions", evictions.sum());
+    stats.put("entries", entries);
+    stats.put("max_entries", maxEntries);
+    stats.put("resident_bytes", bytes);
+    stats.put("max_bytes", maxBytes);
+    return stats;
+  }
+
+  /**
+   * Class that holds the pairs of one segment along with the policy that orders them.
+   */
+  private static final class Segment {
+    private final long maxEntries;
+    private final long maxBytes;
+    private final EvictionPolicy policy;
+    private final Map<String, String> map;
+    private long bytes;
+
+    private Segment(long maxEntries, long maxBytes, EvictionPolicy policy) {
+      this.maxEntries = maxEntries;
+      this.maxBytes = maxBytes;
+      this.policy = policy;
+      this.map = new HashMap<>();
+    }
+
+    /**
+     * Evicts keys until the segment is within its limits, sparing the key just stored while any
+     * other key is left. A pair larger than the byte limit on its own is evicted as well, right
+     * after being stored.
+     *
+     * @param stored the key just stored.
+     * @return the number of keys evicted.
+     */
+    private int evict(String stored) {
+      int evicted = 0;
+      while ((maxEntries > 0 && map.size() > maxEntries) || (maxBytes > 0 && bytes > maxBytes)) {
+        String victim = policy.victim(stored);
+        if (victim == null) {
+          break;
+        }
+        policy.removed(victim);
+        bytes -= sizeOf(victim, map.remove(victim));
+        evicted++;
+      }
+      return evicted;
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package project1.servers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Class that hands out direct buffers of a fixed size and takes them back once they are no
+ * longer needed, so that the buffers datagrams are received into and sent from are allocated
+ * once and reused by every request instead of being created and collected for each of them.
+ * Direct buffers are used because the operating system reads and writes them in place, whereas
+ * the contents of a heap buffer are first copied into a direct one. At most the given number of
+ * free buffers is kept, any buffer released beyond that is left to the garbage collector. The
+ * pool may be shared by several threads.
+ */
+final class BufferPool {
+  private final int bufferSize;
+  private final ByteBuffer[] free;
+  private int size;
+  private long created;
+
+  /**
+   * Constructor to create an empty pool.
+   *
+   * @param bufferSize the capacity of every buffer in bytes.
+   * @param maxFree    the most free buffers kept for reuse.
+   */
+  BufferPool(int bufferSize, int maxFree) {
+    this.bufferSize = bufferSize;
+    this.free = new ByteBuffer[maxFree];
+  }
+
+  /**
+   * Takes a free buffer from the pool, or creates a new one if there is none.
+   *
+   * @return an empty buffer, with its position at 0 and its limit at its capacity.
+   */
+  synchronized ByteBuffer acquire() {
+    if (size == 0) {
+      created++;
+      return ByteBuffer.allocateDirect(bufferSize);
+    }
+    ByteBuffer buffer = free[--size];
+    free[size] = null;
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Gives a buffer back to the pool. The buffer must not be used after it has been released.
+   *
+   * @param buffer a buffer taken from this pool.
+   */
+  synchronized void release(ByteBuffer buffer) {
+    if (size < free.length) {
+      free[size++] = buffer;
+    }
+  }
+
+  /**
+   * Returns the number of buffers created so far, which stops growing once the pool holds
+   * enough buffers for the requests processed at the same time.
+   *
+   * @return the number of buffers.
+   */
+  synchronized long created() {
+    return created;
+  }
+}
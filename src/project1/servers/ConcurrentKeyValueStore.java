@@ -0,0 +1,44 @@
+package project1.servers;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class that stores key-value pairs in a ConcurrentHashMap, so that gets never block and puts
+ * and deletes only contend with other writes to keys in the same bin.
+ */
+public class ConcurrentKeyValueStore implements KeyValueStore {
+  private final ConcurrentHashMap<String, String> map;
+
+  /**
+   * Constructor to create an empty store.
+   */
+  public ConcurrentKeyValueStore() {
+    this.map = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public String get(String key) {
+    return map.get(key);
+  }
+
+  @Override
+  public String put(String key, String value) {
+    return map.put(key, value);
+  }
+
+  @Override
+  public String delete(String key) {
+    return map.remove(key);
+  }
+
+  @Override
+  public int size() {
+    return map.size();
+  }
+
+  @Override
+  public Iterable<Map.Entry<String, String>> snapshot() {
+    return map.entrySet();
+  }
+}
@@ -0,0 +1,63 @@
+package project1.servers;
+
+import java.io.IOException;
+
+/**
+ * Interface that represents a single client the server is talking to. Every request is processed
+ * on behalf of a connection, which knows where the request came from and how to send the
+ * response back, so that many clients can be served at the same time.
+ */
+interface Connection {
+
+  /**
+   * Returns the ip address of the client on the other end of this connection.
+   *
+   * @return the ip address as a String.
+   */
+  String getIp();
+
+  /**
+   * Returns the port of the client on the other end of this connection.
+   *
+   * @return the port number as a String.
+   */
+  String getPort();
+
+  /**
+   * Sends a response back to the client on the other end of this connection.
+   *
+   * @param res The response as a String.
+   * @throws IOException in case of errors while sending the data to the client.
+   */
+  void send(String res) throws IOException;
+
+  /**
+   * Returns whether the client can tell messages it did not ask for apart from responses, i.e.,
+   * whether push may be used on this connection.
+   *
+   * @return true if messages can be pushed, false otherwise.
+   */
+  default boolean canPush() {
+    return false;
+  }
+
+  /**
+   * Queues a message the client did not ask for, eg: that a key it cached has changed, to be
+   * written without making the caller wait for the client. Such messages carry the request id
+   * Protocol.PUSH_ID, which no request of a client ever uses. If too many messages are already
+   * waiting to be written, eg: because the client stopped reading, the message is dropped
+   * instead, except for Protocol.INVALIDATE_ALL, which is always queued.
+   *
+   * @param message the message as a String.
+   * @return true if the message was queued, false if it was dropped.
+   * @throws IOException if the connection cannot carry pushed messages.
+   */
+  default boolean push(String message) throws IOException {
+    throw new IOException("Connection cannot carry pushed messages");
+  }
+
+  /**
+   * Closes this connection and releases any resources held for it.
+   */
+  void close();
+}
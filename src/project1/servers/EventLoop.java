@@ -0,0 +1,163 @@
+package project1.servers;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Class that runs a single selector on its own thread and dispatches readiness events to the
+ * handlers attached to the channels registered with it. Many connections share one event loop,
+ * so a handful of threads can serve any number of idle-but-connected clients.
+ */
+final class EventLoop implements Runnable {
+  private final Selector selector;
+  private final Queue<Runnable> tasks;
+  private final Thread thread;
+  private volatile boolean running;
+
+  /**
+   * Interface for the objects attached to the channels registered with an event loop.
+   */
+  interface Handler {
+
+    /**
+     * Called on the event loop thread when the channel is ready for the operations of interest.
+     *
+     * @param key the selection key of the channel.
+     * @throws IOException in case of errors while reading from or writing to the channel.
+     */
+    void handle(SelectionKey key) throws IOException;
+
+    /**
+     * Called on the event loop thread when handling the channel failed, after which the
+     * channel will no longer be selected.
+     *
+     * @param e the error that occurred.
+     */
+    void failed(IOException e);
+  }
+
+  /**
+   * Constructor to open the selector and create the thread the loop will run on.
+   *
+   * @param name name of the thread.
+   * @throws IOException in case of errors while opening the selector.
+   */
+  EventLoop(String name) throws IOException {
+    this.selector = Selector.open();
+    this.tasks = new ConcurrentLinkedQueue<>();
+    this.thread = new Thread(this, name);
+    this.thread.setDaemon(true);
+  }
+
+  void start() {
+    running = true;
+    thread.start();
+  }
+
+  /**
+   * Returns whether the calling thread is the thread this event loop runs on.
+   *
+   * @return true if called from the event loop, false otherwise.
+   */
+  boolean inEventLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * Runs a task on the event loop thread, waking the selector up if it is waiting for events.
+   *
+   * @param task the task to run.
+   */
+  void execute(Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /**
+   * Registers a channel with this event loop. The channel must be in non-blocking mode.
+   *
+   * @param channel the channel to register.
+   * @param ops     the operations of interest (eg: SelectionKey.OP_READ).
+   * @param handler the handler to dispatch readiness events to.
+   */
+  void register(SelectableChannel channel, int ops, Handler handler) {
+    execute(() -> {
+      try {
+        channel.register(selector, ops, handler);
+      } catch (ClosedChannelException e) {
+        handler.failed(e);
+      }
+    });
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      try {
+        selector.select();
+        runTasks();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          Handler handler = (Handler) key.attachment();
+          try {
+            if (key.isValid()) {
+              handler.handle(key);
+            }
+          } catch (IOException e) {
+            key.cancel();
+            handler.failed(e);
+          } catch (RuntimeException e) {
+            // a bug in one handler fails only its own channel, not every channel of the loop.
+            key.cancel();
+            handler.failed(new IOException(e));
+          }
+        }
+      } catch (IOException | ClosedSelectorException e) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Runs the tasks submitted since the last time. A task that throws is reported to the
+   * uncaught exception handler of the thread, and the loop carries on with the next one.
+   */
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+      }
+    }
+  }
+
+  /**
+   * Stops the event loop and waits for its thread to finish.
+   */
+  void close() {
+    running = false;
+    selector.wakeup();
+    try {
+      if (!inEventLoop()) {
+        thread.join();
+      }
+      selector.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException ignored) {
+      // the loop is shutting down, nothing else to do with the selector.
+    }
+  }
+}
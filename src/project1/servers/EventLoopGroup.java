@@ -0,0 +1,73 @@
+package project1.servers;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class that holds a fixed number of event loops and hands out channels to them in a
+ * round-robin fashion. All the event loops of a server share the same key-value store.
+ */
+final class EventLoopGroup {
+  private final EventLoop[] loops;
+  private final AtomicInteger next;
+  private final CountDownLatch closed;
+
+  /**
+   * Constructor to create and start the event loops.
+   *
+   * @param size number of event loops, each running on its own thread.
+   * @param name prefix for the names of the event loop threads.
+   * @throws IOException              in case of errors while opening the selectors.
+   * @throws IllegalArgumentException in case of an invalid number of event loops.
+   */
+  EventLoopGroup(int size, String name) throws IOException, IllegalArgumentException {
+    if (size < 1) {
+      throw new IllegalArgumentException("Invalid number of event loops. Must be at least 1.");
+    }
+    this.loops = new EventLoop[size];
+    this.next = new AtomicInteger();
+    this.closed = new CountDownLatch(1);
+    for (int i = 0; i < size; i++) {
+      loops[i] = new EventLoop(name + "-" + (i + 1));
+      loops[i].start();
+    }
+  }
+
+  /**
+   * Returns the event loop that the next channel should be registered with.
+   *
+   * @return an event loop of this group.
+   */
+  EventLoop next() {
+    return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+  }
+
+  /**
+   * Returns all the event loops of this group.
+   *
+   * @return the event loops.
+   */
+  EventLoop[] all() {
+    return loops;
+  }
+
+  /**
+   * Blocks the calling thread until this group is closed.
+   *
+   * @throws InterruptedException if the calling thread is interrupted while waiting.
+   */
+  void awaitClose() throws InterruptedException {
+    closed.await();
+  }
+
+  /**
+   * Stops all the event loops of this group.
+   */
+  void close() {
+    for (EventLoop loop : loops) {
+      loop.close();
+    }
+    closed.countDown();
+  }
+}
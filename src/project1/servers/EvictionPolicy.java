@@ -0,0 +1,63 @@
+package project1.servers;
+
+/**
+ * Interface for deciding which key a bounded store drops when it runs out of room. A policy
+ * is told about every key added to, read from or removed from the part of the store it looks
+ * after, and is only ever used by one thread at a time.
+ */
+interface EvictionPolicy {
+  String LRU = "lru";
+  String LFU = "lfu";
+
+  /**
+   * Creates a policy that tracks no keys.
+   *
+   * @param name either lru to evict the least recently used key or lfu to evict the least
+   *             frequently used one.
+   * @return the policy.
+   * @throws IllegalArgumentException in case of an unknown policy.
+   */
+  static EvictionPolicy create(String name) throws IllegalArgumentException {
+    switch (name) {
+      case LRU:
+        return new LruPolicy();
+
+      case LFU:
+        return new LfuPolicy();
+
+      default:
+        throw new IllegalArgumentException("Invalid eviction " + name + ". Must be lru or lfu.");
+    }
+  }
+
+  /**
+   * Records that a key was added.
+   *
+   * @param key the new key.
+   */
+  void added(String key);
+
+  /**
+   * Records that a key was read or that its value was replaced.
+   *
+   * @param key a key that was added before.
+   */
+  void accessed(String key);
+
+  /**
+   * Records that a key was removed, either by a client or by eviction.
+   *
+   * @param key a key that was added before.
+   */
+  void removed(String key);
+
+  /**
+   * Chooses the key to evict next, without removing it. The key that was just added or
+   * accessed is spared, so that storing a key never evicts the key itself while others are
+   * left.
+   *
+   * @param spared the key to choose only if it is the last one tracked.
+   * @return the key, or null if no key is tracked.
+   */
+  String victim(String spared);
+}
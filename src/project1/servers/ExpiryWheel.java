@@ -0,0 +1,191 @@
+package project1.servers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class that keeps track of when keys expire and tells the server once they have, without ever
+ * scanning every key. Deadlines are hashed into the slots of a timing wheel by the tick they
+ * fall in, and a background thread visits one slot per tick, so the work done per tick only
+ * depends on the keys that fall in that slot. Keys due more than a full turn of the wheel later
+ * simply stay in their slot until the turn they are due. Since a key is only removed once its
+ * tick has passed, readers must also check isExpired so that a key is never seen after its
+ * deadline.
+ * A key that is stored again or deleted leaves its old deadline behind in the wheel, which is
+ * recognised as stale and dropped when its slot is visited.
+ */
+final class ExpiryWheel {
+  private static final long TICK_MS = 100;
+  private static final int SLOTS = 512;
+
+  /**
+   * Interface for removing a key once its deadline has passed.
+   */
+  interface Expirer {
+
+    /**
+     * Removes a key, unless its deadline changed since it was handed to the wheel.
+     *
+     * @param key      the key that expired.
+     * @param deadline the deadline that passed, in milli-sec since the epoch.
+     */
+    void expire(String key, long deadline);
+  }
+
+  private final ConcurrentHashMap<String, Long> deadlines;
+  private final Slot[] slots;
+  private final Expirer expirer;
+  private long nextTick;
+  private ScheduledExecutorService ticker;
+
+  /**
+   * Constructor to create a wheel that tracks no keys.
+   *
+   * @param expirer what removes keys once they expire.
+   */
+  ExpiryWheel(Expirer expirer) {
+    this.deadlines = new ConcurrentHashMap<>();
+    this.slots = new Slot[SLOTS];
+    for (int i = 0; i < SLOTS; i++) {
+      slots[i] = new Slot();
+    }
+    this.expirer = expirer;
+  }
+
+  /**
+   * Starts visiting the slots in the background, one every tick.
+   */
+  void start() {
+    nextTick = System.currentTimeMillis() / TICK_MS;
+    ticker = Executors.newSingleThreadScheduledExecutor(Workers.named("expiry"));
+    ticker.scheduleAtFixedRate(this::advance, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+  }
+
+  void close() {
+    if (ticker != null) {
+      ticker.shutdownNow();
+    }
+  }
+
+  /**
+   * Makes a key expire at the given time, replacing any deadline it had.
+   *
+   * @param key      the key.
+   * @param deadline when the key expires, in milli-sec since the epoch.
+   */
+  void set(String key, long deadline) {
+    deadlines.put(key, deadline);
+    slots[slotOf(deadline / TICK_MS)].add(new Timer(key, deadline));
+  }
+
+  /**
+   * Makes a key never expire.
+   *
+   * @param key the key.
+   */
+  void clear(String key) {
+    if (!deadlines.isEmpty()) {
+      deadlines.remove(key);
+    }
+  }
+
+  /**
+   * Returns when a key expires.
+   *
+   * @param key the key.
+   * @return the deadline in milli-sec since the epoch, or 0 if the key does not expire.
+   */
+  long deadline(String key) {
+    Long deadline = deadlines.isEmpty() ? null : deadlines.get(key);
+    return deadline == null ? 0 : deadline;
+  }
+
+  /**
+   * Returns whether a key has a deadline that has passed, even if it has not been removed yet.
+   *
+   * @param key the key.
+   * @param now the current time in milli-sec since the epoch.
+   * @return true if the key expired, false otherwise.
+   */
+  boolean isExpired(String key, long now) {
+    long deadline = deadline(key);
+    return deadline != 0 && deadline <= now;
+  }
+
+  /**
+   * Returns the keys that have a deadline. The set reflects later changes.
+   *
+   * @return the keys.
+   */
+  Set<String> keys() {
+    return deadlines.keySet();
+  }
+
+  /**
+   * Visits the slot of every tick that has ended since the last visit. If the thread fell more
+   * than a full turn behind, every slot is visited once.
+   */
+  private void advance() {
+    long now = System.currentTimeMillis();
+    long lastEnded = now / TICK_MS - 1;
+    if (lastEnded - nextTick >= SLOTS) {
+      nextTick = lastEnded - SLOTS + 1;
+    }
+    for (; nextTick <= lastEnded; nextTick++) {
+      visit(slots[slotOf(nextTick)], now);
+    }
+  }
+
+  private void visit(Slot slot, long now) {
+    for (Timer timer : slot.drain()) {
+      Long deadline = deadlines.get(timer.key);
+      if (deadline == null || deadline != timer.deadline) {
+        continue;
+      }
+      if (timer.deadline <= now) {
+        expirer.expire(timer.key, timer.deadline);
+      } else {
+        slot.add(timer);
+      }
+    }
+  }
+
+  private static int slotOf(long tick) {
+    return (int) Math.floorMod(tick, (long) SLOTS);
+  }
+
+  /**
+   * Class that holds the deadlines hashed into one slot of the wheel.
+   */
+  private static final class Slot {
+    private List<Timer> timers = new ArrayList<>();
+
+    synchronized void add(Timer timer) {
+      timers.add(timer);
+    }
+
+    synchronized List<Timer> drain() {
+      List<Timer> drained = timers;
+      timers = new ArrayList<>();
+      return drained;
+    }
+  }
+
+  /**
+   * Class that holds a deadline as it was when it was handed to the wheel.
+   */
+  private static final class Timer {
+    private final String key;
+    private final long deadline;
+
+    private Timer(String key, long deadline) {
+      this.key = key;
+      this.deadline = deadline;
+    }
+  }
+}
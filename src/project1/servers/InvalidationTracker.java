@@ -0,0 +1,123 @@
+package project1.servers;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import project1.Protocol;
+
+/**
+ * Class that remembers which keys clients with a near cache have read, so that they can be told
+ * as soon as one of those keys changes and drop it from their cache. A client turns this on for
+ * its connection with TRACK, after which every key it GETs is remembered for the connection,
+ * and the next write or expiry of the key pushes INVALIDATE \t key to it and forgets the key
+ * again until the client reads it once more. Pushes are queued on the connection, so a write
+ * never waits for a client to read them. A client whose queue is full is no longer tracked and
+ * is pushed INVALIDATE_ALL instead, telling it to drop its whole cache and TRACK again.
+ *
+ * <p>At most --tracking-max-keys keys (default 1000000) are remembered. To remember another one,
+ * an arbitrary key is invalidated early on every connection that read it, which only costs those
+ * clients a cache miss.
+ */
+final class InvalidationTracker {
+  private final Set<Connection> tracking;
+  private final ConcurrentHashMap<String, Set<Connection>> readers;
+  private final int maxKeys;
+
+  /**
+   * Constructor to create a tracker where no connection is tracking yet.
+   *
+   * @param maxKeys most keys remembered at once.
+   */
+  InvalidationTracker(int maxKeys) {
+    if (maxKeys < 1) {
+      throw new IllegalArgumentException("Invalid tracking max keys. Must be at least 1.");
+    }
+    this.tracking = ConcurrentHashMap.newKeySet();
+    this.readers = new ConcurrentHashMap<>();
+    this.maxKeys = maxKeys;
+  }
+
+  /**
+   * Starts remembering the keys a connection reads.
+   *
+   * @param connection the connection to track.
+   * @return true if tracking started, false if the connection cannot carry pushed messages.
+   */
+  boolean enable(Connection connection) {
+    if (!connection.canPush()) {
+      return false;
+    }
+    tracking.add(connection);
+    return true;
+  }
+
+  /**
+   * Stops tracking a connection that is closing. Keys it read are left in place and skipped when
+   * they are invalidated.
+   *
+   * @param connection the connection that is closing.
+   */
+  void forget(Connection connection) {
+    tracking.remove(connection);
+  }
+
+  boolean isTracking(Connection connection) {
+    return !tracking.isEmpty() && tracking.contains(connection);
+  }
+
+  /**
+   * Remembers that a connection is about to read a key. This has to happen before the key is
+   * read, so that a write landing between the read and the response still reaches the client.
+   *
+   * @param key        the key about to be read.
+   * @param connection the connection reading it.
+   */
+  void track(String key, Connection connection) {
+    if (readers.size() >= maxKeys && !readers.containsKey(key)) {
+      Iterator<String> it = readers.keySet().iterator();
+      if (it.hasNext()) {
+        invalidate(it.next());
+      }
+    }
+    // compute is atomic with the remove in invalidate, so a connection is never added to a set
+    // that has already been invalidated.
+    readers.compute(key, (k, connections) -> {
+      Set<Connection> set = connections != null ? connections : ConcurrentHashMap.newKeySet();
+      set.add(connection);
+      return set;
+    });
+  }
+
+  /**
+   * Tells every connection that read a key since it last changed that it changed, and forgets
+   * them. Must be called after the change has been applied to the store.
+   *
+   * @param key the key that was written, deleted or expired.
+   */
+  void invalidate(String key) {
+    if (readers.isEmpty()) {
+      return;
+    }
+    Set<Connection> connections = readers.remove(key);
+    if (connections == null) {
+      return;
+    }
+    for (Connection connection : connections) {
+      if (!tracking.contains(connection)) {
+        continue;
+      }
+      try {
+        // removed from tracking before INVALIDATE_ALL is queued, so the TRACK the client answers
+        // it with always comes after, and tracking stays on.
+        if (!connection.push(Protocol.INVALIDATE + key) && tracking.remove(connection)) {
+          connection.push(Protocol.INVALIDATE_ALL);
+        }
+      } catch (IOException e) {
+        // the connection is gone, its client no longer has a cache to keep coherent.
+        tracking.remove(connection);
+      }
+    }
+  }
+}
@@ -0,0 +1,370 @@
+package project1.servers;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+/**
+ * Class that reads a contents.json file of the form {"data":[{"key":"..","value":".."},...]}
+ * one character at a time, handing each key-value pair over as soon as it has been read (eg:
+ * to put it into the store), so that loading never needs more memory than the store itself.
+ * Large files can be split across several threads. Each thread starts at a boundary between two
+ * pairs, i.e., the characters },{" followed by a letter, which can only appear between two
+ * objects since a quote inside a string is always escaped. Files where no such boundary is
+ * found, eg: ones with whitespace between pairs, are simply read by fewer threads.
+ */
+final class JsonSnapshotReader {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Reader reader;
+  private final BiConsumer<String, String> sink;
+  private final StringBuilder sb;
+  private int count;
+
+  private JsonSnapshotReader(Reader reader, BiConsumer<String, String> sink) {
+    this.reader = reader;
+    this.sink = sink;
+    this.sb = new StringBuilder();
+  }
+
+  /**
+   * Reads every key-value pair in the file.
+   *
+   * @param file    the file to read.
+   * @param sink    receives every pair read, from several threads at the same time if the
+   *                file is split.
+   * @param workers the threads to split the file across, or null to read it on the calling
+   *                thread.
+   * @param threads the number of parts to split the file into when workers are given.
+   * @return the number of pairs read.
+   * @throws IOException in case of errors while reading the file or if it is malformed.
+   */
+  static long read(Path file, BiConsumer<String, String> sink, ExecutorService workers, int threads)
+          throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (workers == null || threads < 2) {
+        return readRange(channel, 0, size, sink, true);
+      }
+
+      long[] starts = findBoundaries(channel, size, threads);
+      List<Future<Long>> parts = new ArrayList<>();
+      for (int i = 0; i < starts.length; i++) {
+        long from = starts[i];
+        long to = i + 1 < starts.length ? starts[i + 1] : size;
+        boolean whole = i == 0;
+        parts.add(workers.submit(() -> readRange(channel, from, to, sink, whole)));
+      }
+
+      long total = 0;
+      for (Future<Long> part : parts) {
+        total += part.get();
+      }
+      return total;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading " + file);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+  }
+
+  /**
+   * Finds where each part of the file starts. The first part always starts at the beginning
+   * of the file; every other part starts at the first boundary between two pairs after its
+   * share of the file, and parts that would start at the same boundary are merged.
+   */
+  private static long[] findBoundaries(FileChannel channel, long size, int parts) throws IOException {
+    List<Long> starts = new ArrayList<>();
+    starts.add(0L);
+    for (int i = 1; i < parts; i++) {
+      long boundary = nextBoundary(channel, Math.max(size * i / parts, starts.get(starts.size() - 1) + 1), size);
+      if (boundary < 0) {
+        break;
+      }
+      if (boundary > starts.get(starts.size() - 1)) {
+        starts.add(boundary);
+      }
+    }
+
+    long[] result = new long[starts.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = starts.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the position of the { that starts the first pair at or after the given position,
+   * or -1 if there is none.
+   */
+  private static long nextBoundary(FileChannel channel, long from, long size) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    long position = from;
+    while (position < size) {
+      buffer.clear();
+      int n = channel.read(buffer, position);
+      if (n <= 0) {
+        break;
+      }
+      byte[] bytes = buffer.array();
+      for (int i = 0; i + 4 < n; i++) {
+        if (bytes[i] == '}' && bytes[i + 1] == ',' && bytes[i + 2] == '{' && bytes[i + 3] == '"'
+                && Character.isLetter(bytes[i + 4])) {
+          return position + i + 2;
+        }
+      }
+      // step back a little so that a boundary split across two reads is not missed.
+      position += Math.max(1, n - 4);
+    }
+    return -1;
+  }
+
+  private static long readRange(FileChannel channel, long from, long to, BiConsumer<String, String> sink,
+                                boolean whole) throws IOException {
+    InputStream in = new RangeInputStream(channel, from, to);
+    Reader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE);
+    JsonSnapshotReader json = new JsonSnapshotReader(reader, sink);
+    if (whole) {
+      json.readDocument();
+    } else {
+      json.readPairs();
+    }
+    return json.count;
+  }
+
+  /**
+   * Reads {"data":[ followed by the pairs. Keys other than data are skipped.
+   */
+  private void readDocument() throws IOException {
+    expect('{');
+    int c = skipWhitespace();
+    if (c == '}') {
+      return;
+    }
+    while (true) {
+      if (c != '"') {
+        throw malformed(c);
+      }
+      String name = readString();
+      expect(':');
+      if (name.equals("data")) {
+        expect('[');
+        readPairs();
+      } else {
+        skipValue(skipWhitespace());
+      }
+
+      c = skipWhitespace();
+      if (c == '}' || c == -1) {
+        return;
+      }
+      if (c != ',') {
+        throw malformed(c);
+      }
+      c = skipWhitespace();
+    }
+  }
+
+  /**
+   * Reads pairs separated by commas until the closing ] of the array or the end of the input.
+   */
+  private void readPairs() throws IOException {
+    int c = skipWhitespace();
+    while (c != ']' && c != -1) {
+      if (c != '{') {
+        throw malformed(c);
+      }
+      readPair();
+      c = skipWhitespace();
+      if (c == ',') {
+        c = skipWhitespace();
+      }
+    }
+  }
+
+  private void readPair() throws IOException {
+    String key = null;
+    String value = null;
+    int c = skipWhitespace();
+    while (c != '}') {
+      if (c != '"') {
+        throw malformed(c);
+      }
+      String name = readString();
+      expect(':');
+      c = skipWhitespace();
+      if (name.equals("key") && c == '"') {
+        key = readString();
+      } else if (name.equals("value") && c == '"') {
+        value = readString();
+      } else {
+        skipValue(c);
+      }
+      c = skipWhitespace();
+      if (c == ',') {
+        c = skipWhitespace();
+      }
+    }
+
+    if (key != null && value != null) {
+      sink.accept(key, value);
+      count++;
+    }
+  }
+
+  /**
+   * Reads the rest of a string whose opening quote has already been read.
+   */
+  private String readString() throws IOException {
+    sb.setLength(0);
+    while (true) {
+      int c = next();
+      if (c == '"') {
+        return sb.toString();
+      }
+      if (c != '\\') {
+        sb.append((char) c);
+        continue;
+      }
+
+      c = next();
+      switch (c) {
+        case 'b':
+          sb.append('\b');
+          break;
+        case 'f':
+          sb.append('\f');
+          break;
+        case 'n':
+          sb.append('\n');
+          break;
+        case 'r':
+          sb.append('\r');
+          break;
+        case 't':
+          sb.append('\t');
+          break;
+        case 'u':
+          int code = 0;
+          for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(next(), 16);
+            if (digit < 0) {
+              throw new IOException("Malformed unicode escape in json");
+            }
+            code = code * 16 + digit;
+          }
+          sb.append((char) code);
+          break;
+        default:
+          sb.append((char) c);
+      }
+    }
+  }
+
+  /**
+   * Skips a value that is not needed, eg: a number, nested object or array.
+   */
+  private void skipValue(int c) throws IOException {
+    if (c == '"') {
+      readString();
+      return;
+    }
+    if (c == '{' || c == '[') {
+      int depth = 1;
+      while (depth > 0) {
+        c = next();
+        if (c == '"') {
+          readString();
+        } else if (c == '{' || c == '[') {
+          depth++;
+        } else if (c == '}' || c == ']') {
+          depth--;
+        }
+      }
+      return;
+    }
+    // literal such as a number, true, false or null.
+    reader.mark(1);
+    while ((c = reader.read()) != -1 && c != ',' && c != '}' && c != ']') {
+      reader.mark(1);
+    }
+    reader.reset();
+  }
+
+  private void expect(int expected) throws IOException {
+    int c = skipWhitespace();
+    if (c != expected) {
+      throw malformed(c);
+    }
+  }
+
+  private int skipWhitespace() throws IOException {
+    int c;
+    do {
+      c = reader.read();
+    } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+    return c;
+  }
+
+  private int next() throws IOException {
+    int c = reader.read();
+    if (c == -1) {
+      throw new EOFException("Unexpected end of json");
+    }
+    return c;
+  }
+
+  private static IOException malformed(int c) {
+    return new IOException(c == -1 ? "Unexpected end of json" : "Unexpected character " + (char) c + " in json");
+  }
+
+  /**
+   * Class that reads a range of a file through positional reads, so that several threads can
+   * read different parts of the same file at the same time.
+   */
+  private static final class RangeInputStream extends InputStream {
+    private final FileChannel channel;
+    private final long end;
+    private long position;
+
+    private RangeInputStream(FileChannel channel, long from, long to) {
+      this.channel = channel;
+      this.position = from;
+      this.end = to;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (position >= end) {
+        return -1;
+      }
+      int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+      if (n > 0) {
+        position += n;
+      }
+      return n;
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package project1.servers;
+
+import org.json.simple.JSONValue;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Class that writes a snapshot in the same json format json-simple produces, i.e.,
+ * {"data":[{"key":"..","value":".."},...]}, one pair at a time.
+ */
+final class JsonSnapshotWriter implements SnapshotWriter {
+  private final FileOutputStream out;
+  private final Writer writer;
+  private boolean first;
+
+  /**
+   * Constructor to create the file and write the start of the document.
+   *
+   * @param file the file to write to, which is replaced if it exists.
+   * @throws IOException in case of errors while creating the file.
+   */
+  JsonSnapshotWriter(Path file) throws IOException {
+    this.out = new FileOutputStream(file.toFile());
+    this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+    this.first = true;
+    writer.write("{\"data\":[");
+  }
+
+  @Override
+  public void write(String key, String value) throws IOException {
+    if (!first) {
+      writer.write(',');
+    }
+    first = false;
+    writer.write("{\"key\":\"");
+    writer.write(JSONValue.escape(key));
+    writer.write("\",\"value\":\"");
+    writer.write(JSONValue.escape(value));
+    writer.write("\"}");
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      writer.write("]}");
+      writer.flush();
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+  }
+}
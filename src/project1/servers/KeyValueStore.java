@@ -0,0 +1,78 @@
+package project1.servers;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Interface that defines the storage behind a server, which holds the key-value pairs that
+ * clients get, put and delete. Implementations must be safe to use from many threads at the
+ * same time since requests from different clients are processed concurrently.
+ */
+public interface KeyValueStore {
+
+  /**
+   * Returns the value stored for a key.
+   *
+   * @param key the key to look up.
+   * @return the value of the key, or null if the key does not exist.
+   */
+  String get(String key);
+
+  /**
+   * Returns the value stored for a key without counting it as a read, i.e., without it making
+   * the key less likely to be evicted or showing up in the hits and misses of the store. Used
+   * for the lookups the server makes on its own, eg: to check that a key exists before deleting
+   * it, and for range queries, so that walking many keys does not evict the ones clients read.
+   * Stores where reading a key has no side effects need not override this.
+   *
+   * @param key the key to look up.
+   * @return the value of the key, or null if the key does not exist.
+   */
+  default String peek(String key) {
+    return get(key);
+  }
+
+  /**
+   * Stores a value for a key, replacing any value the key had.
+   *
+   * @param key   the key to store.
+   * @param value the value to store.
+   * @return the previous value of the key, or null if the key did not exist.
+   */
+  String put(String key, String value);
+
+  /**
+   * Removes a key and its value.
+   *
+   * @param key the key to remove.
+   * @return the value of the removed key, or null if the key did not exist.
+   */
+  String delete(String key);
+
+  /**
+   * Returns the number of keys stored.
+   *
+   * @return the number of keys.
+   */
+  int size();
+
+  /**
+   * Returns the key-value pairs stored, for writing them to a file. Iterating over the result
+   * does not block concurrent requests; it reflects every change made before the call and
+   * may or may not reflect changes made while iterating.
+   *
+   * @return the key-value pairs stored.
+   */
+  Iterable<Map.Entry<String, String>> snapshot();
+
+  /**
+   * Returns figures that describe how the store is doing, eg: how many keys it has evicted, to
+   * be reported by the server.
+   *
+   * @return the figures by name, in the order they should be reported, or an empty map if the
+   *     store has nothing to report.
+   */
+  default Map<String, Long> stats() {
+    return Collections.emptyMap();
+  }
+}
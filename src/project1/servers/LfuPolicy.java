@@ -0,0 +1,99 @@
+package project1.servers;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Class that evicts the least frequently used key, and among keys used equally often the one
+ * that reached that count first. Keys are grouped by how many times they were used, so finding
+ * the victim takes logarithmic time in the number of distinct counts.
+ *
+ * <p>A new key starts with a count of 1, below every key that was used again since it was added,
+ * so it is usually the first to go when the next key is added. It is spared while being added,
+ * so it gets that long to be used again. To let keys that were popular once make room for keys
+ * that are popular now, every count is halved (but never below 1) once there were
+ * AGING_PERIOD additions and accesses per key tracked since the last time, so that even keys
+ * that are only ever added, and evicted again before their next use, wear the old counts down.
+ */
+final class LfuPolicy implements EvictionPolicy {
+  private static final int AGING_PERIOD = 10;
+
+  private final Map<String, Integer> counts = new HashMap<>();
+  private TreeMap<Integer, LinkedHashSet<String>> byCount = new TreeMap<>();
+  private long accesses;
+
+  @Override
+  public void added(String key) {
+    counts.put(key, 1);
+    byCount.computeIfAbsent(1, c -> new LinkedHashSet<>()).add(key);
+    tick();
+  }
+
+  @Override
+  public void accessed(String key) {
+    Integer count = counts.get(key);
+    if (count == null) {
+      return;
+    }
+    if (count < Integer.MAX_VALUE) {
+      unlink(key, count);
+      counts.put(key, count + 1);
+      byCount.computeIfAbsent(count + 1, c -> new LinkedHashSet<>()).add(key);
+    }
+    tick();
+  }
+
+  @Override
+  public void removed(String key) {
+    Integer count = counts.remove(key);
+    if (count != null) {
+      unlink(key, count);
+    }
+  }
+
+  @Override
+  public String victim(String spared) {
+    for (LinkedHashSet<String> keys : byCount.values()) {
+      for (String key : keys) {
+        if (!key.equals(spared)) {
+          return key;
+        }
+      }
+    }
+    return counts.containsKey(spared) ? spared : null;
+  }
+
+  private void tick() {
+    if (++accesses >= (long) AGING_PERIOD * counts.size()) {
+      age();
+    }
+  }
+
+  /**
+   * Halves every count. Keys that end up with the same count stay in the order of their old
+   * counts, so the ones used least are still evicted first.
+   */
+  private void age() {
+    TreeMap<Integer, LinkedHashSet<String>> aged = new TreeMap<>();
+    for (Map.Entry<Integer, LinkedHashSet<String>> entry : byCount.entrySet()) {
+      int count = Math.max(1, entry.getKey() / 2);
+      LinkedHashSet<String> keys = aged.computeIfAbsent(count, c -> new LinkedHashSet<>());
+      for (String key : entry.getValue()) {
+        keys.add(key);
+        counts.put(key, count);
+      }
+    }
+    byCount = aged;
+    accesses = 0;
+  }
+
+  private void unlink(String key, int count) {
+    LinkedHashSet<String> keys = byCount.get(count);
+    keys.remove(key);
+    if (keys.isEmpty()) {
+      byCount.remove(count);
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package project1.servers;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Class that evicts the least recently used key. Keys are kept in a LinkedHashMap in access
+ * order, so every operation takes constant time.
+ */
+final class LruPolicy implements EvictionPolicy {
+  private final LinkedHashMap<String, Boolean> keys = new LinkedHashMap<>(16, 0.75f, true);
+
+  @Override
+  public void added(String key) {
+    keys.put(key, Boolean.TRUE);
+  }
+
+  @Override
+  public void accessed(String key) {
+    keys.get(key);
+  }
+
+  @Override
+  public void removed(String key) {
+    keys.remove(key);
+  }
+
+  @Override
+  public String victim(String spared) {
+    Iterator<String> it = keys.keySet().iterator();
+    if (!it.hasNext()) {
+      return null;
+    }
+    String victim = it.next();
+    return victim.equals(spared) && it.hasNext() ? it.next() : victim;
+  }
+}
@@ -0,0 +1,330 @@
+package project1.servers;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import project1.Command;
+import project1.LatencyHistogram;
+
+/**
+ * Class that counts what a server does: requests and failures per command, invalid requests
+ * per validation code, bytes received and sent, latency histograms per command and how long
+ * snapshots take. Every thread records into its own counters, so recording never contends
+ * with other threads, and the counters of all threads are only added up when they are read.
+ * The counters of threads that have finished, eg: the virtual thread of a client that left,
+ * are folded into a single total so that they do not pile up.
+ */
+final class Metrics {
+  private static final Command[] COMMANDS = Command.values();
+  private static final Server.ValidationCode[] CODES = Server.ValidationCode.values();
+  // requests whose command is unknown are counted after the known commands.
+  private static final int UNKNOWN = COMMANDS.length;
+  private static final int BYTES_IN = 0;
+  private static final int BYTES_OUT = 1;
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  // finished threads are looked for whenever this many more threads have started recording.
+  private static final int FOLD_EVERY = 256;
+
+  private final long startMillis;
+  private final ThreadLocal<Recorder> recorders;
+  private final List<Recorder> live;
+  private final Totals retired;
+  private final AtomicLong snapshots;
+  private final AtomicLong lastSnapshotNanos;
+  private final AtomicLong maxSnapshotNanos;
+
+  /**
+   * Constructor to create metrics where everything is zero.
+   */
+  Metrics() {
+    this.startMillis = System.currentTimeMillis();
+    this.recorders = ThreadLocal.withInitial(this::register);
+    this.live = new ArrayList<>();
+    this.retired = new Totals();
+    this.snapshots = new AtomicLong();
+    this.lastSnapshotNanos = new AtomicLong();
+    this.maxSnapshotNanos = new AtomicLong();
+  }
+
+  private synchronized Recorder register() {
+    if (live.size() % FOLD_EVERY == FOLD_EVERY - 1) {
+      foldFinished();
+    }
+    Recorder recorder = new Recorder(Thread.currentThread());
+    live.add(recorder);
+    return recorder;
+  }
+
+  private void foldFinished() {
+    Iterator<Recorder> it = live.iterator();
+    while (it.hasNext()) {
+      Recorder recorder = it.next();
+      if (!recorder.owner.isAlive()) {
+        retired.add(recorder);
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Counts a request once it has been processed.
+   *
+   * @param command the command of the request, or null if it is unknown.
+   * @param code    the outcome of validating the request.
+   * @param success whether the request succeeded.
+   * @param nanos   how long validating and handling the request took, in nano-sec.
+   */
+  void request(Command command, Server.ValidationCode code, boolean success, long nanos) {
+    Recorder recorder = recorders.get();
+    int index = command == null ? UNKNOWN : command.ordinal();
+    increment(recorder.requests, index, 1);
+    if (code != Server.ValidationCode.VALID_REQUEST_TYPE) {
+      increment(recorder.invalid, code.ordinal(), 1);
+      return;
+    }
+    if (!success) {
+      increment(recorder.failures, index, 1);
+    }
+    LatencyHistogram histogram = recorder.latencies.get(index);
+    if (histogram == null) {
+      histogram = new LatencyHistogram();
+      recorder.latencies.lazySet(index, histogram);
+    }
+    histogram.record(nanos);
+  }
+
+  void bytesIn(long bytes) {
+    increment(recorders.get().bytes, BYTES_IN, bytes);
+  }
+
+  void bytesOut(long bytes) {
+    increment(recorders.get().bytes, BYTES_OUT, bytes);
+  }
+
+  /**
+   * Counts a snapshot once it is on disk.
+   *
+   * @param nanos how long writing the snapshot took, in nano-sec.
+   */
+  void snapshot(long nanos) {
+    snapshots.incrementAndGet();
+    lastSnapshotNanos.set(nanos);
+    maxSnapshotNanos.accumulateAndGet(nanos, Math::max);
+  }
+
+  // only ever called by the thread owning the counters, which is why no atomic add is needed.
+  private static void increment(AtomicLongArray counters, int index, long delta) {
+    counters.lazySet(index, counters.get(index) + delta);
+  }
+
+  /**
+   * Wraps a stream so that every byte read from it is counted as received.
+   *
+   * @param in the stream to count.
+   * @return the counting stream.
+   */
+  InputStream countIn(InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+          bytesIn(1);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+          bytesIn(n);
+        }
+        return n;
+      }
+    };
+  }
+
+  /**
+   * Wraps a stream so that every byte written to it is counted as sent.
+   *
+   * @param out the stream to count.
+   * @return the counting stream.
+   */
+  OutputStream countOut(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        bytesOut(1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        bytesOut(len);
+      }
+    };
+  }
+
+  /**
+   * Adds up the counters of every thread and describes them one per line in the plain text
+   * format Prometheus reads, eg: requests_total{command="GET"} 42. Latencies are in micro-sec.
+   *
+   * @param store          figures reported by the store, added with a store_ prefix.
+   * @param droppedLogLines how many log lines were dropped because the log buffer was full.
+   * @return the description.
+   */
+  String describe(Map<String, Long> store, long droppedLogLines) {
+    Totals totals = new Totals();
+    synchronized (this) {
+      foldFinished();
+      totals.add(retired);
+      for (Recorder recorder : live) {
+        totals.add(recorder);
+      }
+    }
+
+    StringBuilder sb = new StringBuilder();
+    line(sb, "uptime_seconds", "", (System.currentTimeMillis() - startMillis) / 1000);
+    for (int i = 0; i <= UNKNOWN; i++) {
+      if (totals.requests[i] > 0) {
+        line(sb, "requests_total", "{command=\"" + name(i) + "\"}", totals.requests[i]);
+      }
+    }
+    for (int i = 0; i < UNKNOWN; i++) {
+      if (totals.failures[i] > 0) {
+        line(sb, "failures_total", "{command=\"" + name(i) + "\"}", totals.failures[i]);
+      }
+    }
+    for (int i = 0; i < CODES.length; i++) {
+      if (totals.invalid[i] > 0) {
+        line(sb, "invalid_requests_total", "{code=\"" + CODES[i] + "\"}", totals.invalid[i]);
+      }
+    }
+    line(sb, "bytes_in_total", "", totals.bytes[BYTES_IN]);
+    line(sb, "bytes_out_total", "", totals.bytes[BYTES_OUT]);
+
+    for (int i = 0; i < UNKNOWN; i++) {
+      long[] merged = totals.latencies[i];
+      long count = LatencyHistogram.count(merged);
+      if (count == 0) {
+        continue;
+      }
+      for (double quantile : QUANTILES) {
+        sb.append("latency_us{command=\"").append(name(i)).append("\",quantile=\"").append(quantile)
+                .append("\"} ").append(micros(LatencyHistogram.valueAt(merged, quantile))).append('\n');
+      }
+      sb.append("latency_us_max{command=\"").append(name(i)).append("\"} ")
+              .append(micros(LatencyHistogram.max(merged))).append('\n');
+      sb.append("latency_us_mean{command=\"").append(name(i)).append("\"} ")
+              .append(micros(LatencyHistogram.sum(merged) / count)).append('\n');
+    }
+
+    line(sb, "snapshots_total", "", snapshots.get());
+    line(sb, "snapshot_last_ms", "", lastSnapshotNanos.get() / 1_000_000);
+    line(sb, "snapshot_max_ms", "", maxSnapshotNanos.get() / 1_000_000);
+    line(sb, "log_dropped_total", "", droppedLogLines);
+    for (Map.Entry<String, Long> stat : store.entrySet()) {
+      line(sb, "store_" + stat.getKey(), "", stat.getValue());
+    }
+    return sb.toString();
+  }
+
+  private static String name(int index) {
+    return index == UNKNOWN ? "UNKNOWN" : COMMANDS[index].name();
+  }
+
+  private static String micros(long nanos) {
+    return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+  }
+
+  private static void line(StringBuilder sb, String name, String labels, long value) {
+    sb.append(name).append(labels).append(' ').append(value).append('\n');
+  }
+
+  /**
+   * Class that holds the counters of a single thread.
+   */
+  private static final class Recorder {
+    private final Thread owner;
+    private final AtomicLongArray requests = new AtomicLongArray(UNKNOWN + 1);
+    private final AtomicLongArray failures = new AtomicLongArray(UNKNOWN + 1);
+    private final AtomicLongArray invalid = new AtomicLongArray(CODES.length);
+    private final AtomicLongArray bytes = new AtomicLongArray(2);
+    // created on first use, since most threads only ever see a few commands.
+    private final AtomicReferenceArray<LatencyHistogram> latencies = new AtomicReferenceArray<>(UNKNOWN + 1);
+
+    private Recorder(Thread owner) {
+      this.owner = owner;
+    }
+  }
+
+  /**
+   * Class that adds up the counters of several threads.
+   */
+  private static final class Totals {
+    private final long[] requests = new long[UNKNOWN + 1];
+    private final long[] failures = new long[UNKNOWN + 1];
+    private final long[] invalid = new long[CODES.length];
+    private final long[] bytes = new long[2];
+    private final long[][] latencies = new long[UNKNOWN + 1][];
+
+    private Totals() {
+      for (int i = 0; i < latencies.length; i++) {
+        latencies[i] = LatencyHistogram.newMerged();
+      }
+    }
+
+    private void add(Recorder recorder) {
+      add(requests, recorder.requests);
+      add(failures, recorder.failures);
+      add(invalid, recorder.invalid);
+      add(bytes, recorder.bytes);
+      for (int i = 0; i < latencies.length; i++) {
+        LatencyHistogram histogram = recorder.latencies.get(i);
+        if (histogram != null) {
+          histogram.addTo(latencies[i]);
+        }
+      }
+    }
+
+    private void add(Totals other) {
+      add(requests, other.requests);
+      add(failures, other.failures);
+      add(invalid, other.invalid);
+      add(bytes, other.bytes);
+      for (int i = 0; i < latencies.length; i++) {
+        long[] merged = latencies[i];
+        long[] from = other.latencies[i];
+        for (int j = 0; j < merged.length - 1; j++) {
+          merged[j] += from[j];
+        }
+        merged[merged.length - 1] = Math.max(merged[merged.length - 1], from[from.length - 1]);
+      }
+    }
+
+    private static void add(long[] totals, AtomicLongArray counters) {
+      for (int i = 0; i < totals.length; i++) {
+        totals[i] += counters.get(i);
+      }
+    }
+
+    private static void add(long[] totals, long[] counters) {
+      for (int i = 0; i < totals.length; i++) {
+        totals[i] += counters[i];
+      }
+    }
+  }
+}
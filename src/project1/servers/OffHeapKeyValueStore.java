@@ -0,0 +1,446 @@
+package project1.servers;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Class that stores key-value pairs as UTF-8 bytes in direct buffers outside the heap, so that
+ * the heap stays the same size no matter how many pairs are stored and the garbage collector
+ * never has to trace them. The store is split into segments by the hash of the key, each with
+ * its own read-write lock, so gets run in parallel and writes only contend with requests for
+ * keys in the same segment.
+ * Each segment appends its pairs to arenas of direct memory, one record
+ * [int key length][int value length][key][value] per pair, and finds them through an open
+ * addressing index, also off the heap, that maps the hash of a key to the arena and offset of
+ * its record. A value that is replaced or deleted leaves its old record behind as garbage, and
+ * the segment copies its live records into new arenas once more than half of what it holds is
+ * garbage. Direct memory is limited by -XX:MaxDirectMemorySize, which defaults to the maximum
+ * heap size.
+ */
+public class OffHeapKeyValueStore implements KeyValueStore {
+  private static final int SEGMENT_BITS = 6;
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final int FIRST_ARENA_SIZE = 64 * 1024;
+  private static final int MAX_ARENA_SIZE = 16 * 1024 * 1024;
+  // bytes of a slot in the index, i.e., a long reference to a record and the int hash of its key.
+  private static final int SLOT_SIZE = 16;
+  // bytes before the key in a record.
+  private static final int RECORD_HEADER = 8;
+
+  // bytes of keys and values copied out of the arenas before decoding, reused by every get of a thread.
+  private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[1024]);
+
+  private final Segment[] segments;
+
+  /**
+   * Constructor to create an empty store.
+   */
+  public OffHeapKeyValueStore() {
+    this.segments = new Segment[1 << SEGMENT_BITS];
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment();
+    }
+  }
+
+  private static int hash(String key) {
+    int h = key.hashCode();
+    return h ^ h >>> 16;
+  }
+
+  private Segment segmentFor(int hash) {
+    // the top bits pick the segment and the bottom bits the slot, so that they are independent.
+    return segments[hash >>> (32 - SEGMENT_BITS)];
+  }
+
+  private static byte[] encode(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public String get(String key) {
+    int hash = hash(key);
+    byte[] keyBytes = encode(key);
+    Segment segment = segmentFor(hash);
+    segment.lock.readLock().lock();
+    try {
+      int slot = segment.find(hash, keyBytes);
+      return slot < 0 ? null : segment.value(segment.ref(slot));
+    } finally {
+      segment.lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public String put(String key, String value) {
+    int hash = hash(key);
+    byte[] keyBytes = encode(key);
+    byte[] valueBytes = encode(value);
+    Segment segment = segmentFor(hash);
+    segment.lock.writeLock().lock();
+    try {
+      return segment.put(hash, keyBytes, valueBytes);
+    } finally {
+      segment.lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public String delete(String key) {
+    int hash = hash(key);
+    byte[] keyBytes = encode(key);
+    Segment segment = segmentFor(hash);
+    segment.lock.writeLock().lock();
+    try {
+      return segment.remove(hash, keyBytes);
+    } finally {
+      segment.lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      segment.lock.readLock().lock();
+      try {
+        size += segment.size;
+      } finally {
+        segment.lock.readLock().unlock();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Returns the key-value pairs stored. The pairs of one segment at a time are copied onto the
+   * heap while holding its read lock, so only a small part of the store is ever on the heap and
+   * writes to a segment wait while it is being copied.
+   *
+   * @return the key-value pairs stored.
+   */
+  @Override
+  public Iterable<Map.Entry<String, String>> snapshot() {
+    return () -> new Iterator<Map.Entry<String, String>>() {
+      private int next;
+      private Iterator<Map.Entry<String, String>> current = Collections.emptyIterator();
+
+      @Override
+      public boolean hasNext() {
+        while (!current.hasNext() && next < segments.length) {
+          current = segments[next++].copy().iterator();
+        }
+        return current.hasNext();
+      }
+
+      @Override
+      public Map.Entry<String, String> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return current.next();
+      }
+    };
+  }
+
+  @Override
+  public Map<String, Long> stats() {
+    long entries = 0;
+    long live = 0;
+    long garbage = 0;
+    long offHeap = 0;
+    long compactions = 0;
+    for (Segment segment : segments) {
+      segment.lock.readLock().lock();
+      try {
+        entries += segment.size;
+        live += segment.liveBytes;
+        garbage += segment.garbageBytes;
+        offHeap += segment.arenaBytes + (long) segment.capacity * SLOT_SIZE;
+        compactions += segment.compactions;
+      } finally {
+        segment.lock.readLock().unlock();
+      }
+    }
+    Map<String, Long> stats = new LinkedHashMap<>();
+    stats.put("entries", entries);
+    stats.put("live_bytes", live);
+    stats.put("garbage_bytes", garbage);
+    stats.put("off_heap_bytes", offHeap);
+    stats.put("compactions", compactions);
+    return stats;
+  }
+
+  private static String decode(ByteBuffer arena, int offset, int length) {
+    byte[] bytes = SCRATCH.get();
+    if (bytes.length < length) {
+      bytes = new byte[Math.max(length, bytes.length * 2)];
+      SCRATCH.set(bytes);
+    }
+    for (int i = 0; i < length; i++) {
+      bytes[i] = arena.get(offset + i);
+    }
+    return new String(bytes, 0, length, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Class that holds the index and arenas of one segment. A reference to a record packs the
+   * number of its arena, plus one so that 0 means an empty slot, in the high 32 bits and its
+   * offset in the arena in the low 32 bits. Only used while holding the lock of the segment.
+   */
+  private static final class Segment {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private ByteBuffer index;
+    private int capacity;
+    private int size;
+    private List<ByteBuffer> arenas;
+    private long arenaBytes;
+    private long liveBytes;
+    private long garbageBytes;
+    private long compactions;
+
+    private Segment() {
+      this.capacity = INITIAL_CAPACITY;
+      this.index = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+      this.arenas = new ArrayList<>();
+    }
+
+    private long ref(int slot) {
+      return index.getLong(slot * SLOT_SIZE);
+    }
+
+    private int hashAt(int slot) {
+      return index.getInt(slot * SLOT_SIZE + 8);
+    }
+
+    private void setSlot(int slot, long ref, int hash) {
+      index.putLong(slot * SLOT_SIZE, ref);
+      index.putInt(slot * SLOT_SIZE + 8, hash);
+    }
+
+    private ByteBuffer arena(long ref) {
+      return arenas.get((int) (ref >>> 32) - 1);
+    }
+
+    private static int offset(long ref) {
+      return (int) ref;
+    }
+
+    private int recordSize(long ref) {
+      ByteBuffer arena = arena(ref);
+      int offset = offset(ref);
+      return RECORD_HEADER + arena.getInt(offset) + arena.getInt(offset + 4);
+    }
+
+    private String value(long ref) {
+      ByteBuffer arena = arena(ref);
+      int offset = offset(ref);
+      int keyLength = arena.getInt(offset);
+      return decode(arena, offset + RECORD_HEADER + keyLength, arena.getInt(offset + 4));
+    }
+
+    private String key(long ref) {
+      ByteBuffer arena = arena(ref);
+      int offset = offset(ref);
+      return decode(arena, offset + RECORD_HEADER, arena.getInt(offset));
+    }
+
+    private boolean keyEquals(long ref, byte[] key) {
+      ByteBuffer arena = arena(ref);
+      int offset = offset(ref);
+      if (arena.getInt(offset) != key.length) {
+        return false;
+      }
+      for (int i = 0; i < key.length; i++) {
+        if (arena.get(offset + RECORD_HEADER + i) != key[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Looks a key up in the index with linear probing.
+     *
+     * @return the slot of the key, or -(slot + 1) for the empty slot where it would go.
+     */
+    private int find(int hash, byte[] key) {
+      int mask = capacity - 1;
+      int slot = hash & mask;
+      while (true) {
+        long ref = ref(slot);
+        if (ref == 0) {
+          return -(slot + 1);
+        }
+        if (hashAt(slot) == hash && keyEquals(ref, key)) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    private String put(int hash, byte[] key, byte[] value) {
+      int slot = find(hash, key);
+      String previous = null;
+      if (slot >= 0) {
+        long old = ref(slot);
+        previous = value(old);
+        retire(old);
+      } else {
+        if ((size + 1) * 4L > capacity * 3L) {
+          resize();
+          slot = find(hash, key);
+        }
+        slot = -slot - 1;
+        size++;
+      }
+      long ref = append(key, value);
+      setSlot(slot, ref, hash);
+      liveBytes += RECORD_HEADER + key.length + value.length;
+      compactIfWasteful();
+      return previous;
+    }
+
+    private String remove(int hash, byte[] key) {
+      int slot = find(hash, key);
+      if (slot < 0) {
+        return null;
+      }
+      long ref = ref(slot);
+      String previous = value(ref);
+      retire(ref);
+      clearSlot(slot);
+      size--;
+      compactIfWasteful();
+      return previous;
+    }
+
+    private void retire(long ref) {
+      int recordSize = recordSize(ref);
+      liveBytes -= recordSize;
+      garbageBytes += recordSize;
+    }
+
+    /**
+     * Empties a slot and shifts back the keys that follow it in the same run, so that no key
+     * becomes unreachable and the index never needs tombstones.
+     */
+    private void clearSlot(int slot) {
+      int mask = capacity - 1;
+      int hole = slot;
+      int next = slot;
+      while (true) {
+        next = (next + 1) & mask;
+        long ref = ref(next);
+        if (ref == 0) {
+          break;
+        }
+        int home = hashAt(next) & mask;
+        // the key at next may move into the hole unless its home lies cyclically in (hole, next].
+        boolean stays = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+        if (!stays) {
+          setSlot(hole, ref, hashAt(next));
+          hole = next;
+        }
+      }
+      setSlot(hole, 0, 0);
+    }
+
+    private void resize() {
+      ByteBuffer old = index;
+      int oldCapacity = capacity;
+      capacity *= 2;
+      index = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+      int mask = capacity - 1;
+      for (int i = 0; i < oldCapacity; i++) {
+        long ref = old.getLong(i * SLOT_SIZE);
+        if (ref != 0) {
+          int hash = old.getInt(i * SLOT_SIZE + 8);
+          int slot = hash & mask;
+          while (ref(slot) != 0) {
+            slot = (slot + 1) & mask;
+          }
+          setSlot(slot, ref, hash);
+        }
+      }
+    }
+
+    /**
+     * Appends a record to the last arena, starting a new one twice as large if it does not fit.
+     */
+    private long append(byte[] key, byte[] value) {
+      ByteBuffer arena = arenaFor(RECORD_HEADER + key.length + value.length);
+      long ref = ((long) arenas.size() << 32) | arena.position();
+      arena.putInt(key.length).putInt(value.length).put(key).put(value);
+      return ref;
+    }
+
+    private ByteBuffer arenaFor(int recordSize) {
+      ByteBuffer arena = arenas.isEmpty() ? null : arenas.get(arenas.size() - 1);
+      if (arena == null || arena.remaining() < recordSize) {
+        int size = arena == null ? FIRST_ARENA_SIZE : Math.min(arena.capacity() * 2, MAX_ARENA_SIZE);
+        arena = ByteBuffer.allocateDirect(Math.max(size, recordSize));
+        arenas.add(arena);
+        arenaBytes += arena.capacity();
+      }
+      return arena;
+    }
+
+    /**
+     * Copies the live records into new arenas once garbage takes more than half of the arenas,
+     * and frees the old ones.
+     */
+    private void compactIfWasteful() {
+      if (garbageBytes < FIRST_ARENA_SIZE || garbageBytes < liveBytes) {
+        return;
+      }
+      List<ByteBuffer> old = arenas;
+      arenas = new ArrayList<>();
+      arenaBytes = 0;
+      for (int slot = 0; slot < capacity; slot++) {
+        long ref = ref(slot);
+        if (ref == 0) {
+          continue;
+        }
+        ByteBuffer from = old.get((int) (ref >>> 32) - 1);
+        int offset = offset(ref);
+        int recordSize = RECORD_HEADER + from.getInt(offset) + from.getInt(offset + 4);
+        ByteBuffer arena = arenaFor(recordSize);
+        long moved = ((long) arenas.size() << 32) | arena.position();
+        for (int i = 0; i < recordSize; i++) {
+          arena.put(from.get(offset + i));
+        }
+        setSlot(slot, moved, hashAt(slot));
+      }
+      garbageBytes = 0;
+      compactions++;
+    }
+
+    /**
+     * Decodes every pair of the segment onto the heap while holding its read lock.
+     */
+    private List<Map.Entry<String, String>> copy() {
+      lock.readLock().lock();
+      try {
+        List<Map.Entry<String, String>> pairs = new ArrayList<>(size);
+        for (int slot = 0; slot < capacity; slot++) {
+          long ref = ref(slot);
+          if (ref != 0) {
+            pairs.add(new AbstractMap.SimpleImmutableEntry<>(key(ref), value(ref)));
+          }
+        }
+        return pairs;
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package project1.servers;
+
+/**
+ * Class that holds the outcome of processing a single request, i.e., the message to be sent to
+ * the client and whether the request succeeded. Each request gets its own response, so requests
+ * processed at the same time never see each other's status.
+ */
+public final class Response {
+  private final boolean success;
+  private final String message;
+
+  private Response(boolean success, String message) {
+    this.success = success;
+    this.message = message;
+  }
+
+  /**
+   * Creates the response of a request that was processed successfully.
+   *
+   * @param message the message to be sent to the client.
+   * @return the response.
+   */
+  public static Response ok(String message) {
+    return new Response(true, message);
+  }
+
+  /**
+   * Creates the response of a request that could not be processed.
+   *
+   * @param message the message explaining the error to be sent to the client.
+   * @return the response.
+   */
+  public static Response error(String message) {
+    return new Response(false, message);
+  }
+
+  /**
+   * Returns whether the request was processed successfully.
+   *
+   * @return true if the request succeeded, false otherwise.
+   */
+  public boolean isSuccess() {
+    return success;
+  }
+
+  /**
+   * Returns the message to be sent to the client.
+   *
+   * @return the message as a String.
+   */
+  public String getMessage() {
+    return message;
+  }
+
+  @Override
+  public String toString() {
+    return message;
+  }
+}
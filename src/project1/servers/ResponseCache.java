@@ -0,0 +1,165 @@
+package project1.servers;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Class that remembers the responses recently sent to requests carrying a message id, so that a
+ * request sent again by a client whose response was lost is answered from the cache instead of
+ * being applied twice, eg: a DELETE that would fail the second time. Responses are kept for a
+ * limited time and the oldest ones are dropped once they take more than the given number of
+ * bytes, so a request is only guaranteed to be applied at most once if it is sent again within
+ * that window. Requests still being processed are never dropped for their bytes, only once their
+ * time is up. The cache may be shared by several threads.
+ */
+final class ResponseCache {
+  private final long maxBytes;
+  private final long ttlMs;
+  private final Map<Key, Entry> entries;
+  private long bytes;
+
+  /**
+   * Constructor to create an empty cache.
+   *
+   * @param maxBytes the most bytes of responses held at a time.
+   * @param ttlMs    milli-sec a response is kept after the request first arrived.
+   */
+  ResponseCache(long maxBytes, long ttlMs) {
+    this.maxBytes = maxBytes;
+    this.ttlMs = ttlMs;
+    // in insertion order, so that the oldest entry is always first.
+    this.entries = new LinkedHashMap<>();
+  }
+
+  /**
+   * Records that a request is about to be processed, unless it has been seen before.
+   *
+   * @param sender    the address the request came from.
+   * @param messageId the id of the request.
+   * @return true if the request is new and should be processed, false if it is a duplicate.
+   */
+  synchronized boolean start(Object sender, long messageId) {
+    expire(System.currentTimeMillis());
+    Key key = new Key(sender, messageId);
+    if (entries.containsKey(key)) {
+      return false;
+    }
+    entries.put(key, new Entry(System.currentTimeMillis()));
+    return true;
+  }
+
+  /**
+   * Returns the response to a request that has been seen before.
+   *
+   * @param sender    the address the request came from.
+   * @param messageId the id of the request.
+   * @return the response, or null if the request is still being processed or has been
+   *     forgotten.
+   */
+  synchronized String get(Object sender, long messageId) {
+    Entry entry = entries.get(new Key(sender, messageId));
+    return entry == null ? null : entry.response;
+  }
+
+  /**
+   * Stores the response to a request once it has been processed.
+   *
+   * @param sender    the address the request came from.
+   * @param messageId the id of the request.
+   * @param response  the response sent back.
+   */
+  synchronized void complete(Object sender, long messageId, String response) {
+    Entry entry = entries.get(new Key(sender, messageId));
+    if (entry == null) {
+      return;
+    }
+    entry.response = response;
+    bytes += 2L * response.length();
+    evict();
+  }
+
+  /**
+   * Forgets a request that could not be processed, so that it is processed again if it is sent
+   * again.
+   *
+   * @param sender    the address the request came from.
+   * @param messageId the id of the request.
+   */
+  synchronized void abort(Object sender, long messageId) {
+    Entry entry = entries.remove(new Key(sender, messageId));
+    if (entry != null && entry.response != null) {
+      bytes -= 2L * entry.response.length();
+    }
+  }
+
+  private void expire(long now) {
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (now - entry.createdMillis < ttlMs) {
+        break;
+      }
+      remove(it, entry);
+    }
+  }
+
+  private void evict() {
+    Iterator<Entry> it = entries.values().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      Entry entry = it.next();
+      // a request still being processed takes no bytes, and forgetting it would let a copy
+      // sent meanwhile be applied a second time. Only its time to live drops it.
+      if (entry.response != null) {
+        remove(it, entry);
+      }
+    }
+  }
+
+  private void remove(Iterator<Entry> it, Entry entry) {
+    if (entry.response != null) {
+      bytes -= 2L * entry.response.length();
+    }
+    it.remove();
+  }
+
+  /**
+   * Class that identifies a request by its sender and id.
+   */
+  private static final class Key {
+    private final Object sender;
+    private final long messageId;
+
+    private Key(Object sender, long messageId) {
+      this.sender = sender;
+      this.messageId = messageId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return messageId == other.messageId && Objects.equals(sender, other.sender);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(sender) * 31 + Long.hashCode(messageId);
+    }
+  }
+
+  /**
+   * Class that holds the response to a request, which is null while it is being processed.
+   */
+  private static final class Entry {
+    private final long createdMillis;
+    private String response;
+
+    private Entry(long createdMillis) {
+      this.createdMillis = createdMillis;
+    }
+  }
+}
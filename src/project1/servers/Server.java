@@ -3,6 +3,7 @@ package project1.servers;
 import java.io.IOException;
 
 import project1.Features;
+import project1.Request;
 
 /**
  * Interface that defines the methods a Server should perform whether it is TCP or UDP.
@@ -10,8 +11,9 @@ import project1.Features;
 public interface Server extends Features {
 
   /**
-   * Reads a file called contents.json and populates the hashmap with the
-   * key-value pairs stored in this file.
+   * Reads the latest snapshot, either contents.json or the binary contents.snap, and populates
+   * the store with the key-value pairs stored in this file, then replays the writes recorded in
+   * the write-ahead log since.
    */
   void readFromFile();
 
@@ -19,24 +21,27 @@ public interface Server extends Features {
    * Checks whether the request to be processed is valid or not. Requests are processed only
    * if they match the criteria described.
    * stop should have 0 parameters, GET and DELETE request should have only 1 parameter,
-   * PUT should have 2.
+   * PUT should have 2. MGET and MDELETE should have 1 or more keys and MPUT 1 or more key-value
+   * pairs, up to the maximum batch size of the server.
    *
-   * @param req The request split into words as a String array.
+   * @param req The request split into words.
    * @return enum that tells whether the request is of a valid format or not.
    */
-  ValidationCode isValidRequest(String[] req);
+  ValidationCode isValidRequest(Request req);
 
   /**
    * Processes the request once it has been validated to generate the suitable response.
    *
-   * @param req The request split into words as a String array.
-   * @return The response to be sent to the client as a String.
+   * @param req The request split into words.
+   * @return The response holding the message to be sent to the client and whether the request
+   *     was processed successfully.
    * @throws IOException in case of any errors while writing to the file when client says STOP.
    */
-  String handleRequest(String[] req) throws IOException;
+  Response handleRequest(Request req) throws IOException;
 
   /**
-   * Write the contents of the hashmap into a file called contents.json for future references.
+   * Write the contents of the store into a file called contents.json, or contents.snap for the
+   * binary format, for future references.
    *
    * @throws IOException in case of any errors while writing to the file when client says STOP.
    */
@@ -56,6 +61,7 @@ public interface Server extends Features {
    * or not.
    */
   enum ValidationCode {
-    INCORRECT_PARAMETER_COUNT, INVALID_REQUEST_TYPE, VALID_REQUEST_TYPE
+    INCORRECT_PARAMETER_COUNT, INVALID_REQUEST_TYPE, VALID_REQUEST_TYPE, BATCH_TOO_LARGE, INVALID_TTL,
+    INVALID_LIMIT
   }
 }
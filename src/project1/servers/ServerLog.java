@@ -0,0 +1,282 @@
+package project1.servers;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import project1.Options;
+
+/**
+ * Class that writes the log of a server to the console. Every line has a level, and lines below
+ * --log-level (default debug, i.e., everything) are dropped before their text is even built,
+ * which is what logging each request and response is. With --log-sample=N only one request in
+ * N, picked at random, is logged.
+ *
+ * <p>By default lines are printed by the thread that logs them, like System.out.println does.
+ * With --logging=async they are instead put in a ring buffer of --log-buffer lines (default
+ * 65536) that a background thread prints from, so the threads serving requests never wait for
+ * the console. The buffer never blocks, and when it is full lines are dropped and counted
+ * rather than slowing down requests, with the count printed once there is room again.
+ */
+final class ServerLog implements AutoCloseable {
+  /**
+   * Enum for the levels of log lines, from the most to the least detailed.
+   */
+  enum Level {
+    DEBUG, INFO, ERROR, OFF
+  }
+
+  private static final int DEFAULT_BUFFER = 1 << 16;
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final Level level;
+  private final int sampleEvery;
+  private final Ring ring;
+  private final PrintStream out;
+  private final LongAdder dropped;
+  private final Thread writer;
+  private volatile boolean closed;
+
+  /**
+   * Constructor to create a log from the options of a server.
+   *
+   * @param options the options the server was started with.
+   * @throws IllegalArgumentException in case of an unknown level or mode, or an invalid sample
+   *                                  rate or buffer size.
+   */
+  ServerLog(Options options) throws IllegalArgumentException {
+    this.level = parseLevel(options.getString("log-level", "debug"));
+    this.sampleEvery = options.getInt("log-sample", 1);
+    if (sampleEvery < 1) {
+      throw new IllegalArgumentException("Invalid log sample. Must be at least 1.");
+    }
+    this.dropped = new LongAdder();
+
+    String mode = options.getString("logging", "sync");
+    if (mode.equals("sync")) {
+      this.ring = null;
+      this.out = System.out;
+      this.writer = null;
+    } else if (mode.equals("async")) {
+      int capacity = options.getInt("log-buffer", DEFAULT_BUFFER);
+      if (capacity < 2) {
+        throw new IllegalArgumentException("Invalid log buffer. Must be at least 2.");
+      }
+      this.ring = new Ring(Integer.highestOneBit(capacity - 1) << 1);
+      // printed only by the writer thread, which flushes whenever it runs out of lines.
+      this.out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16),
+              false, StandardCharsets.UTF_8);
+      this.writer = Workers.named("log").newThread(this::drain);
+      writer.start();
+    } else {
+      throw new IllegalArgumentException("Invalid logging. Must be sync or async.");
+    }
+  }
+
+  private static Level parseLevel(String level) {
+    switch (level) {
+      case "debug":
+        return Level.DEBUG;
+      case "info":
+        return Level.INFO;
+      case "error":
+        return Level.ERROR;
+      case "off":
+        return Level.OFF;
+      default:
+        throw new IllegalArgumentException("Invalid log level. Must be debug, info, error or off.");
+    }
+  }
+
+  /**
+   * Returns whether lines of a level are logged.
+   *
+   * @param lineLevel the level of the lines.
+   * @return true if they are logged, false if they are dropped.
+   */
+  boolean isLogged(Level lineLevel) {
+    return lineLevel.compareTo(level) >= 0 && level != Level.OFF;
+  }
+
+  /**
+   * Decides whether the request about to be processed should be logged, which is only ever the
+   * case at the debug level, and for one request in --log-sample.
+   *
+   * @return true if the request and its response should be logged.
+   */
+  boolean sampleRequest() {
+    return level == Level.DEBUG && (sampleEvery == 1 || ThreadLocalRandom.current().nextInt(sampleEvery) == 0);
+  }
+
+  /**
+   * Logs a line starting with the time it was logged at, eg: [2022-02-02 10:00:00.0] ERROR: msg.
+   *
+   * @param lineLevel the level of the line.
+   * @param tag       what follows the time, eg: ERROR:.
+   * @param message   the rest of the line.
+   */
+  void line(Level lineLevel, String tag, String message) {
+    if (isLogged(lineLevel)) {
+      log(new Entry(System.currentTimeMillis(), tag, message));
+    }
+  }
+
+  /**
+   * Logs text exactly as given, without the time or a line break.
+   *
+   * @param lineLevel the level of the text.
+   * @param text      the text.
+   */
+  void text(Level lineLevel, String text) {
+    if (isLogged(lineLevel)) {
+      log(new Entry(0, null, text));
+    }
+  }
+
+  private void log(Entry entry) {
+    if (ring == null) {
+      out.print(entry.format());
+    } else if (closed || !ring.offer(entry)) {
+      dropped.increment();
+    }
+  }
+
+  /**
+   * Returns how many lines were dropped because the ring buffer was full.
+   *
+   * @return the number of lines.
+   */
+  long dropped() {
+    return dropped.sum();
+  }
+
+  private void drain() {
+    long reported = 0;
+    while (true) {
+      Entry entry = ring.poll();
+      if (entry != null) {
+        out.print(entry.format());
+        continue;
+      }
+
+      long lost = dropped.sum();
+      if (lost > reported) {
+        out.print(new Entry(System.currentTimeMillis(), "ERROR:",
+                "Dropped " + (lost - reported) + " log lines because the log buffer was full").format());
+        reported = lost;
+      }
+      out.flush();
+      if (closed) {
+        return;
+      }
+      LockSupport.parkNanos(IDLE_NANOS);
+    }
+  }
+
+  /**
+   * Stops taking new lines and, with --logging=async, waits until every line already in the
+   * buffer has been printed.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    if (writer != null) {
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Class that holds a line until it is printed, so that the time is only formatted by the
+   * thread printing it.
+   */
+  private static final class Entry {
+    private final long millis;
+    private final String tag;
+    private final String message;
+
+    private Entry(long millis, String tag, String message) {
+      this.millis = millis;
+      this.tag = tag;
+      this.message = message;
+    }
+
+    private String format() {
+      if (tag == null) {
+        return message;
+      }
+      return "[" + new Timestamp(millis) + "] " + tag + " " + message + System.lineSeparator();
+    }
+  }
+
+  /**
+   * Class for a bounded queue that many threads put lines in and a single thread takes them out
+   * of, without locks. Each slot has a sequence number telling whose turn it is: a thread claims
+   * the slot at the tail by moving the tail forward, fills it and then moves its sequence on,
+   * which is when the reader may take it. A thread finding the slot at the tail not yet emptied
+   * gives up, since the queue is full.
+   */
+  private static final class Ring {
+    private final AtomicReferenceArray<Entry> entries;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail;
+    // only ever read and moved by the writer thread.
+    private long head;
+
+    private Ring(int capacity) {
+      this.entries = new AtomicReferenceArray<>(capacity);
+      this.sequences = new AtomicLongArray(capacity);
+      for (int i = 0; i < capacity; i++) {
+        sequences.set(i, i);
+      }
+      this.mask = capacity - 1;
+      this.tail = new AtomicLong();
+    }
+
+    private boolean offer(Entry entry) {
+      long position = tail.get();
+      while (true) {
+        int slot = (int) (position & mask);
+        long turn = sequences.get(slot) - position;
+        if (turn == 0) {
+          if (tail.compareAndSet(position, position + 1)) {
+            entries.lazySet(slot, entry);
+            sequences.lazySet(slot, position + 1);
+            return true;
+          }
+          position = tail.get();
+        } else if (turn < 0) {
+          return false;
+        } else {
+          position = tail.get();
+        }
+      }
+    }
+
+    private Entry poll() {
+      int slot = (int) (head & mask);
+      if (sequences.get(slot) != head + 1) {
+        return null;
+      }
+      Entry entry = entries.get(slot);
+      entries.lazySet(slot, null);
+      sequences.lazySet(slot, head + mask + 1);
+      head++;
+      return entry;
+    }
+  }
+}
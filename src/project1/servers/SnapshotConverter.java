@@ -0,0 +1,81 @@
+package project1.servers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Timestamp;
+
+import project1.Options;
+
+/**
+ * Class that converts a snapshot between the json and binary formats, streaming the pairs from
+ * one file to the other without loading them into memory. The format of the input is detected
+ * from its contents and the output is written in the other format unless --format says
+ * otherwise.
+ */
+public class SnapshotConverter {
+
+  private SnapshotConverter() {
+  }
+
+  /**
+   * Converts a snapshot file.
+   *
+   * @param input  the snapshot to read.
+   * @param output the file to write, which is replaced once the conversion has succeeded.
+   * @param format the format to write.
+   * @param index  whether a binary output should have an index for loading it in parallel.
+   * @return the number of pairs converted.
+   * @throws IOException in case of errors while reading or writing the files.
+   */
+  public static long convert(Path input, Path output, SnapshotFormat format, boolean index) throws IOException {
+    Path temp = output.resolveSibling(output.getFileName() + ".tmp");
+    long count;
+    try (SnapshotWriter writer = format.newWriter(temp, index)) {
+      count = SnapshotFormat.detect(input).read(input, (key, value) -> {
+        try {
+          writer.write(key, value);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }, null, 1);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return count;
+  }
+
+  /**
+   * Driver method that is the entry point of the program.
+   *
+   * @param args String array for command line arguments to be passed when running the program.
+   *             For this program this array should have the input and output files as the first
+   *             two elements, optionally followed by --format=json|binary and --index=true|false.
+   */
+  public static void main(String[] args) {
+    try {
+      if (args.length < 2) {
+        throw new IllegalArgumentException("Invalid number of arguments. Should be at least 2.");
+      }
+      Path input = Paths.get(args[0]);
+      Path output = Paths.get(args[1]);
+      Options options = Options.parse(args, 2);
+
+      SnapshotFormat from = SnapshotFormat.detect(input);
+      SnapshotFormat to = options.has("format")
+              ? SnapshotFormat.parse(options.getString("format", "binary"))
+              : from == SnapshotFormat.JSON ? SnapshotFormat.BINARY : SnapshotFormat.JSON;
+
+      long startNanos = System.nanoTime();
+      long count = convert(input, output, to, options.getBoolean("index", true));
+      System.out.println("Converted " + count + " pairs from " + from + " to " + to + " in "
+              + (System.nanoTime() - startNanos) / 1_000_000 + " ms");
+    } catch (IOException | IllegalArgumentException e) {
+      System.out.println("[" + new Timestamp(System.currentTimeMillis()) + "]" + "ERROR: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package project1.servers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.function.BiConsumer;
+
+/**
+ * Enum for the formats a snapshot of the store can be saved in. JSON is the original, human
+ * readable contents.json, BINARY is the compact, memory-mappable contents.snap. The format of
+ * a file is detected from its first bytes, not its name.
+ */
+public enum SnapshotFormat {
+  JSON("contents.json"), BINARY("contents.snap");
+
+  private final String fileName;
+
+  SnapshotFormat(String fileName) {
+    this.fileName = fileName;
+  }
+
+  /**
+   * Returns the name of the file a server saves snapshots of this format to.
+   *
+   * @return the file name.
+   */
+  public String getFileName() {
+    return fileName;
+  }
+
+  /**
+   * Returns the format with the given name.
+   *
+   * @param name either json or binary, case-insensitive.
+   * @return the format.
+   * @throws IllegalArgumentException in case of an unknown format.
+   */
+  public static SnapshotFormat parse(String name) throws IllegalArgumentException {
+    try {
+      return valueOf(name.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid snapshot format " + name + ". Must be json or binary.");
+    }
+  }
+
+  /**
+   * Detects the format of a snapshot file from its first bytes.
+   *
+   * @param file the file to check.
+   * @return BINARY if the file starts with the binary magic, JSON otherwise.
+   * @throws IOException in case of errors while reading the file.
+   */
+  public static SnapshotFormat detect(Path file) throws IOException {
+    byte[] magic = new byte[BinarySnapshotWriter.MAGIC.length];
+    try (InputStream in = Files.newInputStream(file)) {
+      int n = in.readNBytes(magic, 0, magic.length);
+      return n == magic.length && Arrays.equals(magic, BinarySnapshotWriter.MAGIC) ? BINARY : JSON;
+    }
+  }
+
+  /**
+   * Reads every key-value pair in a snapshot file of this format.
+   *
+   * @param file    the file to read.
+   * @param sink    receives every pair read, from several threads at the same time if the
+   *                file is split.
+   * @param workers the threads to split the file across, or null to read it on the calling
+   *                thread.
+   * @param threads the number of parts to split the file into when workers are given.
+   * @return the number of pairs read.
+   * @throws IOException in case of errors while reading the file or if it is malformed.
+   */
+  long read(Path file, BiConsumer<String, String> sink, ExecutorService workers, int threads) throws IOException {
+    if (this == BINARY) {
+      return BinarySnapshotReader.read(file, sink, workers, threads);
+    }
+    return JsonSnapshotReader.read(file, sink, workers, threads);
+  }
+
+  /**
+   * Creates a writer for a snapshot file of this format.
+   *
+   * @param file  the file to write to, which is replaced if it exists.
+   * @param index whether binary snapshots should have an index for loading them in parallel.
+   * @return the writer.
+   * @throws IOException in case of errors while creating the file.
+   */
+  SnapshotWriter newWriter(Path file, boolean index) throws IOException {
+    if (this == BINARY) {
+      return new BinarySnapshotWriter(file, index);
+    }
+    return new JsonSnapshotWriter(file);
+  }
+}
@@ -0,0 +1,28 @@
+package project1.servers;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Interface for writing a snapshot of the store to a file one key-value pair at a time, so that
+ * the store never has to be copied in memory to be saved.
+ */
+interface SnapshotWriter extends Closeable {
+
+  /**
+   * Appends a key-value pair to the snapshot.
+   *
+   * @param key   the key.
+   * @param value the value of the key.
+   * @throws IOException in case of errors while writing to the file.
+   */
+  void write(String key, String value) throws IOException;
+
+  /**
+   * Finishes the snapshot, forces it to disk and closes the file.
+   *
+   * @throws IOException in case of errors while writing to the file.
+   */
+  @Override
+  void close() throws IOException;
+}
@@ -0,0 +1,90 @@
+package project1.servers;
+
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Class that keeps the keys of another store in a concurrent skip list, in the natural order of
+ * Strings, so that keys can be listed by range or prefix without scanning the whole store.
+ * Every put and delete goes through this class, so the index is kept up to date whether the
+ * pairs come from clients, a snapshot or the log. Keys a bounded store evicts on its own are
+ * not removed from the index until a range query comes across them and calls dropIfAbsent.
+ * The index holds every key on the heap, even if the store itself keeps them off the heap.
+ */
+public class SortedIndexStore implements KeyValueStore {
+  private final KeyValueStore store;
+  private final ConcurrentSkipListSet<String> keys;
+
+  /**
+   * Constructor to index a store, which must be empty.
+   *
+   * @param store the store holding the pairs.
+   */
+  public SortedIndexStore(KeyValueStore store) {
+    this.store = store;
+    this.keys = new ConcurrentSkipListSet<>();
+  }
+
+  @Override
+  public String get(String key) {
+    return store.get(key);
+  }
+
+  @Override
+  public String peek(String key) {
+    return store.peek(key);
+  }
+
+  @Override
+  public String put(String key, String value) {
+    String previous = store.put(key, value);
+    keys.add(key);
+    return previous;
+  }
+
+  @Override
+  public String delete(String key) {
+    String previous = store.delete(key);
+    keys.remove(key);
+    return previous;
+  }
+
+  @Override
+  public int size() {
+    return store.size();
+  }
+
+  @Override
+  public Iterable<Map.Entry<String, String>> snapshot() {
+    return store.snapshot();
+  }
+
+  @Override
+  public Map<String, Long> stats() {
+    return store.stats();
+  }
+
+  /**
+   * Returns the keys in order, for walking a range of them. The set reflects later changes and
+   * may hold keys the store no longer has.
+   *
+   * @return the keys.
+   */
+  NavigableSet<String> keys() {
+    return keys;
+  }
+
+  /**
+   * Removes a key from the index if the store no longer has it. A put racing with the removal
+   * always leaves the key in the index, since the key is indexed again if the store has it
+   * once it has been removed.
+   *
+   * @param key a key found in the index.
+   */
+  void dropIfAbsent(String key) {
+    if (store.peek(key) == null && keys.remove(key) && store.peek(key) != null) {
+      keys.add(key);
+    }
+  }
+}
@@ -0,0 +1,376 @@
+package project1.servers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+
+import project1.BinaryCodec;
+import project1.Protocol;
+import project1.Request;
+
+/**
+ * Class that holds the non-blocking socket channel of a single client served by an event loop.
+ * Requests and responses are framed exactly like DataOutputStream.writeUTF does it, i.e., a two
+ * byte length followed by the modified UTF-8 bytes, so existing clients work unchanged. Once the
+ * client has switched to the pipelined protocol every frame is preceded by a long request id,
+ * which is echoed back in front of the response. Once it has switched to the binary protocol
+ * every frame is a binary frame as described in BinaryCodec. Requests that wait for the disk are
+ * processed on the disk workers of the server, so that they do not hold up the event loop.
+ */
+final class TCPChannelConnection implements Connection, EventLoop.Handler {
+  private static final int INITIAL_BUFFER_SIZE = 4096;
+  private static final int ID_SIZE = 8;
+  private static final int MAX_FRAME_SIZE = ID_SIZE + 2 + 65535;
+  private static final int MAX_BINARY_FRAME_SIZE = 5 + BinaryCodec.MAX_FRAME_SIZE;
+  private static final int MAX_PENDING_BYTES = 1 << 20;
+
+  private final AbstractServer server;
+  private final SocketChannel channel;
+  private final EventLoop loop;
+  private final Set<Connection> connections;
+  private final Queue<ByteBuffer> pending;
+  private final String ip;
+  private final String port;
+  private ByteBuffer readBuffer;
+  private SelectionKey key;
+  private int pendingBytes;
+  private boolean pipelined;
+  private boolean binary;
+  private boolean waitingForDisk;
+
+  /**
+   * Interface for sending the response to a request once it has been processed.
+   */
+  private interface ResponseSender {
+    void send(Response res) throws IOException;
+  }
+
+  /**
+   * Constructor to wrap an accepted socket channel and register it with an event loop.
+   *
+   * @param server      the server that processes the requests received on this connection.
+   * @param channel     the accepted socket channel.
+   * @param loop        the event loop that will serve this connection.
+   * @param connections the set of open connections of the server, which this connection is
+   *                    added to and removed from when it closes.
+   * @throws IOException in case of errors while configuring the channel.
+   */
+  TCPChannelConnection(AbstractServer server, SocketChannel channel, EventLoop loop,
+                       Set<Connection> connections) throws IOException {
+    this.server = server;
+    this.channel = channel;
+    this.loop = loop;
+    this.connections = connections;
+    this.pending = new ArrayDeque<>();
+    this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+    this.ip = String.valueOf(remote.getAddress());
+    this.port = Integer.toString(remote.getPort());
+
+    channel.configureBlocking(false);
+    connections.add(this);
+    loop.register(channel, SelectionKey.OP_READ, this);
+  }
+
+  @Override
+  public void handle(SelectionKey key) throws IOException {
+    this.key = key;
+    if (key.isReadable()) {
+      read();
+    }
+    if (key.isValid() && key.isWritable()) {
+      flush();
+    }
+  }
+
+  private void read() throws IOException {
+    int read = channel.read(readBuffer);
+    if (read < 0) {
+      throw new EOFException("Connection closed by client");
+    }
+    server.metrics.bytesIn(read);
+    process();
+  }
+
+  /**
+   * Processes every complete frame received so far. Requests that wait for the disk are handed
+   * to the disk workers of the server. For the text protocol, whose responses must go out in the
+   * order of the requests, nothing else is processed or read until such a request is done.
+   */
+  private void process() throws IOException {
+    readBuffer.flip();
+    while (!waitingForDisk) {
+      if (binary) {
+        int frameSize = BinaryCodec.frameSize(readBuffer);
+        if (frameSize < 0 || readBuffer.remaining() < frameSize) {
+          break;
+        }
+        int end = readBuffer.position() + frameSize;
+        BinaryCodec.readVarint(readBuffer);
+        ByteBuffer frame = readBuffer.slice();
+        frame.limit(end - readBuffer.position());
+        readBuffer.position(end);
+
+        long id = BinaryCodec.readVarint(frame);
+        Request req = BinaryCodec.decodeRequest(frame);
+        if (server.waitsForDisk(req)) {
+          offload(req, res -> enqueue(BinaryCodec.encodeResponse(id, res.isSuccess(), res.getMessage())));
+          continue;
+        }
+        Response res = server.processRequest(this, req);
+        enqueue(BinaryCodec.encodeResponse(id, res.isSuccess(), res.getMessage()));
+        continue;
+      }
+
+      int idSize = pipelined ? ID_SIZE : 0;
+      if (readBuffer.remaining() < idSize + 2) {
+        break;
+      }
+      int frameSize = 2 + (readBuffer.getShort(readBuffer.position() + idSize) & 0xFFFF);
+      if (readBuffer.remaining() < idSize + frameSize) {
+        break;
+      }
+
+      if (pipelined) {
+        long id = readBuffer.getLong();
+        Request req = Request.parse(decode(readBuffer, frameSize).trim());
+        if (server.waitsForDisk(req)) {
+          offload(req, res -> send(id, res.getMessage()));
+          continue;
+        }
+        send(id, server.processRequest(this, req).getMessage());
+        continue;
+      }
+
+      String request = decode(readBuffer, frameSize).trim();
+      String protocol = Protocol.requested(request);
+      if (protocol != null) {
+        boolean accepted = server.acceptsProtocol(this, protocol);
+        send(accepted ? Protocol.accepted(protocol) : "Unsupported protocol " + protocol);
+        pipelined = accepted && protocol.equals(Protocol.PIPELINED);
+        binary = accepted && protocol.equals(Protocol.BINARY);
+        continue;
+      }
+      Request req = Request.parse(request);
+      if (server.waitsForDisk(req)) {
+        waitingForDisk = true;
+        offload(req, res -> {
+          send(res.getMessage());
+          loop.execute(this::resume);
+        });
+        continue;
+      }
+      send(server.processRequest(this, req).getMessage());
+    }
+    readBuffer.compact();
+
+    int maxFrameSize = binary ? MAX_BINARY_FRAME_SIZE : MAX_FRAME_SIZE;
+    if (!readBuffer.hasRemaining() && readBuffer.capacity() < maxFrameSize) {
+      ByteBuffer larger = ByteBuffer.allocate((int) Math.min(readBuffer.capacity() * 2L, maxFrameSize));
+      readBuffer.flip();
+      larger.put(readBuffer);
+      readBuffer = larger;
+    } else if (readBuffer.position() == 0 && readBuffer.capacity() > MAX_FRAME_SIZE) {
+      // give back the memory of a large binary frame once it has been processed.
+      readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    }
+    if (waitingForDisk) {
+      // stops reading until the request is done.
+      flush();
+    }
+  }
+
+  /**
+   * Processes a request on a disk worker and hands its response to the given sender there.
+   */
+  private void offload(Request req, ResponseSender sender) {
+    server.diskWorkers.execute(() -> {
+      try {
+        sender.send(server.processRequest(this, req));
+      } catch (IOException e) {
+        loop.execute(() -> failed(e));
+      } catch (RuntimeException e) {
+        loop.execute(() -> failed(new IOException(e)));
+      }
+    });
+  }
+
+  /**
+   * Carries on with the frames received while a text protocol request was waiting for the disk,
+   * and reads again once they are done.
+   */
+  private void resume() {
+    if (!channel.isOpen()) {
+      return;
+    }
+    waitingForDisk = false;
+    try {
+      process();
+      flush();
+    } catch (IOException e) {
+      failed(e);
+    }
+  }
+
+  private static String decode(ByteBuffer buffer, int frameSize) throws UTFDataFormatException {
+    int start = buffer.arrayOffset() + buffer.position();
+    buffer.position(buffer.position() + frameSize);
+    try {
+      return new DataInputStream(new ByteArrayInputStream(buffer.array(), start, frameSize)).readUTF();
+    } catch (UTFDataFormatException e) {
+      throw e;
+    } catch (IOException e) {
+      // cannot happen, the whole frame is already in memory.
+      throw new UTFDataFormatException(e.getMessage());
+    }
+  }
+
+  private static ByteBuffer encode(String res) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(res.length() + 2);
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeUTF(res);
+    } catch (UTFDataFormatException e) {
+      out.writeUTF(AbstractServer.responseTooLarge(res));
+    }
+    return ByteBuffer.wrap(bytes.toByteArray());
+  }
+
+  private static ByteBuffer encode(long id, String res) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(ID_SIZE + res.length() + 2);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeLong(id);
+    try {
+      out.writeUTF(res);
+    } catch (UTFDataFormatException e) {
+      out.writeUTF(AbstractServer.responseTooLarge(res));
+    }
+    return ByteBuffer.wrap(bytes.toByteArray());
+  }
+
+  @Override
+  public String getIp() {
+    return ip;
+  }
+
+  @Override
+  public String getPort() {
+    return port;
+  }
+
+  @Override
+  public void send(String res) throws IOException {
+    enqueue(encode(res));
+  }
+
+  /**
+   * Sends the response to a pipelined request, tagged with the id of the request.
+   *
+   * @param id  the id of the request.
+   * @param res the response as a String.
+   * @throws IOException in case of errors while sending the data to the client.
+   */
+  void send(long id, String res) throws IOException {
+    enqueue(encode(id, res));
+  }
+
+  @Override
+  public boolean canPush() {
+    return pipelined || binary;
+  }
+
+  /**
+   * Queues a message like a response, unless more than MAX_PENDING_BYTES are waiting to be
+   * written. Pausing reads bounds the responses of a client that does not read, but not what
+   * other clients' writes push to it.
+   */
+  @Override
+  public boolean push(String message) throws IOException {
+    synchronized (pending) {
+      if (pendingBytes >= MAX_PENDING_BYTES && !message.equals(Protocol.INVALIDATE_ALL)) {
+        return false;
+      }
+    }
+    enqueue(binary ? BinaryCodec.encodeResponse(Protocol.PUSH_ID, true, message) : encode(Protocol.PUSH_ID, message));
+    return true;
+  }
+
+  private void enqueue(ByteBuffer frame) throws IOException {
+    synchronized (pending) {
+      pending.add(frame);
+      pendingBytes += frame.remaining();
+    }
+
+    if (loop.inEventLoop()) {
+      flush();
+    } else {
+      loop.execute(() -> {
+        try {
+          flush();
+        } catch (IOException e) {
+          failed(e);
+        }
+      });
+    }
+  }
+
+  /**
+   * Writes as many pending responses as the socket accepts without blocking, and only asks
+   * to be selected for writing while some are left. Reading is paused while too many bytes are
+   * waiting to be written so that a client that does not read its responses cannot exhaust
+   * the memory of the server.
+   */
+  private void flush() throws IOException {
+    synchronized (pending) {
+      while (!pending.isEmpty()) {
+        ByteBuffer frame = pending.peek();
+        server.metrics.bytesOut(channel.write(frame));
+        if (frame.hasRemaining()) {
+          break;
+        }
+        pending.poll();
+        pendingBytes -= frame.limit();
+      }
+
+      if (key != null && key.isValid()) {
+        int ops = pending.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+        if (pendingBytes < MAX_PENDING_BYTES && !waitingForDisk) {
+          ops |= SelectionKey.OP_READ;
+        }
+        key.interestOps(ops);
+      }
+    }
+  }
+
+  @Override
+  public void failed(IOException e) {
+    server.handleServeRequestError(this, e);
+    close();
+  }
+
+  @Override
+  public void close() {
+    connections.remove(this);
+    server.tracker.forget(this);
+    if (key != null) {
+      key.cancel();
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      server.showError(e.getMessage());
+    }
+  }
+}
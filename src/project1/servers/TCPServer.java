@@ -1,89 +1,381 @@
 package project1.servers;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import project1.BinaryCodec;
+import project1.Options;
+import project1.Protocol;
+import project1.Request;
 
 /**
  * Class that simulates a server for TCP data transmission.
  * This class' purpose is to receive and process requests that are sent by the client.
- * This class can read json files to populate a hashmap, perform functions to get, put or delete
+ * This class can read json files to populate a key-value store, perform functions to get, put or delete
  * key-value pairs and also write the results into a json file to save it for future references.
  * It simulates a server that uses TCP protocol.
+ * The server keeps accepting new connections and serves each client on its own worker, which is
+ * either a thread from a bounded pool or a virtual thread, chosen with --workers=pool|virtual
+ * and --threads=N when starting the server. With a pool, a client that connects while every
+ * thread is serving another client is told the server is busy and disconnected. Alternatively,
+ * with --engine=nio the server uses non-blocking channels and serves all clients from
+ * --event-loops=N selector threads.
+ * Clients may switch their connection to the pipelined or binary protocol (see Protocol), in
+ * which case their requests are processed concurrently and answered as soon as each one is done.
  */
 public class TCPServer extends AbstractServer {
+  private static final int DEFAULT_THREADS = 64;
+  private static final int MAX_IN_FLIGHT = 1024;
+  private static final int MAX_PENDING_PUSHES = 1024;
+  private static final String BUSY = "Server is busy, every worker is serving another client. Try again later.";
+
   private ServerSocket serverSocket;
-  private DataInputStream din;
-  private DataOutputStream dout;
-  private Socket socket;
+  private ExecutorService workers;
+  private ExecutorService requestWorkers;
+  private ServerSocketChannel serverChannel;
+  private EventLoopGroup eventLoops;
+  private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+  private final ThreadFactory pushWriters = Workers.named("tcp-push");
+
+  /**
+   * Constructor to initialize the file name to read json data from and the store that holds the
+   * previous and future key-value pairs, which is safe to share between concurrent requests.
+   * Also, the server socket that accepts new connections and the workers that serve them.
+   *
+   * @param port    port to use
+   * @param options optional settings for the server (eg: --workers=virtual).
+   * @throws IOException in case of errors which creating the socket.
+   */
+  public TCPServer(int port, Options options) throws IOException {
+    super(options);
+    if (isNioEngine()) {
+      this.eventLoops = new EventLoopGroup(options.getInt("event-loops", DEFAULT_EVENT_LOOPS), "tcp-event-loop");
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.bind(new InetSocketAddress(port));
+    } else {
+      String mode = options.getString("workers", Workers.POOL);
+      this.workers = Workers.createRejecting(mode, options.getInt("threads", DEFAULT_THREADS), "tcp-worker");
+      this.requestWorkers = Workers.create(mode, options.getInt("threads", DEFAULT_THREADS), "tcp-request");
+      if (mode.equals(Workers.VIRTUAL) && !Workers.virtualThreadsAvailable()) {
+        showError("Virtual threads need Java 21 or newer, using a thread per connection instead.");
+      }
+      serverSocket = new ServerSocket(port);
+    }
+    showInfo("Server running\n\n");
+  }
 
   /**
-   * Constructor to initialize the file name to read json data from, map that stores the previous
-   * and future key-value pairs and the request status as a boolean for each incoming request
-   * which denotes whether a request has been processed or not which in turn helps in displaying
-   * the proper message to the user. Also, the data input/output streams for interacting with
-   * sockets.
+   * Constructor to create a server with the default settings.
    *
    * @param port port to use
    * @throws IOException in case of errors which creating the socket.
    */
   public TCPServer(int port) throws IOException {
-    super();
-    serverSocket = new ServerSocket(port);
-    socket = serverSocket.accept();
-    din = new DataInputStream(socket.getInputStream());
-    dout = new DataOutputStream(socket.getOutputStream());
-    showInfo("Connection established\n\n");
+    this(port, new Options());
   }
 
   private TCPServer() {
   }
 
   @Override
-  protected boolean handleServeRequestError(Exception e) {
-    showError("Connection lost");
-    return true;
+  protected void listen() throws IOException {
+    if (isNioEngine()) {
+      listenNio();
+      return;
+    }
+
+    while (!serverSocket.isClosed()) {
+      Socket socket = serverSocket.accept();
+      TCPConnection connection = new TCPConnection(socket);
+      connections.add(connection);
+      try {
+        workers.execute(() -> serve(connection));
+      } catch (RejectedExecutionException e) {
+        refuse(connection);
+        continue;
+      }
+      showInfo("Connection established with " + connection.getIp() + ":" + connection.getPort() + "\n");
+    }
   }
 
-  @Override
-  protected String getIp() {
-    return String.valueOf(socket.getInetAddress());
+  /**
+   * Tells a client that every worker is busy serving other clients, and closes its connection.
+   */
+  private void refuse(TCPConnection connection) {
+    showError("Refused connection with " + connection.getIp() + ":" + connection.getPort() + ", every worker is busy.");
+    try {
+      connection.send(BUSY);
+    } catch (IOException e) {
+      // the client is gone already.
+    }
+    connections.remove(connection);
+    connection.close();
   }
 
-  @Override
-  protected String getPort() {
-    return Integer.toString(socket.getPort());
+  /**
+   * Accepts connections on the listening channel and hands them out to the event loops, which
+   * read the requests, process them and write the responses back without blocking.
+   */
+  private void listenNio() throws IOException {
+    while (serverChannel.isOpen()) {
+      SocketChannel channel = serverChannel.accept();
+      Connection connection = new TCPChannelConnection(this, channel, eventLoops.next(), connections);
+      showInfo("Connection established with " + connection.getIp() + ":" + connection.getPort() + "\n");
+    }
   }
 
-  @Override
-  protected String receiveDataFromClient() throws IOException {
-    return din.readUTF().trim();
+  /**
+   * Keeps serving requests of a single client until the client disconnects. Requests of the
+   * text protocol are processed one at a time on the worker of the connection, while pipelined
+   * and binary requests are handed to the request workers so that a slow request does not hold
+   * up the ones behind it. At most MAX_IN_FLIGHT such requests of a client are processed at a
+   * time, after which the connection is not read until some of them are done.
+   *
+   * @param connection the connection of the client to serve.
+   */
+  private void serve(TCPConnection connection) {
+    while (true) {
+      try {
+        if (connection.binary) {
+          ByteBuffer frame = BinaryCodec.readFrame(connection.din);
+          long id = BinaryCodec.readVarint(frame);
+          Request request = BinaryCodec.decodeRequest(frame);
+          connection.inFlight.acquireUninterruptibly();
+          requestWorkers.execute(() -> {
+            try {
+              Response res = processRequest(connection, request);
+              connection.send(BinaryCodec.encodeResponse(id, res.isSuccess(), res.getMessage()));
+            } catch (IOException | RuntimeException e) {
+              fail(connection, e);
+            } finally {
+              connection.inFlight.release();
+            }
+          });
+          continue;
+        }
+
+        if (connection.pipelined) {
+          long id = connection.din.readLong();
+          String request = connection.receive();
+          connection.inFlight.acquireUninterruptibly();
+          requestWorkers.execute(() -> {
+            try {
+              connection.send(id, processRequest(connection, request));
+            } catch (IOException | RuntimeException e) {
+              fail(connection, e);
+            } finally {
+              connection.inFlight.release();
+            }
+          });
+          continue;
+        }
+
+        String request = connection.receive();
+        String protocol = Protocol.requested(request);
+        if (protocol != null) {
+          boolean accepted = acceptsProtocol(connection, protocol);
+          connection.send(accepted ? Protocol.accepted(protocol) : "Unsupported protocol " + protocol);
+          connection.pipelined = accepted && protocol.equals(Protocol.PIPELINED);
+          connection.binary = accepted && protocol.equals(Protocol.BINARY);
+          continue;
+        }
+        connection.send(processRequest(connection, request));
+      } catch (IOException | RuntimeException e) {
+        boolean shouldBreak = handleServeRequestError(connection, e);
+        if (shouldBreak)
+          break;
+      }
+    }
+
+    connections.remove(connection);
+    connection.close();
+  }
+
+  /**
+   * Closes a connection after one of its pipelined or binary requests failed, since its client
+   * would otherwise wait for a response that never comes. The worker of the connection then
+   * stops reading from it.
+   */
+  private void fail(TCPConnection connection, Exception e) {
+    showError("Failed to answer a request of " + connection.getIp() + ":" + connection.getPort() + ". " + e);
+    connection.close();
   }
 
   @Override
-  protected void sendDataToClient(String res) throws IOException {
-    dout.writeUTF(res);
-    dout.flush();
+  protected boolean handleServeRequestError(Connection connection, Exception e) {
+    showError("Connection lost with " + connection.getIp() + ":" + connection.getPort());
+    return true;
   }
 
   @Override
   protected void closeEverything() {
+    if (workers != null) {
+      workers.shutdownNow();
+      requestWorkers.shutdownNow();
+    }
+    if (eventLoops != null) {
+      eventLoops.close();
+    }
+    for (Connection connection : connections) {
+      connection.close();
+    }
     try {
-      din.close();
-      dout.flush();
-      dout.close();
-      socket.close();
-      serverSocket.close();
+      if (serverSocket != null) {
+        serverSocket.close();
+      }
+      if (serverChannel != null) {
+        serverChannel.close();
+      }
     } catch (IOException e) {
       showError(e.getMessage());
     }
   }
 
   @Override
-  protected Server getServerInstance(int port) throws IOException {
-    return new TCPServer(port);
+  protected Server getServerInstance(int port, Options options) throws IOException {
+    return new TCPServer(port, options);
+  }
+
+  /**
+   * Class that holds the socket and the data input/output streams for a single client, and
+   * which protocol the client is using.
+   */
+  private class TCPConnection implements Connection {
+    private final Socket socket;
+    private final DataInputStream din;
+    private final DataOutputStream dout;
+    private final Semaphore inFlight;
+    private final BlockingQueue<String> pushes;
+    private final AtomicReference<Thread> pushWriter;
+    private boolean pipelined;
+    private boolean binary;
+
+    private TCPConnection(Socket socket) throws IOException {
+      this.socket = socket;
+      this.din = new DataInputStream(new BufferedInputStream(metrics.countIn(socket.getInputStream())));
+      // buffered so that the id and the response of a pipelined frame leave in a single segment.
+      this.dout = new DataOutputStream(new BufferedOutputStream(metrics.countOut(socket.getOutputStream())));
+      this.inFlight = new Semaphore(MAX_IN_FLIGHT);
+      this.pushes = new LinkedBlockingQueue<>();
+      this.pushWriter = new AtomicReference<>();
+    }
+
+    private String receive() throws IOException {
+      return din.readUTF().trim();
+    }
+
+    @Override
+    public String getIp() {
+      return String.valueOf(socket.getInetAddress());
+    }
+
+    @Override
+    public String getPort() {
+      return Integer.toString(socket.getPort());
+    }
+
+    @Override
+    public synchronized void send(String res) throws IOException {
+      try {
+        dout.writeUTF(res);
+      } catch (UTFDataFormatException e) {
+        // nothing has been written yet, writeUTF checks the length first.
+        dout.writeUTF(responseTooLarge(res));
+      }
+      dout.flush();
+    }
+
+    private synchronized void send(long id, String res) throws IOException {
+      dout.writeLong(id);
+      try {
+        dout.writeUTF(res);
+      } catch (UTFDataFormatException e) {
+        dout.writeUTF(responseTooLarge(res));
+      }
+      dout.flush();
+    }
+
+    private synchronized void send(ByteBuffer frame) throws IOException {
+      dout.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+      dout.flush();
+    }
+
+    @Override
+    public boolean canPush() {
+      return pipelined || binary;
+    }
+
+    /**
+     * Queues a message for the thread that writes this connection's pushes, which is started by
+     * the first one, so that the thread pushing never blocks on a client that reads slowly.
+     */
+    @Override
+    public boolean push(String message) {
+      if (pushes.size() >= MAX_PENDING_PUSHES && !message.equals(Protocol.INVALIDATE_ALL)) {
+        return false;
+      }
+      pushes.add(message);
+      if (pushWriter.get() == null) {
+        Thread writer = pushWriters.newThread(this::writePushes);
+        if (pushWriter.compareAndSet(null, writer)) {
+          writer.start();
+        }
+      }
+      return true;
+    }
+
+    private void writePushes() {
+      try {
+        while (true) {
+          String message = pushes.take();
+          if (binary) {
+            send(BinaryCodec.encodeResponse(Protocol.PUSH_ID, true, message));
+          } else {
+            send(Protocol.PUSH_ID, message);
+          }
+        }
+      } catch (InterruptedException e) {
+        // the connection was closed.
+      } catch (IOException e) {
+        // the connection is gone, its client no longer has a cache to keep coherent.
+        tracker.forget(this);
+      }
+    }
+
+    @Override
+    public void close() {
+      tracker.forget(this);
+      Thread writer = pushWriter.get();
+      if (writer != null) {
+        writer.interrupt();
+      }
+      try {
+        din.close();
+        dout.close();
+        socket.close();
+      } catch (IOException e) {
+        showError(e.getMessage());
+      }
+    }
   }
 
   /**
@@ -92,8 +384,9 @@ public class TCPServer extends AbstractServer {
    * and calls the required methods to proceed further in the program execution.
    *
    * @param args String array for command line arguments to be passed when running the program.
-   *             For this program this array should have only one element which is the port number
-   *             for the server.
+   *             For this program this array should have the port number for the server as the
+   *             first element, optionally followed by settings of the form --name=value
+   *             (eg: --workers=pool --threads=64).
    * @throws IllegalArgumentException in case of incorrect number of cli arguments or incorrect
    *                                  values for name and port number.
    */
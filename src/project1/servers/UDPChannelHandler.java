@@ -0,0 +1,55 @@
+package project1.servers;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Class that reads datagrams from a non-blocking datagram channel on an event loop and hands
+ * them to the server, which processes the requests they carry and sends each response back to
+ * the address the request came from. Every event loop of a server has its own handler, with
+ * its own pooled receive buffer and reply, and usually its own channel too.
+ */
+final class UDPChannelHandler implements EventLoop.Handler {
+  private final UDPServer server;
+  private final DatagramChannel channel;
+  private final ByteBuffer receiveBuffer;
+  private final UDPReply reply;
+
+  /**
+   * Constructor to create a handler and register the channel with the event loop.
+   *
+   * @param server  the server that processes the requests received on the channel.
+   * @param channel the bound datagram channel, which must be in non-blocking mode.
+   * @param loop    the event loop that will read from the channel.
+   */
+  UDPChannelHandler(UDPServer server, DatagramChannel channel, EventLoop loop) {
+    this.server = server;
+    this.channel = channel;
+    this.receiveBuffer = server.acquireBuffer();
+    this.reply = server.newReply();
+    loop.register(channel, SelectionKey.OP_READ, this);
+  }
+
+  @Override
+  public void handle(SelectionKey key) throws IOException {
+    InetSocketAddress sender;
+    long start = server.allocatedBytes();
+    // another event loop sharing the channel may have taken the datagram already, in which case
+    // receive returns null.
+    while ((sender = (InetSocketAddress) channel.receive(receiveBuffer)) != null) {
+      receiveBuffer.flip();
+      if (server.handleDatagram(channel, receiveBuffer, sender, reply)) {
+        start = server.countAllocations(start);
+      }
+      receiveBuffer.clear();
+    }
+  }
+
+  @Override
+  public void failed(IOException e) {
+    server.showError(e.getMessage());
+  }
+}
@@ -0,0 +1,99 @@
+package project1.servers;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Class that holds the address a UDP request came from, and whether it was fragmented, so that
+ * its response is sent back to the right client in the right form. Every thread that receives
+ * datagrams has its own reply, which it resets for each request it processes instead of creating
+ * a new one, so requests processed at the same time never see each other's address.
+ * Unfragmented responses are encoded straight into a direct buffer taken from a pool.
+ */
+final class UDPReply implements Connection {
+  private final BufferPool buffers;
+  private final Metrics metrics;
+  private DatagramChannel channel;
+  private InetSocketAddress address;
+  private boolean fragmented;
+  private long messageId;
+
+  /**
+   * Constructor to create a reply, which must be reset before it is used.
+   *
+   * @param buffers the pool of buffers to encode unfragmented responses into.
+   * @param metrics the metrics the bytes of every response sent are counted in.
+   */
+  UDPReply(BufferPool buffers, Metrics metrics) {
+    this.buffers = buffers;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Makes the reply send the next response to a new request.
+   *
+   * @param channel    the channel the request was received on, which the response is sent from.
+   * @param address    the address the request came from.
+   * @param fragmented whether the request was fragmented.
+   * @param messageId  the message id of the request if it was fragmented.
+   * @return this reply.
+   */
+  UDPReply reset(DatagramChannel channel, InetSocketAddress address, boolean fragmented, long messageId) {
+    this.channel = channel;
+    this.address = address;
+    this.fragmented = fragmented;
+    this.messageId = messageId;
+    return this;
+  }
+
+  InetSocketAddress getAddress() {
+    return address;
+  }
+
+  boolean isFragmented() {
+    return fragmented;
+  }
+
+  long getMessageId() {
+    return messageId;
+  }
+
+  @Override
+  public String getIp() {
+    return String.valueOf(address.getAddress());
+  }
+
+  @Override
+  public String getPort() {
+    return Integer.toString(address.getPort());
+  }
+
+  @Override
+  public void send(String res) throws IOException {
+    if (fragmented) {
+      for (ByteBuffer datagram : UDPServer.encodeFragments(res, messageId)) {
+        metrics.bytesOut(channel.send(datagram, address));
+      }
+      return;
+    }
+
+    ByteBuffer datagram = buffers.acquire();
+    try {
+      if (!Utf8.encode(res, datagram)) {
+        datagram.clear();
+        Utf8.encode(AbstractServer.responseTooLarge(res), datagram);
+      }
+      datagram.flip();
+      metrics.bytesOut(channel.send(datagram, address));
+    } finally {
+      buffers.release(datagram);
+    }
+  }
+
+  @Override
+  public void close() {
+    // nothing to release, the channel is shared by all clients.
+  }
+}
@@ -1,81 +1,413 @@
 package project1.servers;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import project1.FragmentReassembler;
+import project1.Fragments;
+import project1.Options;
+import project1.Request;
 
 /**
  * Class that simulates a server for UDP data transmission.
  * This class' purpose is to receive and process requests that are sent by the client.
- * This class can read json files to populate a hashmap, perform functions to get, put or delete
+ * This class can read json files to populate a key-value store, perform functions to get, put or delete
  * key-value pairs and also write the results into a json file to save it for future references.
  * It simulates a server that uses UDP protocol.
+ * Datagrams are received by --receivers=N threads (default the number of cores), each blocking
+ * on its own socket bound to the same port with SO_REUSEPORT, so that the operating system
+ * spreads clients across them. Where SO_REUSEPORT is not available the threads share a single
+ * socket instead. With --engine=nio the sockets are read by --event-loops=N selector threads.
+ * Every request carries its own reply address, so requests are processed in parallel.
+ * Requests too large for a single datagram can be sent in fragments (see Fragments), which are
+ * reassembled before the request is processed, and the response is then fragmented as well.
+ * Messages may be up to --max-message-size bytes and must be complete within
+ * --reassembly-timeout milli-sec of their first fragment. Since fragmented requests carry a
+ * message id, their responses are kept for --response-cache-ttl milli-sec so that a request the
+ * client sends again is answered without being applied twice.
+ * Datagrams are received into, and unfragmented responses encoded into, direct buffers taken
+ * from a pool, and requests are split into words straight from the received bytes, so the only
+ * objects created per request are its words and its response. With --allocation-report=N the
+ * bytes allocated per request are printed every N seconds.
  */
 public class UDPServer extends AbstractServer {
-  private InetAddress ip;
-  private int clientPort;
-  private DatagramSocket serverSocket;
+  static final int MAX_DATAGRAM_SIZE = 65507;
+  private static final int DEFAULT_MAX_MESSAGE_SIZE = 1024 * 1024;
+  private static final long DEFAULT_REASSEMBLY_TIMEOUT = 5000;
+  private static final long REASSEMBLY_BUFFER_SIZE = 16 * 1024 * 1024;
+  // room for the fragments of a few large messages arriving in a burst, capped by the OS.
+  private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+  private static final long RESPONSE_CACHE_SIZE = 16 * 1024 * 1024;
+  private static final long DEFAULT_RESPONSE_CACHE_TTL = 30000;
+
+  private FragmentReassembler reassembler;
+  private ResponseCache responses;
+  private List<DatagramChannel> channels;
+  private int receivers;
+  private EventLoopGroup eventLoops;
+  private BufferPool buffers;
+  private AllocationMeter allocations;
+  private long allocationReportSeconds;
+  private ScheduledExecutorService allocationReporter;
+
+  /**
+   * Constructor to initialize the file name to read json data from and the store that holds the
+   * previous and future key-value pairs, which is safe to share between concurrent requests.
+   * Also, the sockets that receive the requests.
+   *
+   * @param port    port to use
+   * @param options optional settings for the server (eg: --receivers=4).
+   * @throws IOException in case of errors which creating the socket.
+   */
+  public UDPServer(int port, Options options) throws IOException {
+    super(options);
+    this.reassembler = new FragmentReassembler(options.getInt("max-message-size", DEFAULT_MAX_MESSAGE_SIZE),
+            REASSEMBLY_BUFFER_SIZE, options.getLong("reassembly-timeout", DEFAULT_REASSEMBLY_TIMEOUT));
+    this.responses = new ResponseCache(RESPONSE_CACHE_SIZE,
+            options.getLong("response-cache-ttl", DEFAULT_RESPONSE_CACHE_TTL));
+    if (isNioEngine()) {
+      this.eventLoops = new EventLoopGroup(options.getInt("event-loops", DEFAULT_EVENT_LOOPS), "udp-event-loop");
+      this.receivers = eventLoops.all().length;
+    } else {
+      this.receivers = options.getInt("receivers", DEFAULT_EVENT_LOOPS);
+      if (receivers < 1) {
+        throw new IllegalArgumentException("Invalid number of receivers. Must be at least 1.");
+      }
+    }
+    this.channels = openChannels(port, receivers);
+    // a receive buffer per receiver and a send buffer per response being sent at a time.
+    this.buffers = new BufferPool(MAX_DATAGRAM_SIZE, 2 * receivers);
+    this.allocationReportSeconds = options.getLong("allocation-report", 0);
+    if (allocationReportSeconds < 0) {
+      throw new IllegalArgumentException("Invalid allocation report interval. Must be at least 0.");
+    }
+    if (allocationReportSeconds > 0) {
+      this.allocations = new AllocationMeter();
+      if (!allocations.isEnabled()) {
+        showInfo("Allocation report is not available in this JVM\n");
+        this.allocations = null;
+      }
+    }
+    showInfo("Server running\n\n");
+  }
 
   /**
-   * Constructor to initialize the file name to read json data from, map that stores the previous
-   * and future key-value pairs and the request status as a boolean for each incoming request
-   * which denotes whether a request has been processed or not which in turn helps in displaying
-   * the proper message to the user.
+   * Constructor to create a server with the default settings.
    *
    * @param port port to use
    * @throws IOException in case of errors which creating the socket.
    */
   public UDPServer(int port) throws IOException {
-    super();
-    this.serverSocket = new DatagramSocket(port);
-    showInfo("Server running\n\n");
+    this(port, new Options());
   }
 
   private UDPServer() {
   }
 
-  @Override
-  protected boolean handleServeRequestError(Exception e) {
-    showError(e.getMessage());
-    return false;
+  /**
+   * Opens one socket per receiver bound to the port with SO_REUSEPORT, or a single socket if
+   * the option is not available or there is only one receiver.
+   */
+  private List<DatagramChannel> openChannels(int port, int count) throws IOException {
+    List<DatagramChannel> opened = new ArrayList<>();
+    try (DatagramChannel probe = DatagramChannel.open()) {
+      if (count < 2 || !probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+        count = 1;
+      }
+    }
+
+    try {
+      for (int i = 0; i < count; i++) {
+        DatagramChannel channel = DatagramChannel.open();
+        opened.add(channel);
+        if (count > 1) {
+          channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(!isNioEngine());
+      }
+    } catch (IOException e) {
+      for (DatagramChannel channel : opened) {
+        channel.close();
+      }
+      throw e;
+    }
+
+    showInfo(count > 1 ? "Receiving on " + count + " sockets with SO_REUSEPORT\n"
+            : "Receiving on a single socket\n");
+    return opened;
   }
 
   @Override
-  protected String getIp() {
-    return String.valueOf(this.ip);
+  protected void listen() {
+    startAllocationReport();
+    if (isNioEngine()) {
+      listenNio();
+      return;
+    }
+
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < receivers; i++) {
+      DatagramChannel channel = channels.get(i % channels.size());
+      Thread thread = Workers.named("udp-receiver").newThread(() -> receive(channel));
+      thread.start();
+      threads.add(thread);
+    }
+
+    try {
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
   }
 
-  @Override
-  protected String getPort() {
-    return Integer.toString(this.clientPort);
+  /**
+   * Keeps receiving datagrams on a blocking channel and processing the requests they carry
+   * until the channel is closed.
+   */
+  private void receive(DatagramChannel channel) {
+    ByteBuffer receiveBuffer = buffers.acquire();
+    UDPReply reply = newReply();
+    long start = allocatedBytes();
+    while (channel.isOpen()) {
+      try {
+        receiveBuffer.clear();
+        InetSocketAddress sender = (InetSocketAddress) channel.receive(receiveBuffer);
+        receiveBuffer.flip();
+        if (handleDatagram(channel, receiveBuffer, sender, reply)) {
+          start = countAllocations(start);
+        }
+      } catch (IOException | RuntimeException e) {
+        if (!channel.isOpen()) {
+          break;
+        }
+        // only this datagram is lost, the thread keeps receiving the next ones.
+        showError(e.getMessage());
+      }
+    }
   }
 
-  @Override
-  protected String receiveDataFromClient() throws IOException {
-    byte[] receiveData = new byte[1024];
-    DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-    serverSocket.receive(receivePacket);
-    ip = receivePacket.getAddress();
-    clientPort = receivePacket.getPort();
-    return new String(receivePacket.getData()).trim();
+  /**
+   * Registers the channels with the event loops, which then receive and process datagrams in
+   * parallel, and waits until the server is closed. Event loops share a channel only if
+   * SO_REUSEPORT is not available.
+   */
+  private void listenNio() {
+    EventLoop[] loops = eventLoops.all();
+    for (int i = 0; i < loops.length; i++) {
+      new UDPChannelHandler(this, channels.get(i % channels.size()), loops[i]);
+    }
+
+    try {
+      eventLoops.awaitClose();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Processes a datagram received on a channel and sends the response back to its sender. If
+   * the datagram is a fragment, nothing happens until the last missing fragment of its request
+   * has arrived. A datagram that cannot be handled is dropped, without stopping the thread that
+   * received it from handling the next ones.
+   *
+   * @param channel  the channel the datagram was received on.
+   * @param datagram the datagram, from its position to its limit.
+   * @param sender   the address the datagram came from.
+   * @param reply    the reply of the calling thread, reset for the request.
+   * @return true if a request was handled, false if the datagram was a fragment of a request
+   *     that is not complete yet.
+   */
+  boolean handleDatagram(DatagramChannel channel, ByteBuffer datagram, InetSocketAddress sender, UDPReply reply) {
+    Request request;
+    metrics.bytesIn(datagram.remaining());
+    try {
+      if (Fragments.isFragment(datagram)) {
+        byte[] message = reassembler.add(sender, datagram);
+        if (message == null) {
+          return false;
+        }
+        reply.reset(channel, sender, true, Fragments.messageId(datagram));
+        request = Request.parse(ByteBuffer.wrap(message));
+      } else {
+        reply.reset(channel, sender, false, 0);
+        request = Request.parse(datagram);
+      }
+    } catch (IOException | RuntimeException e) {
+      handleServeRequestError(reply.reset(channel, sender, false, 0), e);
+      return true;
+    }
+
+    if (diskWorkers != null && waitsForDisk(request)) {
+      // the reply of the event loop is reset for the next datagram, so the worker gets its own.
+      UDPReply own = newReply().reset(channel, sender, reply.isFragmented(), reply.getMessageId());
+      diskWorkers.execute(() -> respond(own, request));
+      return true;
+    }
+    respond(reply, request);
+    return true;
+  }
+
+  private void respond(UDPReply reply, Request request) {
+    try {
+      long start = allocatedBytes();
+      String res = reply.isFragmented() ? processOnce(reply, reply.getAddress(), reply.getMessageId(), request)
+              : processRequest(reply, request).getMessage();
+      if (allocations != null) {
+        allocations.processing(allocations.now() - start);
+      }
+      if (res != null) {
+        reply.send(res);
+      }
+    } catch (IOException | RuntimeException e) {
+      handleServeRequestError(reply, e);
+    }
+  }
+
+  /**
+   * Creates the reply a receiving thread reuses for every request it processes.
+   *
+   * @return the reply.
+   */
+  UDPReply newReply() {
+    return new UDPReply(buffers, metrics);
+  }
+
+  /**
+   * Takes a direct buffer to receive datagrams into from the pool of the server.
+   *
+   * @return an empty buffer large enough for any datagram.
+   */
+  ByteBuffer acquireBuffer() {
+    return buffers.acquire();
+  }
+
+  /**
+   * Returns the number of bytes allocated so far by the current thread, if allocations are being
+   * reported.
+   *
+   * @return the number of bytes, or 0 if allocations are not being reported.
+   */
+  long allocatedBytes() {
+    return allocations == null ? 0 : allocations.now();
+  }
+
+  /**
+   * Counts the bytes allocated by the current thread for a request it has just handled.
+   *
+   * @param start the number of bytes allocated by the thread before the request was received.
+   * @return the number of bytes allocated by the thread now, i.e., the start of the next request.
+   */
+  long countAllocations(long start) {
+    if (allocations == null) {
+      return 0;
+    }
+    long end = allocations.now();
+    allocations.request(end - start);
+    return end;
+  }
+
+  private void startAllocationReport() {
+    if (allocations == null) {
+      return;
+    }
+    allocationReporter = Executors.newSingleThreadScheduledExecutor(Workers.named("allocation-report"));
+    allocationReporter.scheduleAtFixedRate(() -> {
+      String report = allocations.report();
+      if (report != null) {
+        showInfo(report + " (" + buffers.created() + " buffers pooled)\n");
+      }
+    }, allocationReportSeconds, allocationReportSeconds, TimeUnit.SECONDS);
   }
 
   @Override
-  protected void sendDataToClient(String res) throws IOException {
-    byte[] sendData = res.getBytes();
-    DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, ip, clientPort);
-    serverSocket.send(sendPacket);
+  protected boolean handleServeRequestError(Connection connection, Exception e) {
+    showError(e.getMessage());
+    return false;
+  }
+
+  /**
+   * Processes a request that carries a message id unless it has been processed before, in which
+   * case the response sent the first time is returned again.
+   *
+   * @param connection the connection the request was received on.
+   * @param sender     the address the request came from.
+   * @param messageId  the id of the request.
+   * @param request    the request split into words.
+   * @return the response to be sent to the client, or null if the same request is still being
+   *     processed and nothing should be sent.
+   * @throws IOException in case of any errors while writing to the file when client says STOP.
+   */
+  String processOnce(Connection connection, SocketAddress sender, long messageId, Request request)
+          throws IOException {
+    if (!responses.start(sender, messageId)) {
+      String res = responses.get(sender, messageId);
+      if (res != null) {
+        showInfo("Resending response to duplicate request " + messageId + " from " + connection.getIp()
+                + ":" + connection.getPort() + "\n");
+      }
+      return res;
+    }
+
+    String res;
+    try {
+      res = processRequest(connection, request).getMessage();
+    } catch (IOException | RuntimeException e) {
+      responses.abort(sender, messageId);
+      throw e;
+    }
+    responses.complete(sender, messageId, res);
+    return res;
+  }
+
+  /**
+   * Encodes the response to a fragmented request into the fragments to send back.
+   *
+   * @param res       the response as a String.
+   * @param messageId the message id of the request.
+   * @return the datagrams to send, in order.
+   */
+  static List<ByteBuffer> encodeFragments(String res, long messageId) {
+    try {
+      return Fragments.split(messageId, res.getBytes(StandardCharsets.UTF_8));
+    } catch (IllegalArgumentException e) {
+      return Fragments.split(messageId, responseTooLarge(res).getBytes(StandardCharsets.UTF_8));
+    }
   }
 
   @Override
   protected void closeEverything() {
-    serverSocket.close();
+    if (allocationReporter != null) {
+      allocationReporter.shutdownNow();
+    }
+    if (eventLoops != null) {
+      eventLoops.close();
+    }
+    for (DatagramChannel channel : channels) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        showError(e.getMessage());
+      }
+    }
   }
 
   @Override
-  protected Server getServerInstance(int port) throws IOException {
-    return new UDPServer(port);
+  protected Server getServerInstance(int port, Options options) throws IOException {
+    return new UDPServer(port, options);
   }
 
   /**
@@ -84,8 +416,9 @@ public class UDPServer extends AbstractServer {
    * and calls the required methods to proceed further in the program execution.
    *
    * @param args String array for command line arguments to be passed when running the program.
-   *             For this program this array should have only one element which is the port number
-   *             for the server.
+   *             For this program this array should have the port number for the server as the
+   *             first element, optionally followed by settings of the form --name=value
+   *             (eg: --receivers=4).
    * @throws IllegalArgumentException in case of incorrect number of cli arguments or incorrect
    *                                  values for name and port number.
    */
@@ -0,0 +1,62 @@
+package project1.servers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Class that encodes Strings as UTF-8 straight into a buffer, one character at a time, instead
+ * of creating a byte array for them with getBytes or a CharBuffer for a CharsetEncoder. Unpaired
+ * surrogates are encoded as '?', like String.getBytes does.
+ */
+final class Utf8 {
+  private Utf8() {
+  }
+
+  /**
+   * Encodes a String into a buffer, starting at its position.
+   *
+   * @param s   the String to encode.
+   * @param dst the buffer to write to.
+   * @return true if the whole String was written and the position moved past it, false if it
+   *     does not fit, in which case the contents and position of the buffer are undefined.
+   */
+  static boolean encode(String s, ByteBuffer dst) {
+    int n = s.length();
+    for (int i = 0; i < n; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        if (!dst.hasRemaining()) {
+          return false;
+        }
+        dst.put((byte) c);
+      } else if (c < 0x800) {
+        if (dst.remaining() < 2) {
+          return false;
+        }
+        dst.put((byte) (0xC0 | c >> 6));
+        dst.put((byte) (0x80 | c & 0x3F));
+      } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+        if (dst.remaining() < 4) {
+          return false;
+        }
+        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+        dst.put((byte) (0xF0 | codePoint >> 18));
+        dst.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+        dst.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+        dst.put((byte) (0x80 | codePoint & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        if (!dst.hasRemaining()) {
+          return false;
+        }
+        dst.put((byte) '?');
+      } else {
+        if (dst.remaining() < 3) {
+          return false;
+        }
+        dst.put((byte) (0xE0 | c >> 12));
+        dst.put((byte) (0x80 | c >> 6 & 0x3F));
+        dst.put((byte) (0x80 | c & 0x3F));
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,114 @@
+package project1.servers;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class that creates the worker threads used by a server to serve clients concurrently.
+ * Workers are either a bounded pool of platform threads or one virtual thread per task.
+ */
+final class Workers {
+  static final String POOL = "pool";
+  static final String VIRTUAL = "virtual";
+
+  private Workers() {
+  }
+
+  /**
+   * Creates the executor that runs the tasks submitted by a server.
+   *
+   * @param mode    either pool for a bounded pool of threads or virtual for virtual threads.
+   * @param threads number of threads in the pool, ignored for virtual threads.
+   * @param name    prefix for the names of the threads created.
+   * @return the executor to submit tasks to.
+   * @throws IllegalArgumentException in case of an unknown mode or invalid number of threads.
+   */
+  static ExecutorService create(String mode, int threads, String name) throws IllegalArgumentException {
+    switch (mode) {
+      case POOL:
+        if (threads < 1) {
+          throw new IllegalArgumentException("Invalid number of threads. Must be at least 1.");
+        }
+        return Executors.newFixedThreadPool(threads, named(name));
+
+      case VIRTUAL:
+        ExecutorService virtual = virtualThreadPerTask();
+        return virtual != null ? virtual : Executors.newCachedThreadPool(named(name));
+
+      default:
+        throw new IllegalArgumentException("Invalid workers " + mode + ". Must be pool or virtual.");
+    }
+  }
+
+  /**
+   * Creates the executor that runs the tasks submitted by a server, where a pool that has all of
+   * its threads busy rejects new tasks instead of queueing them until a thread is free. Used for
+   * tasks that last as long as a connection, which would otherwise wait without limit.
+   *
+   * @param mode    either pool for a bounded pool of threads or virtual for virtual threads.
+   * @param threads number of threads in the pool, ignored for virtual threads.
+   * @param name    prefix for the names of the threads created.
+   * @return the executor to submit tasks to, which throws RejectedExecutionException when full.
+   * @throws IllegalArgumentException in case of an unknown mode or invalid number of threads.
+   */
+  static ExecutorService createRejecting(String mode, int threads, String name) throws IllegalArgumentException {
+    if (!mode.equals(POOL)) {
+      return create(mode, threads, name);
+    }
+    if (threads < 1) {
+      throw new IllegalArgumentException("Invalid number of threads. Must be at least 1.");
+    }
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new SynchronousQueue<>(), named(name));
+  }
+
+  /**
+   * Returns whether virtual threads are available in the running JVM (Java 21 or newer).
+   *
+   * @return true if virtual threads can be used, false otherwise.
+   */
+  static boolean virtualThreadsAvailable() {
+    return findVirtualFactory() != null;
+  }
+
+  /**
+   * Returns a thread factory that names threads with the given prefix and a counter.
+   *
+   * @param name prefix for the names of the threads created.
+   * @return the thread factory.
+   */
+  static ThreadFactory named(String name) {
+    AtomicInteger count = new AtomicInteger();
+    return r -> {
+      Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+  }
+
+  private static ExecutorService virtualThreadPerTask() {
+    Method factory = findVirtualFactory();
+    if (factory == null) {
+      return null;
+    }
+    try {
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  private static Method findVirtualFactory() {
+    // looked up reflectively so that the project still compiles and runs on Java 11.
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,408 @@
+package project1.servers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Class that appends every PUT and DELETE applied to the store to a binary log file, so that
+ * writes survive a crash without rewriting the whole data set. On startup the log is replayed
+ * on top of the last snapshot to restore the store.
+ * Each record is laid out as
+ * [int length][int crc32][byte op][int key length][key][int value length][value][long deadline],
+ * where length and crc32 cover everything after the crc32, the value is only present for PUT and
+ * PUT_EXPIRING, and the deadline, in milli-sec since the epoch, only for PUT_EXPIRING.
+ * A torn or corrupt record at the end of the log, left behind by a crash in the middle of a
+ * write, is discarded when the log is replayed.
+ * Before a snapshot is taken the log is rotated, i.e., the current file is renamed to
+ * contents.wal.N and a new one is started. Once the snapshot is safely on disk the rotated
+ * files are deleted, which keeps the log from growing forever.
+ */
+final class WriteAheadLog {
+  static final byte PUT = 1;
+  static final byte DELETE = 2;
+  static final byte PUT_EXPIRING = 3;
+  private static final int HEADER_SIZE = 8;
+
+  private final Path file;
+  private final FsyncPolicy policy;
+  private FileChannel channel;
+  private final CRC32 crc;
+  private final Object syncLock;
+  private ScheduledExecutorService syncer;
+  private ByteBuffer buffer;
+  private long writtenPosition;
+  private volatile long syncedPosition;
+
+  /**
+   * Enum for when the log is forced to disk. ALWAYS waits for every write to reach the disk
+   * before it is acknowledged, INTERVAL forces the log every few milliseconds so that all the
+   * writes made in between share a single fsync, and NEVER leaves it up to the operating system.
+   */
+  enum FsyncPolicy {
+    ALWAYS, INTERVAL, NEVER;
+
+    static FsyncPolicy parse(String policy) throws IllegalArgumentException {
+      try {
+        return valueOf(policy.toUpperCase());
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Invalid fsync policy " + policy + ". Must be always, interval or never.");
+      }
+    }
+  }
+
+  /**
+   * Constructor to open the log file for appending, creating it if it does not exist.
+   *
+   * @param file       the log file.
+   * @param policy     when the log is forced to disk.
+   * @param intervalMs milli-sec between two fsyncs for the INTERVAL policy.
+   * @throws IOException in case of errors while opening the file.
+   */
+  WriteAheadLog(Path file, FsyncPolicy policy, long intervalMs) throws IOException {
+    this.file = file;
+    this.policy = policy;
+    this.channel = openChannel(file);
+    this.crc = new CRC32();
+    this.syncLock = new Object();
+    this.buffer = ByteBuffer.allocate(4096);
+    this.writtenPosition = channel.size();
+    this.syncedPosition = writtenPosition;
+
+    if (policy == FsyncPolicy.INTERVAL) {
+      if (intervalMs < 1) {
+        throw new IllegalArgumentException("Invalid fsync interval. Must be at least 1 milli-sec.");
+      }
+      syncer = Executors.newSingleThreadScheduledExecutor(Workers.named("wal-sync"));
+      syncer.scheduleWithFixedDelay(this::syncQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static FileChannel openChannel(Path file) throws IOException {
+    return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Reads every complete record in the rotated files and then the current log and applies it
+   * to the store, in the order the records were written. Anything after the last complete
+   * record of the current log is cut off the file so that new records are appended right
+   * after it.
+   *
+   * @param store   the store to apply the records to.
+   * @param expiry  the wheel to hand the deadlines of expiring keys to. A key whose deadline
+   *                has already passed is deleted instead.
+   * @return the number of records applied.
+   * @throws IOException in case of errors while reading the files.
+   */
+  synchronized int replay(KeyValueStore store, ExpiryWheel expiry) throws IOException {
+    int count = 0;
+    for (Path segment : rotatedSegments()) {
+      try (FileChannel rotated = FileChannel.open(segment, StandardOpenOption.READ)) {
+        count += replay(rotated, store, expiry);
+      }
+    }
+    count += replay(channel, store, expiry);
+    return count;
+  }
+
+  private int replay(FileChannel channel, KeyValueStore store, ExpiryWheel expiry) throws IOException {
+    long position = 0;
+    int count = 0;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    CRC32 check = new CRC32();
+
+    while (true) {
+      header.clear();
+      if (readFully(channel, header, position) < HEADER_SIZE) {
+        break;
+      }
+      header.flip();
+      int length = header.getInt();
+      long expectedCrc = header.getInt() & 0xFFFFFFFFL;
+      if (length < 5 || length > channel.size() - position - HEADER_SIZE) {
+        break;
+      }
+
+      ByteBuffer payload = ByteBuffer.allocate(length);
+      readFully(channel, payload, position + HEADER_SIZE);
+      check.reset();
+      check.update(payload.array(), 0, length);
+      if (check.getValue() != expectedCrc) {
+        break;
+      }
+
+      payload.flip();
+      byte op = payload.get();
+      String key = readString(payload);
+      if (op == PUT) {
+        store.put(key, readString(payload));
+        expiry.clear(key);
+      } else if (op == PUT_EXPIRING) {
+        String value = readString(payload);
+        long deadline = payload.getLong();
+        if (deadline > System.currentTimeMillis()) {
+          store.put(key, value);
+          expiry.set(key, deadline);
+        } else {
+          store.delete(key);
+          expiry.clear(key);
+        }
+      } else {
+        store.delete(key);
+        expiry.clear(key);
+      }
+      position += HEADER_SIZE + length;
+      count++;
+    }
+
+    if (channel == this.channel) {
+      if (position < channel.size()) {
+        channel.truncate(position);
+      }
+      writtenPosition = position;
+      syncedPosition = position;
+    }
+    return count;
+  }
+
+  /**
+   * Renames the current log to the next contents.wal.N and starts a new, empty log. Every
+   * record appended before this call is in a rotated file and every record appended after is
+   * in the new log. The caller must make sure no write is halfway between the log and the
+   * store while the log is rotated.
+   *
+   * @return the number N of the rotated file, to pass to discardRotated once the store has
+   *     been saved.
+   * @throws IOException in case of errors while renaming or creating the files.
+   */
+  long rotate() throws IOException {
+    synchronized (syncLock) {
+      synchronized (this) {
+        long next = 1;
+        List<Path> segments = rotatedSegments();
+        if (!segments.isEmpty()) {
+          next = segmentNumber(segments.get(segments.size() - 1)) + 1;
+        }
+
+        channel.force(false);
+        channel.close();
+        Files.move(file, segmentPath(next), StandardCopyOption.ATOMIC_MOVE);
+        channel = openChannel(file);
+        writtenPosition = 0;
+        syncedPosition = 0;
+        return next;
+      }
+    }
+  }
+
+  /**
+   * Deletes the rotated files up to and including contents.wal.N, once everything they hold
+   * has been saved somewhere else.
+   *
+   * @param upTo the number returned by rotate.
+   * @throws IOException in case of errors while deleting the files.
+   */
+  void discardRotated(long upTo) throws IOException {
+    for (Path segment : rotatedSegments()) {
+      if (segmentNumber(segment) <= upTo) {
+        Files.deleteIfExists(segment);
+      }
+    }
+  }
+
+  private Path segmentPath(long number) {
+    return file.resolveSibling(file.getFileName() + "." + number);
+  }
+
+  private long segmentNumber(Path segment) {
+    String name = segment.getFileName().toString();
+    try {
+      return Long.parseLong(name.substring(file.getFileName().toString().length() + 1));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private List<Path> rotatedSegments() throws IOException {
+    List<Path> segments = new ArrayList<>();
+    Path dir = file.toAbsolutePath().getParent();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, file.getFileName() + ".*")) {
+      for (Path segment : stream) {
+        if (segmentNumber(segment) >= 0) {
+          segments.add(segment);
+        }
+      }
+    }
+    segments.sort((a, b) -> Long.compare(segmentNumber(a), segmentNumber(b)));
+    return segments;
+  }
+
+  /**
+   * Appends a record to the end of the log. The record is written to the file before this
+   * method returns, but is only guaranteed to be on disk once sync has been called with the
+   * returned position.
+   *
+   * @param op    either PUT or DELETE.
+   * @param key   the key that was written.
+   * @param value the new value of the key for PUT, null for DELETE.
+   * @return the position in the log right after the record.
+   * @throws IOException in case of errors while writing to the file.
+   */
+  long append(byte op, String key, String value) throws IOException {
+    return append(op, key, value, 0);
+  }
+
+  /**
+   * Appends a record to the end of the log, with the same guarantees as append.
+   *
+   * @param op       either PUT, PUT_EXPIRING or DELETE.
+   * @param key      the key that was written.
+   * @param value    the new value of the key for PUT and PUT_EXPIRING, null for DELETE.
+   * @param deadline when the key expires for PUT_EXPIRING, in milli-sec since the epoch.
+   * @return the position in the log right after the record.
+   * @throws IOException in case of errors while writing to the file.
+   */
+  synchronized long append(byte op, String key, String value, long deadline) throws IOException {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    byte[] valueBytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    int length = 1 + 4 + keyBytes.length + (valueBytes == null ? 0 : 4 + valueBytes.length)
+            + (op == PUT_EXPIRING ? 8 : 0);
+
+    if (buffer.capacity() < HEADER_SIZE + length) {
+      buffer = ByteBuffer.allocate(Math.max(HEADER_SIZE + length, buffer.capacity() * 2));
+    }
+    buffer.clear();
+    buffer.position(HEADER_SIZE);
+    buffer.put(op);
+    buffer.putInt(keyBytes.length).put(keyBytes);
+    if (valueBytes != null) {
+      buffer.putInt(valueBytes.length).put(valueBytes);
+    }
+    if (op == PUT_EXPIRING) {
+      buffer.putLong(deadline);
+    }
+    crc.reset();
+    crc.update(buffer.array(), HEADER_SIZE, length);
+    buffer.putInt(0, length);
+    buffer.putInt(4, (int) crc.getValue());
+    buffer.flip();
+
+    while (buffer.hasRemaining()) {
+      writtenPosition += channel.write(buffer, writtenPosition);
+    }
+    return writtenPosition;
+  }
+
+  /**
+   * Returns whether every write waits for the log to be forced to disk, i.e., the fsync policy
+   * is ALWAYS.
+   *
+   * @return true if every write waits for the disk, false otherwise.
+   */
+  boolean syncsEveryWrite() {
+    return policy == FsyncPolicy.ALWAYS;
+  }
+
+  /**
+   * Makes sure that the log is on disk up to the given position if the fsync policy asks for
+   * every write to be durable. Concurrent callers share a single fsync: whoever forces the log
+   * makes every record written so far durable, not just its own.
+   *
+   * @param position the position returned by append.
+   * @throws IOException in case of errors while forcing the file to disk.
+   */
+  void sync(long position) throws IOException {
+    if (policy != FsyncPolicy.ALWAYS || syncedPosition >= position) {
+      return;
+    }
+    force();
+  }
+
+  private void force() throws IOException {
+    synchronized (syncLock) {
+      long target;
+      synchronized (this) {
+        target = writtenPosition;
+      }
+      if (syncedPosition < target) {
+        channel.force(false);
+        syncedPosition = target;
+      }
+    }
+  }
+
+  private void syncQuietly() {
+    try {
+      force();
+    } catch (IOException ignored) {
+      // retried on the next interval, and reported when the log is closed.
+    }
+  }
+
+  /**
+   * Returns the number of bytes in the log.
+   *
+   * @return the size of the log in bytes.
+   */
+  synchronized long size() {
+    return writtenPosition;
+  }
+
+  /**
+   * Returns the file the log is written to.
+   *
+   * @return the path of the log file.
+   */
+  Path getFile() {
+    return file;
+  }
+
+  /**
+   * Forces everything written so far to disk and closes the log file.
+   *
+   * @throws IOException in case of errors while forcing or closing the file.
+   */
+  void close() throws IOException {
+    if (syncer != null) {
+      syncer.shutdownNow();
+    }
+    if (channel.isOpen()) {
+      force();
+      channel.close();
+    }
+  }
+
+  private static int readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+    int total = 0;
+    while (dst.hasRemaining()) {
+      int n = channel.read(dst, position + total);
+      if (n < 0) {
+        break;
+      }
+      total += n;
+    }
+    return total;
+  }
+
+  private static String readString(ByteBuffer payload) throws IOException {
+    int length = payload.getInt();
+    if (length < 0 || length > payload.remaining()) {
+      throw new IOException("Corrupt record in write-ahead log");
+    }
+    String s = new String(payload.array(), payload.position(), length, StandardCharsets.UTF_8);
+    payload.position(payload.position() + length);
+    return s;
+  }
+}